@@ -17,14 +17,18 @@ import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.output.OdeLog;
 import com.google.appinventor.client.settings.project.ProjectSettings;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.FileDelta;
+import com.google.appinventor.shared.rpc.project.FileDeltaMismatchException;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.rpc.AsyncCallback;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -58,6 +62,10 @@ public final class EditorManager {
   private boolean autoSaveIsScheduled;
   private long autoSaveRequestTime;
 
+  // Map of the .bky and .scm files saved in this session to their last saved
+  // content. Later saves of these files only send the change to that content.
+  private final Map<String, String> savedContents;
+
   private class DateHolder {
     long date;
     long projectId;
@@ -71,6 +79,7 @@ public final class EditorManager {
 
     dirtyProjectSettings = new HashSet<ProjectSettings>();
     dirtyFileEditors = new HashSet<FileEditor>();
+    savedContents = Maps.newHashMap();
 
     autoSaveTimer = new Timer() {
       @Override
@@ -148,6 +157,7 @@ public final class EditorManager {
         if (fileEditor != null) {
           dirtyFileEditors.remove(fileEditor);
         }
+        savedContents.remove(getSavedContentKey(projectId, fileId));
       }
       projectEditor.closeFileEditors(fileIds);
     }
@@ -167,6 +177,12 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    Iterator<String> savedFiles = savedContents.keySet().iterator();
+    while (savedFiles.hasNext()) {
+      if (savedFiles.next().startsWith(projectId + ":")) {
+        savedFiles.remove();
+      }
+    }
   }
 
   /**
@@ -363,6 +379,9 @@ public final class EditorManager {
    * a trivial blocks workspace is attempting to be written over a non-trival
    * file.
    *
+   * The .bky and .scm files already saved in this session are saved as a
+   * change to their last saved content, see {@link #createDelta}.
+   *
    * If any unhandled errors occur while saving, the afterSavingFiles
    * command will not be executed.  If filesWithContent is empty, the
    * afterSavingFiles command is called immediately, not
@@ -386,8 +405,7 @@ public final class EditorManager {
         final long projectId = fileDescriptor.getProjectId();
         final String fileId = fileDescriptor.getFileId();
         final String content = fileDescriptor.getContent();
-        Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
-          projectId, fileId, false, content, new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+        final OdeAsyncCallback<Long> callback = new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
             @Override
             public void onSuccess(Long date) {
               if (dateHolder.date != 0) {
@@ -400,6 +418,9 @@ public final class EditorManager {
                 dateHolder.date = date;
                 dateHolder.projectId = projectId;
               }
+              if (fileId.endsWith(".bky") || fileId.endsWith(".scm")) {
+                savedContents.put(getSavedContentKey(projectId, fileId), content);
+              }
               if (afterSavingFiles != null) {
                 afterSavingFiles.execute();
               }
@@ -413,8 +434,55 @@ public final class EditorManager {
                 super.onFailure(caught);
               }
             }
-          });
+          };
+        FileDelta delta = createDelta(projectId, fileId, content);
+        if (delta == null) {
+          Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+            projectId, fileId, false, content, callback);
+        } else {
+          Ode.getInstance().getProjectService().saveDelta(Ode.getInstance().getSessionId(),
+            projectId, fileId, false, delta, new AsyncCallback<Long>() {
+              @Override
+              public void onSuccess(Long date) {
+                callback.onSuccess(date);
+              }
+              @Override
+              public void onFailure(Throwable caught) {
+                if (caught instanceof FileDeltaMismatchException) {
+                  // The saved file isn't the one the delta was made from, save all of it
+                  Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+                    projectId, fileId, false, content, callback);
+                } else {
+                  callback.onFailure(caught);
+                }
+              }
+            });
+        }
       }
     }
   }
+
+  /**
+   * Returns the change from the last saved content of a file to the given
+   * content, or null if the whole content should be saved. That is the case
+   * when the file hasn't been saved yet in this session, or when most of it
+   * changed.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param content  the content to save
+   * @return  the delta to save, or null
+   */
+  private FileDelta createDelta(long projectId, String fileId, String content) {
+    String savedContent = savedContents.get(getSavedContentKey(projectId, fileId));
+    if (savedContent == null) {
+      return null;
+    }
+    FileDelta delta = FileDelta.create(savedContent, content);
+    return delta.getInsertedLength() < content.length() / 2 ? delta : null;
+  }
+
+  private static String getSavedContentKey(long projectId, String fileId) {
+    return projectId + ":" + fileId;
+  }
 }
@@ -194,14 +194,29 @@ public class DownloadServlet extends OdeServlet {
         for (String projectId : projectIdStrings) {
           projectIds.add(Long.valueOf(projectId));
         }
-        ProjectSourceZip zipFile = fileExporter.exportSelectedProjectsSourceZip(
-          userId, "selected-projects.zip", projectIds);
-        downloadableFile = zipFile.getRawFile();
+        // The zip of zips is written to the response as the projects are read.
+        setAttachmentHeaders(resp, "selected-projects.zip");
+        try {
+          fileExporter.exportSelectedProjectsSourceZip(userId, projectIds,
+              resp.getOutputStream());
+        } catch (IllegalArgumentException e) {
+          resetAttachmentHeaders(resp);
+          throw e;
+        }
+        resp.getOutputStream().close();
+        return;
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
-        // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        // Download all project source files as a zip of zips, written to the response as the
+        // projects are read.
+        setAttachmentHeaders(resp, "all-projects.zip");
+        try {
+          fileExporter.exportAllProjectsSourceZip(userId, resp.getOutputStream());
+        } catch (IllegalArgumentException e) {
+          resetAttachmentHeaders(resp);
+          throw e;
+        }
+        resp.getOutputStream().close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -243,9 +258,7 @@ public class DownloadServlet extends OdeServlet {
     byte[] content = downloadableFile.getContent();
 
     // Set http response information
-    resp.setStatus(HttpServletResponse.SC_OK);
-    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
-    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+    setAttachmentHeaders(resp, fileName);
     resp.setContentLength(content.length);
 
     // Attach download data
@@ -253,4 +266,22 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Sets the response headers of a downloaded file, before its content is written.
+   */
+  private static void setAttachmentHeaders(HttpServletResponse resp, String fileName) {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+  }
+
+  /*
+   * Undoes setAttachmentHeaders when a download fails before any of its content is written.
+   */
+  private static void resetAttachmentHeaders(HttpServletResponse resp) {
+    resp.reset();
+    CACHE_HEADERS.setNotCacheable(resp);
+    resp.setContentType(CONTENT_TYPE);
+  }
 }
@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -71,6 +72,21 @@ public interface FileExporter {
    */
   ProjectSourceZip exportSelectedProjectsSourceZip(String userId, String zipName, List<Long> projectIds) throws IOException;
 
+  /**
+   * Writes projects selected by the user to a stream as a zip of zips, without
+   * holding the zips in memory.
+   *
+   * @param userId the userId
+   * @param projectIds the list of project ids corresponding to selected projects
+   * @param out the stream to write the zip to, which is left open
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects), in which case nothing is written
+   * @throws IOException if files cannot be written
+   */
+  int exportSelectedProjectsSourceZip(String userId, List<Long> projectIds, OutputStream out)
+      throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
@@ -83,6 +99,19 @@ public interface FileExporter {
    */
   ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
 
+  /**
+   * Writes all of the user's projects' source files to a stream as a zip of
+   * zips, without holding the zips in memory.
+   *
+   * @param userId the userId
+   * @param out the stream to write the zip to, which is left open
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects), in which case nothing is written
+   * @throws IOException if files cannot be written
+   */
+  int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException;
+
   /**
    * Exports a specific project file.
    *
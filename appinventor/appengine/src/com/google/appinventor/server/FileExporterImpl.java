@@ -7,9 +7,9 @@
 package com.google.appinventor.server;
 
 import com.google.common.base.Strings;
-import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.server.util.EmbeddedZipOutputStream;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
@@ -17,9 +17,11 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
@@ -68,151 +70,160 @@ public final class FileExporterImpl implements FileExporter {
     boolean fatalError,
     boolean forGallery) throws IOException {
     // Download project source files as a zip.
-    if (storageIo instanceof ObjectifyStorageIo) {
-      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
-        includeProjectHistory, includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
-    } else {
-      throw new IllegalArgumentException("Objectify only");
-    }
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
   }
 
   @Override
   public ProjectSourceZip exportSelectedProjectsSourceZip(String userId,
       String zipName, List<Long> projectIds) throws IOException {
-      // Create a zip file for each project's sources.
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    StringBuilder metadata = new StringBuilder();
+    int count = writeProjectsSourceZip(userId, projectIds, zipFile, metadata);
+
+    // Package the big zip file up as a ProjectSourceZip and return it.
+    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, zipFile.toByteArray(), count);
+    projectSourceZip.setMetadata(metadata.toString());
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportSelectedProjectsSourceZip(String userId, List<Long> projectIds,
+      OutputStream out) throws IOException {
+    return writeProjectsSourceZip(userId, projectIds, out, new StringBuilder());
+  }
+
+  @Override
+  public ProjectSourceZip exportAllProjectsSourceZip(String userId,
+      String zipName) throws IOException {
+    return exportSelectedProjectsSourceZip(userId, zipName, storageIo.getProjects(userId));
+  }
+
+  @Override
+  public int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException {
+    return exportSelectedProjectsSourceZip(userId, storageIo.getProjects(userId), out);
+  }
+
+  /*
+   * Writes the sources of projects to a stream as a zip of zips, which is left open, and
+   * appends the names of the projects to the metadata. Each project's zip is streamed from
+   * storage into its entry, so that no zip is held in memory. Nothing is written if none of the
+   * projects has files. A project that cannot be read is left out if nothing of it has been
+   * written yet; otherwise the download fails, as it cannot be completed without the project.
+   */
+  private int writeProjectsSourceZip(String userId, List<Long> projectIds, OutputStream stream,
+      StringBuilder metadata) throws IOException {
+    // Create a zip file for each project's sources.
     if (projectIds.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
-    int count = 0;
-    String metadata = "";
-    for (Long projectId : projectIds) {
-      try {
-        ProjectSourceZip projectSourceZip =
-            exportProjectSourceZip(userId, projectId, false, false, null, false, false, false, false);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
-
-        // If necessary, renae duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
+    EmbeddedZipOutputStream out = new EmbeddedZipOutputStream(stream);
+    try {
+      int count = 0;
+      for (Long projectId : projectIds) {
+        String projectName = storageIo.getProjectName(userId, projectId);
+        ProjectEntryOutputStream entry = new ProjectEntryOutputStream(out, projectName + ".aia");
+        try {
+          // Note: We never include Yail files when exporting all source projects
+          // even for Admins. If you are an admin and want to debug a project, download
+          // it explicitly.
+          storageIo.exportProjectSourceZip(userId, projectId, false, false, false, false, false,
+              false, entry);
+        } catch (IllegalArgumentException e) {
+          System.err.println("No files found for userid: " + userId +
+              " for projectid: " + projectId);
+          continue;
+        } catch (IOException e) {
+          System.err.println("IOException while reading files found for userid: " +
+              userId + " for projectid: " + projectId);
+          if (entry.isStarted()) {
+            // The entry cannot be taken back, and closing it would turn the partly written
+            // project into a corrupt .aia in an otherwise valid download.
+            throw e;
           }
+          continue;
         }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
-        out.closeEntry();
+        entry.close();
+        metadata.append(projectName).append("\n");
         count++;
-      } catch (IllegalArgumentException e) {
-        System.err.println("No files found for userid: " + userId +
-            " for projectid: " + projectId);
-      } catch (IOException e) {
-        System.err.println("IOException while reading files found for userid: " +
-            userId + " for projectid: " + projectId);
-        continue;
       }
-    }
-    if (count == 0) {
-      throw new IllegalArgumentException("No files to download");
-    }
-
-    List<String> userFiles = storageIo.getUserFiles(userId);
-    if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
-      byte[] androidKeystoreBytes =
-          storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-      if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
-        out.closeEntry();
-        count++;
+      if (count == 0) {
+        throw new IllegalArgumentException("No files to download");
       }
-    }
 
-    out.close();
+      List<String> userFiles = storageIo.getUserFiles(userId);
+      if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
+        byte[] androidKeystoreBytes =
+            storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+        if (androidKeystoreBytes.length > 0) {
+          out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+          out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+          out.closeEntry();
+          count++;
+        }
+      }
 
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+      out.finish();
+      return count;
+    } finally {
+      out.end();
+    }
   }
 
-  @Override
-  public ProjectSourceZip exportAllProjectsSourceZip(String userId,
-      String zipName) throws IOException {
-    // Create a zip file for each project's sources.
-    List<Long> projectIds = storageIo.getProjects(userId);
-    if (projectIds.size() == 0) {
-      throw new IllegalArgumentException("No projects to download");
+  /*
+   * The entry of a project in a zip of zips. The entry is only added to the zip when the
+   * project's zip is first written to it, so that projects without files are left out.
+   */
+  private static class ProjectEntryOutputStream extends OutputStream {
+    private final ZipOutputStream out;
+    private String name;
+    private boolean started = false;
+
+    ProjectEntryOutputStream(ZipOutputStream out, String name) {
+      this.out = out;
+      this.name = name;
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
-    int count = 0;
-    String metadata = "";
-    for (Long projectId : projectIds) {
-      try {
-        // Note: We never include Yail files when exporting all source projects
-        // even for Admins. If you are an admin and want to debug a project, download
-        // it explicitly.
-        ProjectSourceZip projectSourceZip =
-          exportProjectSourceZip(userId, projectId, false, false, null, false, false, false, false);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (!started) {
         // If necessary, rename duplicate projects
         while (true) {
           try {
             out.putNextEntry(new ZipEntry(name));
             break;
-          } catch (IOException e) {
+          } catch (ZipException e) {
             name = "duplicate-" + name;
           }
         }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        count++;
-      } catch (IllegalArgumentException e) {
-        System.err.println("No files found for userid: " + userId +
-            " for projectid: " + projectId);
-        continue;
-      } catch (IOException e) {
-        System.err.println("IOException while reading files found for userid: " +
-            userId + " for projectid: " + projectId);
-        continue;
+        started = true;
       }
+      out.write(b, off, len);
     }
-    if (count == 0) {
-      throw new IllegalArgumentException("No files to download");
+
+    /*
+     * Returns whether the entry has been added to the zip of zips.
+     */
+    boolean isStarted() {
+      return started;
     }
 
-    List<String> userFiles = storageIo.getUserFiles(userId);
-    if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
-      byte[] androidKeystoreBytes =
-          storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-      if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+    /*
+     * Closes the entry, leaving the zip of zips open.
+     */
+    @Override
+    public void close() throws IOException {
+      if (started) {
+        started = false;
         out.closeEntry();
-        count++;
       }
     }
-
-    out.close();
-
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
   }
 
   @Override
@@ -22,6 +22,8 @@ import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
+import com.google.appinventor.shared.rpc.project.FileDelta;
+import com.google.appinventor.shared.rpc.project.FileDeltaMismatchException;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
@@ -31,6 +33,7 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.util.Base64Util;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -43,6 +46,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -439,16 +443,23 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<FileDescriptorWithContent> load(List<FileDescriptor> files) {
-    List<FileDescriptorWithContent> result = Lists.newArrayList();
     final String userId = userInfoProvider.getUserId();
-    for (FileDescriptor file : files) {
-      long projectId = file.getProjectId();
-      String fileId = file.getFileId();
-      result.add(new FileDescriptorWithContent(
-          projectId, fileId,
-          getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId)));
+    FileDescriptorWithContent[] result = new FileDescriptorWithContent[files.size()];
+    // The files of each project are loaded in one batch
+    for (Map.Entry<Long, List<Integer>> entry : groupByProject(files).entrySet()) {
+      long projectId = entry.getKey();
+      List<String> fileIds = Lists.newArrayList();
+      for (int index : entry.getValue()) {
+        fileIds.add(files.get(index).getFileId());
+      }
+      List<String> contents = getProjectRpcImpl(userId, projectId).load(userId, projectId,
+          fileIds);
+      for (int i = 0; i < fileIds.size(); i++) {
+        result[entry.getValue().get(i)] =
+            new FileDescriptorWithContent(projectId, fileIds.get(i), contents.get(i));
+      }
     }
-    return result;
+    return Lists.newArrayList(result);
   }
 
   /**
@@ -495,6 +506,29 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         content);
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree,
+   * given as a change to its saved content.
+   *
+   * @param sessionId session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param force whether to write an empty blocks workspace
+   * @param delta  change to the saved content of the file
+   * @return modification date for project
+   *
+   * @see #save2(String, long, String, boolean, String)
+   */
+  @Override
+  public long saveDelta(String sessionId, long projectId, String fileId, boolean force,
+      FileDelta delta) throws InvalidSessionException, BlocksTruncatedException,
+      FileDeltaMismatchException {
+    validateSessionId(sessionId);
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).saveDelta(userId, projectId, fileId, force,
+        delta);
+  }
+
   /**
    * Saves the contents of multiple files.
    *
@@ -509,14 +543,42 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
     long date = 0;
-    for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+    // The files of each project are saved in one batch
+    for (Map.Entry<Long, List<Integer>> entry : groupByProject(filesAndContent).entrySet()) {
+      long projectId = entry.getKey();
+      List<String> fileIds = Lists.newArrayList();
+      List<String> contents = Lists.newArrayList();
+      for (int index : entry.getValue()) {
+        fileIds.add(filesAndContent.get(index).getFileId());
+        contents.add(filesAndContent.get(index).getContent());
+      }
+      long projectDate = getProjectRpcImpl(userId, projectId).save(userId, projectId, fileIds,
+          contents);
+      if (projectId == filesAndContent.get(filesAndContent.size() - 1).getProjectId()) {
+        date = projectDate;
+      }
     }
     return date;
   }
 
+  /*
+   * Returns the indices of the given files grouped by project, in the order the projects
+   * first appear in the list.
+   */
+  private static Map<Long, List<Integer>> groupByProject(List<? extends FileDescriptor> files) {
+    Map<Long, List<Integer>> filesByProject = Maps.newLinkedHashMap();
+    for (int i = 0; i < files.size(); i++) {
+      long projectId = files.get(i).getProjectId();
+      List<Integer> indices = filesByProject.get(projectId);
+      if (indices == null) {
+        indices = Lists.newArrayList();
+        filesByProject.put(projectId, indices);
+      }
+      indices.add(i);
+    }
+    return filesByProject;
+  }
+
   @Override
   public RpcResult screenshot(String sessionId, long projectId, String fileId, String content)
     throws InvalidSessionException {
@@ -11,6 +11,8 @@ import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.FileDelta;
+import com.google.appinventor.shared.rpc.project.FileDeltaMismatchException;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.TextFile;
@@ -183,6 +185,19 @@ public abstract class CommonProjectService {
     return storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Loads the contents of several files of a project at once.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose sources should be loaded
+   *
+   * @return  the contents of the files, in the order of fileIds
+   */
+  public List<String> load(String userId, long projectId, List<String> fileIds) {
+    return storageIo.downloadFiles(userId, projectId, fileIds, StorageUtil.DEFAULT_CHARSET);
+  }
+
   /**
    * Loads the file information associated with a node in the project tree. The
    * actual return value depends on the file kind. Source (text) files should
@@ -270,6 +285,21 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the contents of several files of a project at once. As with
+   * {@link #save(String, long, String, String)}, force is always true.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose sources should be saved
+   * @param contents  contents to be saved, in the order of fileIds
+   * @return modification date for project
+   */
+  public long save(String userId, long projectId, List<String> fileIds, List<String> contents) {
+    return storageIo.uploadFilesForce(projectId, fileIds, userId, contents,
+        StorageUtil.DEFAULT_CHARSET);
+  }
+
   /**
    * Saves the content of the file associated with a node in the project tree.
    * if force is false, an error is thrown if an attempt is made to save a
@@ -293,6 +323,31 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree,
+   * given as a change to its saved content. The change is applied to the
+   * content read from storage, which is usually cached.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileId  project node whose source should be saved
+   * @param force whether to write an empty blocks workspace
+   * @param delta  change to the saved content of the file
+   * @return modification date for project
+   * @throws FileDeltaMismatchException if the delta doesn't apply to the saved content
+   *
+   * @see com.google.appinventor.shared.rpc.project.ProjectService#saveDelta(String, long, String, boolean, FileDelta)
+   */
+  public long saveDelta(String userId, long projectId, String fileId, boolean force,
+      FileDelta delta) throws BlocksTruncatedException, FileDeltaMismatchException {
+    String content = delta.apply(
+        storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET));
+    if (content == null) {
+      throw new FileDeltaMismatchException("Delta doesn't apply to " + fileId);
+    }
+    return save2(userId, projectId, fileId, force, content);
+  }
+
   /**
    * Saves a screenshot of a current blocks editor. This is called from the client side
    * whenever the user leaves a blocks editor. The data is shipped to us in base64 encoding
@@ -0,0 +1,207 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores file contents on disk under the SHA-1 hash of their bytes, for
+ * {@link LocalStorageIo}. Identical contents, such as the assets of copied
+ * projects, are stored once.
+ *
+ * <p>A content is written to a temporary file, synced and then renamed, so a
+ * content file is either complete or absent. The rename is synced too before
+ * the content's hash is returned, so metadata written afterwards never refers
+ * to a content lost in a crash. Content files are never changed
+ * once written, which lets large ones be read through memory mappings. The
+ * contents no longer referenced are removed by {@link #retainAll}.
+ */
+final class LocalContentStore {
+  private static final Logger LOG = Logger.getLogger(LocalContentStore.class.getName());
+
+  // Contents at least this large are read through a memory mapping rather than copied
+  // through a buffer
+  private static final int MAPPED_READ_THRESHOLD = 64 * 1024;
+
+  private final File dir;
+  private final File tempDir;
+
+  /**
+   * Opens the content store kept in a directory.
+   *
+   * @param dir  the directory of the store, which is created if needed
+   * @throws IOException  if the directory can't be created
+   */
+  LocalContentStore(File dir) throws IOException {
+    this.dir = dir;
+    tempDir = new File(dir, "tmp");
+    if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+      throw new IOException("Unable to create " + tempDir);
+    }
+    // Temporary files left by a crash were never referenced
+    File[] tempFiles = tempDir.listFiles();
+    if (tempFiles != null) {
+      for (File file : tempFiles) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Stores a content, unless an identical content is already stored.
+   *
+   * @param content  the content
+   * @return  the hash identifying the content
+   */
+  String put(byte[] content) throws IOException {
+    String hash = Hashing.sha1().hashBytes(content).toString();
+    File file = getFile(hash);
+    if (file.exists()) {
+      return hash;
+    }
+    File tempFile = new File(tempDir, UUID.randomUUID().toString());
+    FileChannel channel = new RandomAccessFile(tempFile, "rw").getChannel();
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+    File parent = file.getParentFile();
+    if (!parent.isDirectory()) {
+      if (!parent.mkdirs() && !parent.isDirectory()) {
+        tempFile.delete();
+        throw new IOException("Unable to create " + parent);
+      }
+      LocalKeyValueStore.syncDirectory(dir);
+    }
+    try {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // Stored at the same time by another request
+      tempFile.delete();
+    }
+    LocalKeyValueStore.syncDirectory(parent);
+    return hash;
+  }
+
+  /**
+   * Reads a content.
+   *
+   * @param hash  the hash identifying the content
+   * @return  the content
+   * @throws FileNotFoundException  if no content has this hash
+   */
+  byte[] get(String hash) throws IOException {
+    FileChannel channel = open(hash);
+    try {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Content " + hash + " is too large to read");
+      }
+      byte[] content = new byte[(int) size];
+      if (size >= MAPPED_READ_THRESHOLD) {
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, size).get(content);
+      } else {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+      }
+      return content;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes a content to a stream, through a memory mapping of its file so that
+   * large contents aren't copied into the heap.
+   *
+   * @param hash  the hash identifying the content
+   * @param out  the stream, which is left open
+   * @throws FileNotFoundException  if no content has this hash
+   */
+  void copyTo(String hash, OutputStream out) throws IOException {
+    FileChannel channel = open(hash);
+    try {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      WritableByteChannel target = Channels.newChannel(out);
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Removes the contents whose hashes aren't in a set. This must not run while
+   * contents are stored.
+   *
+   * @param hashes  the hashes of the contents to keep
+   * @return  the number of contents removed
+   */
+  int retainAll(Set<String> hashes) {
+    int removed = 0;
+    File[] parents = dir.listFiles();
+    if (parents == null) {
+      return 0;
+    }
+    for (File parent : parents) {
+      File[] files = parent.equals(tempDir) ? null : parent.listFiles();
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        if (!hashes.contains(parent.getName() + file.getName())) {
+          if (file.delete()) {
+            removed++;
+          } else {
+            LOG.log(Level.WARNING, "Unable to delete " + file);
+          }
+        }
+      }
+    }
+    return removed;
+  }
+
+  private FileChannel open(String hash) throws IOException {
+    File file = getFile(hash);
+    if (!file.exists()) {
+      throw new FileNotFoundException("Content " + hash + " not found");
+    }
+    return new RandomAccessFile(file, "r").getChannel();
+  }
+
+  /*
+   * Returns the file of a content. Contents are spread over directories named
+   * after the first two characters of their hashes, to keep directories small.
+   */
+  private File getFile(String hash) {
+    return new File(new File(dir, hash.substring(0, 2)), hash.substring(2));
+  }
+}
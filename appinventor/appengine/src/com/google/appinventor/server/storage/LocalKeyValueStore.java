@@ -0,0 +1,353 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A key-value store held in memory and made durable by a write-ahead log,
+ * used by {@link LocalStorageIo} for the metadata of users and projects.
+ *
+ * <p>Changes are written in batches. A batch is appended to the log and synced
+ * to disk before it is applied, so a write that returned is never lost, and a
+ * batch cut short by a crash fails its checksum and is dropped entirely when
+ * the log is replayed. Once the log grows past {@link #MAX_LOG_SIZE}, the
+ * entries are written to a snapshot and the log is emptied, but only once the
+ * renaming of the new snapshot is itself on disk.
+ *
+ * <p>Values are kept serialized, so callers may change the objects they get
+ * from the store without changing the store.
+ */
+final class LocalKeyValueStore {
+  private static final Logger LOG = Logger.getLogger(LocalKeyValueStore.class.getName());
+
+  private static final String SNAPSHOT_FILE_NAME = "metadata.snapshot";
+  private static final String LOG_FILE_NAME = "metadata.log";
+
+  // The size of the log past which it is compacted into the snapshot
+  private static final long MAX_LOG_SIZE = 16 * 1024 * 1024;
+
+  // The size of the header of a record: the length of its payload and its checksum
+  private static final int HEADER_SIZE = 4 + 8;
+
+  private final File snapshotFile;
+  private final File logFile;
+  private final TreeMap<String, byte[]> entries = new TreeMap<String, byte[]>();
+  private final FileChannel log;
+
+  /**
+   * A set of changes written to the store at once.
+   */
+  static final class Batch {
+    // The new value of each changed key, or null for a deleted key
+    private final Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+
+    Batch put(String key, Serializable value) {
+      changes.put(key, serialize(value));
+      return this;
+    }
+
+    Batch delete(String key) {
+      changes.put(key, null);
+      return this;
+    }
+
+    boolean isEmpty() {
+      return changes.isEmpty();
+    }
+  }
+
+  /**
+   * Opens the store kept in a directory, replaying its snapshot and log.
+   *
+   * @param dir  the directory of the store, which is created if needed
+   * @throws IOException  if the store can't be read
+   */
+  LocalKeyValueStore(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+    logFile = new File(dir, LOG_FILE_NAME);
+    if (snapshotFile.exists()) {
+      byte[] snapshot = Files.readAllBytes(snapshotFile.toPath());
+      if (replay(snapshot) != snapshot.length) {
+        throw new IOException("Corrupt snapshot " + snapshotFile);
+      }
+    }
+    boolean newLog = !logFile.exists();
+    log = new RandomAccessFile(logFile, "rw").getChannel();
+    if (newLog) {
+      syncDirectory(dir);
+    }
+    long validLength = replay(Files.readAllBytes(logFile.toPath()));
+    if (validLength < log.size()) {
+      // The last batch was cut short, and was never applied
+      LOG.warning("Dropping " + (log.size() - validLength) + " bytes at the end of " + logFile);
+      log.truncate(validLength);
+      log.force(true);
+    }
+    log.position(validLength);
+  }
+
+  /**
+   * Returns the value of a key, or null if the key has no value.
+   */
+  @SuppressWarnings("unchecked")
+  synchronized <T> T get(String key) {
+    byte[] value = entries.get(key);
+    return value == null ? null : (T) deserialize(value);
+  }
+
+  /**
+   * Returns the values of the keys starting with a prefix, in key order.
+   */
+  <T> List<T> getAll(String keyPrefix) {
+    return getAll(keyPrefix, keyPrefix, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the values of up to limit keys starting with a prefix, from the
+   * first key at or after fromKey, in key order.
+   */
+  @SuppressWarnings("unchecked")
+  synchronized <T> List<T> getAll(String keyPrefix, String fromKey, int limit) {
+    List<T> values = new ArrayList<T>();
+    for (Map.Entry<String, byte[]> entry : entries.tailMap(fromKey, true).entrySet()) {
+      if (!entry.getKey().startsWith(keyPrefix) || values.size() >= limit) {
+        break;
+      }
+      values.add((T) deserialize(entry.getValue()));
+    }
+    return values;
+  }
+
+  /**
+   * Returns the keys starting with a prefix, in order.
+   */
+  synchronized List<String> getKeys(String keyPrefix) {
+    List<String> keys = new ArrayList<String>();
+    for (String key : entries.tailMap(keyPrefix, true).keySet()) {
+      if (!key.startsWith(keyPrefix)) {
+        break;
+      }
+      keys.add(key);
+    }
+    return keys;
+  }
+
+  /**
+   * Writes a batch of changes to the log and applies them.
+   *
+   * @throws IOException  if the changes can't be written, in which case none
+   *                      of them is applied
+   */
+  synchronized void write(Batch batch) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    long position = log.position();
+    try {
+      writeFully(log, encode(batch.changes));
+      log.force(false);
+    } catch (IOException e) {
+      // Don't leave part of the batch in front of the next one
+      log.truncate(position);
+      log.position(position);
+      throw e;
+    }
+    apply(batch.changes);
+    if (log.size() > MAX_LOG_SIZE) {
+      compact();
+    }
+  }
+
+  /**
+   * Closes the log. The store can't be written once closed.
+   */
+  synchronized void close() throws IOException {
+    log.close();
+  }
+
+  /*
+   * Writes all the entries to a new snapshot, which replaces the old one
+   * atomically, and then empties the log.
+   */
+  private void compact() throws IOException {
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    FileChannel snapshot = new RandomAccessFile(tempFile, "rw").getChannel();
+    try {
+      snapshot.truncate(0);
+      writeFully(snapshot, encode(entries));
+      snapshot.force(true);
+    } finally {
+      snapshot.close();
+    }
+    Files.move(tempFile.toPath(), snapshotFile.toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    // Until the rename is on disk, a crash brings back the old snapshot, which
+    // needs the log
+    syncDirectory(snapshotFile.getParentFile());
+    log.truncate(0);
+    log.force(true);
+    log.position(0);
+  }
+
+  /**
+   * Syncs a directory to disk, so that the files created, renamed or deleted in
+   * it survive a crash. Windows doesn't let directories be opened, and doesn't
+   * need it.
+   */
+  static void syncDirectory(File dir) throws IOException {
+    if (File.separatorChar == '\\') {
+      return;
+    }
+    FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void apply(Map<String, byte[]> changes) {
+    for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        entries.remove(change.getKey());
+      } else {
+        entries.put(change.getKey(), change.getValue());
+      }
+    }
+  }
+
+  /*
+   * Applies the records of a snapshot or a log, and returns the length of the
+   * valid records, which stop at the first one cut short or corrupt.
+   */
+  private long replay(byte[] records) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    while (buffer.remaining() >= HEADER_SIZE) {
+      int start = buffer.position();
+      int length = buffer.getInt();
+      long checksum = buffer.getLong();
+      if (length < 0 || length > buffer.remaining()) {
+        return start;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(records, buffer.position(), length);
+      if (crc.getValue() != checksum) {
+        return start;
+      }
+      apply(decode(records, buffer.position(), length));
+      buffer.position(buffer.position() + length);
+    }
+    return buffer.position();
+  }
+
+  /*
+   * Encodes changes as a record: the length of the payload, its CRC32 and the
+   * payload, which holds the number of changes and then each key with the
+   * length of its value, -1 for a deleted key, and the value.
+   */
+  private static ByteBuffer encode(Map<String, byte[]> changes) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(payload);
+    out.writeInt(changes.size());
+    for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+      out.writeUTF(change.getKey());
+      byte[] value = change.getValue();
+      if (value == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(value.length);
+        out.write(value);
+      }
+    }
+    out.flush();
+    byte[] bytes = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+    record.putInt(bytes.length);
+    record.putLong(crc.getValue());
+    record.put(bytes);
+    record.flip();
+    return record;
+  }
+
+  private static Map<String, byte[]> decode(byte[] records, int offset, int length)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(records, offset, length));
+    Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+    try {
+      for (int count = in.readInt(); count > 0; count--) {
+        String key = in.readUTF();
+        int valueLength = in.readInt();
+        byte[] value = null;
+        if (valueLength >= 0) {
+          value = new byte[valueLength];
+          in.readFully(value);
+        }
+        changes.put(key, value);
+      }
+    } catch (EOFException e) {
+      // The checksum matched, so the record was written this way
+      throw new IOException("Malformed record", e);
+    }
+    return changes;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static byte[] serialize(Serializable value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Writing to memory doesn't fail unless the value isn't serializable
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static Object deserialize(byte[] value) {
+    try {
+      return new ObjectInputStream(new ByteArrayInputStream(value)).readObject();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,1471 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.LocalKeyValueStore.Batch;
+import com.google.appinventor.server.storage.StoredData.PWData;
+import com.google.appinventor.server.util.EmbeddedZipOutputStream;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implements the StorageIo interface with files in a local directory, for
+ * servers that don't run on App Engine.
+ *
+ * <p>The metadata of users and projects is kept in a {@link LocalKeyValueStore}
+ * under the "metadata" directory, and the contents of files in a
+ * {@link LocalContentStore} under the "contents" directory. A content is
+ * stored before the metadata referencing it, so a crash leaves at worst an
+ * unreferenced content, and the contents no longer referenced are removed
+ * when the storage is opened.
+ *
+ * <p>Changes to the metadata are made under the lock of the metadata store,
+ * which makes each method atomic on a single server. The directory must not
+ * be shared by several servers.
+ *
+ * <p>The whitelist, used when use.whitelist is true, is read from the
+ * "whitelist" file of the directory, which holds one email address per line.
+ */
+public class LocalStorageIo implements StorageIo {
+  private static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+
+  private static final Logger LOG = Logger.getLogger(LocalStorageIo.class.getName());
+
+  private static final String DEFAULT_ENCODING = "UTF-8";
+
+  private static final long NONCE_LIFETIME = 3 * 3600 * 1000L;   // 3 hours in milliseconds
+  private static final long PWDATA_LIFETIME = 24 * 3600 * 1000L; // 24 hours in milliseconds
+
+  private static final String TEMP_FILE_PREFIX = "__TEMP__/";
+
+  // Keys of the metadata store
+  private static final String USER = "user/";
+  private static final String EMAIL = "email/";
+  private static final String PROJECT = "project/";
+  private static final String USER_PROJECT = "userproject/";
+  private static final String FILE = "file/";
+  private static final String USER_FILE = "userfile/";
+  private static final String NONCE = "nonce/";
+  private static final String PWDATA = "pwdata/";
+  private static final String RENDEZVOUS = "rendezvous/";
+  private static final String BACKPACK = "backpack/";
+  private static final String FEEDBACK = "feedback/";
+  private static final String CORRUPTION = "corruption/";
+  private static final String LAST_PROJECT_ID = "lastprojectid";
+
+  private final File dir;
+  private final File tempDir;
+  private final LocalKeyValueStore store;
+  private final LocalContentStore contents;
+
+  // Build progress isn't worth keeping across restarts
+  private final Map<String, Integer> buildStatus = new ConcurrentHashMap<String, Integer>();
+
+  private static final class UserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String id;
+    String email;
+    String name;
+    String link;
+    int emailFrequency;
+    boolean tosAccepted;
+    boolean isAdmin;
+    int type;
+    String sessionId;
+    String password;
+    String settings;
+    Date visited;
+  }
+
+  private static final class ProjectRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String name;
+    String type;
+    String settings;
+    String history;
+    long dateCreated;
+    long dateModified;
+    long galleryId;
+    long attributionId;
+    boolean movedToTrash;
+  }
+
+  private static final class FileRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String fileName;
+    boolean isSource;
+    String userId;
+    String contentHash;  // null until the file has content
+    long size;
+  }
+
+  private static final class UserFileRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String fileName;
+    String contentHash;  // null until the file has content
+  }
+
+  private static final class NonceRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String nonce;
+    String userId;
+    long projectId;
+    Date timestamp;
+  }
+
+  private static final class PWRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String id;
+    String email;
+    Date timestamp;
+  }
+
+  private static final class FeedbackRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String notes;
+    String foundIn;
+    String faultData;
+    String comments;
+    String datestamp;
+    String email;
+    String projectId;
+  }
+
+  private static final class CorruptionRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    Date timestamp;
+    String userId;
+    long projectId;
+    String fileId;
+    String message;
+  }
+
+  // A change to a record, made under the lock of the metadata store
+  private interface Update<T> {
+    void apply(T record);
+  }
+
+  /**
+   * Opens the storage kept in a directory, which is created if needed.
+   *
+   * @param dir  the directory
+   */
+  public LocalStorageIo(File dir) {
+    this.dir = dir;
+    tempDir = new File(dir, "temp");
+    try {
+      store = new LocalKeyValueStore(new File(dir, "metadata"));
+      contents = new LocalContentStore(new File(dir, "contents"));
+      if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+        throw new IOException("Unable to create " + tempDir);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Opening storage in " + dir, e);
+    }
+    removeUnusedContents();
+  }
+
+  /*
+   * Removes the contents that were replaced, or whose files were deleted, since the storage was
+   * last opened.
+   */
+  private void removeUnusedContents() {
+    Set<String> hashes = new HashSet<String>();
+    for (FileRecord fr : store.<FileRecord>getAll(FILE)) {
+      hashes.add(fr.contentHash);
+    }
+    for (UserFileRecord ufr : store.<UserFileRecord>getAll(USER_FILE)) {
+      hashes.add(ufr.contentHash);
+    }
+    int removed = contents.retainAll(hashes);
+    if (removed > 0) {
+      LOG.info("Removed " + removed + " unused file contents");
+    }
+  }
+
+  // User management
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    User user = new User(userId, email, null, null, 0, false, false, 0, null);
+    UserRecord ur;
+    synchronized (store) {
+      Batch batch = new Batch();
+      ur = store.get(userKey(userId));
+      if (ur == null) {
+        if (email != null) {
+          ur = findUserRecordByEmail(email);
+          if (ur != null) {
+            LOG.info("Found based on email, userId = " + ur.id);
+            user.setUserId(ur.id);
+          }
+        }
+        if (ur == null) {
+          ur = createUser(batch, userId, email);
+        }
+      } else if (email != null && !email.equals(ur.email)) {
+        setEmail(batch, ur, email);
+      }
+      if (ur.name == null) {
+        ur.name = User.getDefaultName(ur.email);
+        batch.put(userKey(ur.id), ur);
+      }
+      write(batch, collectUserErrorInfo(userId));
+    }
+    user.setUserEmail(ur.email);
+    user.setUserName(ur.name);
+    user.setUserLink(ur.link);
+    user.setUserEmailFrequency(ur.emailFrequency);
+    user.setType(ur.type);
+    user.setUserTosAccepted(ur.tosAccepted || !requireTos.get());
+    user.setIsAdmin(ur.isAdmin);
+    user.setSessionId(ur.sessionId);
+    user.setPassword(ur.password);
+    return user;
+  }
+
+  @Override
+  public User getUserFromEmail(String email) {
+    UserRecord ur;
+    synchronized (store) {
+      ur = findUserRecordByEmail(email);
+      if (ur == null) {
+        Batch batch = new Batch();
+        ur = createUser(batch, UUID.randomUUID().toString(), email);
+        write(batch, collectUserErrorInfo(ur.id));
+      }
+    }
+    User user = new User(ur.id, email, ur.name, ur.link, 0, ur.tosAccepted, false, ur.type,
+        ur.sessionId);
+    user.setPassword(ur.password);
+    return user;
+  }
+
+  private UserRecord createUser(Batch batch, String userId, String email) {
+    UserRecord ur = new UserRecord();
+    ur.id = userId;
+    ur.settings = "";
+    ur.name = User.getDefaultName(email);
+    ur.type = User.USER;
+    ur.link = "";
+    ur.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+    ur.email = "";
+    setEmail(batch, ur, email == null ? "" : email);
+    return ur;
+  }
+
+  /*
+   * Changes the email address of a user, keeping the index of users by email address current.
+   */
+  private void setEmail(Batch batch, UserRecord ur, String email) {
+    String oldKey = emailKey(ur.email);
+    if (ur.id.equals(store.get(oldKey))) {
+      batch.delete(oldKey);
+    }
+    ur.email = email;
+    batch.put(userKey(ur.id), ur);
+    if (!email.equals("")) {
+      batch.put(emailKey(email), ur.id);
+    }
+  }
+
+  private UserRecord findUserRecordByEmail(String email) {
+    String userId = store.get(emailKey(email));
+    return userId == null ? null : store.<UserRecord>get(userKey(userId));
+  }
+
+  @Override
+  public void setUserEmail(String userId, String inputemail) {
+    String email = inputemail.toLowerCase();
+    synchronized (store) {
+      UserRecord ur = store.get(userKey(userId));
+      if (ur != null) {
+        Batch batch = new Batch();
+        setEmail(batch, ur, email);
+        write(batch, collectUserErrorInfo(userId));
+      }
+    }
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.tosAccepted = true;
+      }
+    });
+  }
+
+  @Override
+  public void setUserSessionId(String userId, final String sessionId) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.sessionId = sessionId;
+      }
+    });
+  }
+
+  @Override
+  public void setUserPassword(String userId, final String password) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.password = password;
+      }
+    });
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    UserRecord ur = store.get(userKey(userId));
+    return ur == null ? "" : ur.settings;
+  }
+
+  @Override
+  public void setUserName(String userId, final String name) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.name = name;
+      }
+    });
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    UserRecord ur = store.get(userKey(userId));
+    return ur == null ? "unknown" : ur.name;
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    UserRecord ur = store.get(userKey(userId));
+    return ur == null ? "unknown" : ur.link;
+  }
+
+  @Override
+  public void setUserLink(String userId, final String link) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.link = link;
+      }
+    });
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    UserRecord ur = store.get(userKey(userId));
+    return ur == null ? User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY : ur.emailFrequency;
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, final int emailFrequency) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.emailFrequency = emailFrequency;
+      }
+    });
+  }
+
+  @Override
+  public void storeSettings(String userId, final String settings) {
+    updateUser(userId, new Update<UserRecord>() {
+      @Override
+      public void apply(UserRecord ur) {
+        ur.settings = settings;
+      }
+    });
+  }
+
+  private void updateUser(String userId, Update<UserRecord> update) {
+    update(userKey(userId), update, collectUserErrorInfo(userId));
+  }
+
+  // Project management
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    // Store the contents first, so that the project never references a missing content
+    List<FileRecord> files = new ArrayList<FileRecord>();
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        files.add(createFile(userId, file.getFileName(),
+            file.getContent().getBytes(DEFAULT_ENCODING)));
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        files.add(createFile(userId, file.getFileName(), file.getContent()));
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+
+    synchronized (store) {
+      Long lastProjectId = store.get(LAST_PROJECT_ID);
+      long projectId = (lastProjectId == null ? 0 : lastProjectId) + 1;
+      long date = System.currentTimeMillis();
+      ProjectRecord pr = new ProjectRecord();
+      pr.dateCreated = date;
+      pr.dateModified = date;
+      pr.history = project.getProjectHistory();
+      pr.name = project.getProjectName();
+      pr.settings = projectSettings;
+      pr.type = project.getProjectType();
+      pr.galleryId = UserProject.NOTPUBLISHED;
+      pr.attributionId = UserProject.FROMSCRATCH;
+
+      Batch batch = new Batch()
+          .put(LAST_PROJECT_ID, projectId)
+          .put(projectKey(projectId), pr)
+          .put(userProjectKey(userId, projectId), projectId);
+      for (FileRecord fr : files) {
+        batch.put(fileKey(projectId, fr.fileName), fr);
+      }
+      write(batch, collectUserProjectErrorInfo(userId, projectId));
+      return projectId;
+    }
+  }
+
+  private FileRecord createFile(String userId, String fileName, byte[] content)
+      throws IOException {
+    FileRecord fr = new FileRecord();
+    fr.fileName = fileName;
+    fr.isSource = true;
+    fr.userId = userId;
+    fr.contentHash = contents.put(content);
+    fr.size = content.length;
+    return fr;
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    synchronized (store) {
+      Batch batch = new Batch()
+          .delete(userProjectKey(userId, projectId))
+          .delete(projectKey(projectId));
+      for (String key : store.getKeys(filePrefix(projectId))) {
+        batch.delete(key);
+      }
+      write(batch, collectUserProjectErrorInfo(userId, projectId));
+    }
+  }
+
+  @Override
+  public void setMoveToTrashFlag(String userId, long projectId, final boolean flag) {
+    updateProject(userId, projectId, new Update<ProjectRecord>() {
+      @Override
+      public void apply(ProjectRecord pr) {
+        pr.movedToTrash = flag;
+      }
+    });
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    return store.getAll(USER_PROJECT + userId + "/");
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, final long galleryId) {
+    updateProject(userId, projectId, new Update<ProjectRecord>() {
+      @Override
+      public void apply(ProjectRecord pr) {
+        pr.galleryId = galleryId;
+      }
+    });
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, final long attributionId) {
+    updateProject(userId, projectId, new Update<ProjectRecord>() {
+      @Override
+      public void apply(ProjectRecord pr) {
+        pr.attributionId = attributionId;
+      }
+    });
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? "" : pr.settings;
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, final String settings) {
+    updateProject(userId, projectId, new Update<ProjectRecord>() {
+      @Override
+      public void apply(ProjectRecord pr) {
+        pr.settings = settings;
+      }
+    });
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    // We only have one project type, no need to ask about it
+    return YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE;
+  }
+
+  @Override
+  public UserProject getUserProject(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? null : createUserProject(projectId, pr);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    List<UserProject> userProjects = new ArrayList<UserProject>(projectIds.size());
+    for (long projectId : projectIds) {
+      ProjectRecord pr = store.get(projectKey(projectId));
+      if (pr != null) {
+        userProjects.add(createUserProject(projectId, pr));
+      }
+    }
+    return userProjects;
+  }
+
+  private static UserProject createUserProject(long projectId, ProjectRecord pr) {
+    return new UserProject(projectId, pr.name, pr.type, pr.dateCreated, pr.dateModified,
+        pr.galleryId, pr.attributionId, pr.movedToTrash);
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? "" : pr.name;
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? UserProject.NOTPUBLISHED : pr.dateModified;
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? "" : pr.history;
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? UserProject.NOTPUBLISHED : pr.dateCreated;
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? UserProject.NOTPUBLISHED : pr.galleryId;
+  }
+
+  @Override
+  public long getProjectAttributionId(long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    return pr == null ? UserProject.FROMSCRATCH : pr.attributionId;
+  }
+
+  private void updateProject(String userId, long projectId, Update<ProjectRecord> update) {
+    update(projectKey(projectId), update, collectUserProjectErrorInfo(userId, projectId));
+  }
+
+  /*
+   * Updates the modification date of a project in a batch, unless it changed less than a
+   * minute ago, and returns the new or unchanged date.
+   */
+  private long updateProjectModDate(Batch batch, long projectId) {
+    ProjectRecord pr = store.get(projectKey(projectId));
+    if (pr == null) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    long modDate = System.currentTimeMillis();
+    if (modDate > pr.dateModified + 1000 * 60) {
+      pr.dateModified = modDate;
+      batch.put(projectKey(projectId), pr);
+    }
+    return pr.dateModified;
+  }
+
+  // Non-project-specific file management
+
+  @Override
+  public void addFilesToUser(String userId, String... fileNames) {
+    synchronized (store) {
+      Batch batch = new Batch();
+      for (String fileName : fileNames) {
+        String key = userFileKey(userId, fileName);
+        if (store.get(key) == null) {
+          UserFileRecord ufr = new UserFileRecord();
+          ufr.fileName = fileName;
+          batch.put(key, ufr);
+        }
+      }
+      write(batch, collectUserErrorInfo(userId, fileNames[0]));
+    }
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    List<String> fileNames = new ArrayList<String>();
+    for (UserFileRecord ufr : store.<UserFileRecord>getAll(USER_FILE + userId + "/")) {
+      fileNames.add(ufr.fileName);
+    }
+    return fileNames;
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileName, String content, String encoding) {
+    try {
+      uploadRawUserFile(userId, fileName, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  /*
+   * An empty backpack isn't stored, because it is what downloading a missing backpack returns.
+   */
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    String key = userFileKey(userId, fileName);
+    if (fileName.equals(StorageUtil.USER_BACKPACK_FILENAME)
+        && Arrays.equals(content, "[]".getBytes(Charsets.UTF_8))) {
+      synchronized (store) {
+        if (store.get(key) != null) {
+          write(new Batch().delete(key), collectUserErrorInfo(userId, fileName));
+        }
+      }
+      return;
+    }
+    UserFileRecord ufr = new UserFileRecord();
+    ufr.fileName = fileName;
+    try {
+      ufr.contentHash = contents.put(content);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName), e);
+    }
+    write(new Batch().put(key, ufr), collectUserErrorInfo(userId, fileName));
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawUserFile(userId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    UserFileRecord ufr = store.get(userFileKey(userId, fileName));
+    if (ufr == null) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName),
+          new FileNotFoundException(fileName));
+    }
+    return readContent(ufr.contentHash, collectUserErrorInfo(userId, fileName));
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileName) {
+    synchronized (store) {
+      String key = userFileKey(userId, fileName);
+      if (store.get(key) != null) {
+        write(new Batch().delete(key), collectUserErrorInfo(userId, fileName));
+      }
+    }
+  }
+
+  // File management
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    addFilesToProject(userId, projectId, true, changeModDate, fileNames);
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileNames) {
+    addFilesToProject(userId, projectId, false, false, fileNames);
+  }
+
+  private void addFilesToProject(String userId, long projectId, boolean isSource,
+      boolean changeModDate, String... fileNames) {
+    synchronized (store) {
+      Batch batch = new Batch();
+      for (String fileName : fileNames) {
+        FileRecord fr = store.get(fileKey(projectId, fileName));
+        if (fr == null) {
+          fr = new FileRecord();
+          fr.fileName = fileName;
+          fr.isSource = isSource;
+          fr.userId = userId;
+          batch.put(fileKey(projectId, fileName), fr);
+        } else {
+          checkRole(fr, projectId, isSource);
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(batch, projectId);
+      }
+      write(batch, collectProjectErrorInfo(userId, projectId, fileNames[0]));
+    }
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId,
+      boolean changeModDate, String... fileNames) {
+    removeFilesFromProject(userId, projectId, true, changeModDate, fileNames);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileNames) {
+    removeFilesFromProject(userId, projectId, false, false, fileNames);
+  }
+
+  private void removeFilesFromProject(String userId, long projectId, boolean isSource,
+      boolean changeModDate, String... fileNames) {
+    synchronized (store) {
+      Batch batch = new Batch();
+      for (String fileName : fileNames) {
+        FileRecord fr = store.get(fileKey(projectId, fileName));
+        if (fr != null) {
+          checkRole(fr, projectId, isSource);
+          batch.delete(fileKey(projectId, fileName));
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(batch, projectId);
+      }
+      write(batch, collectProjectErrorInfo(userId, projectId, fileNames[0]));
+    }
+  }
+
+  private static void checkRole(FileRecord fr, long projectId, boolean isSource) {
+    if (fr.isSource != isSource) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectId, fr.fileName),
+          new IllegalStateException("File role change is not supported"));
+    }
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    return getProjectFiles(projectId, true);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    return getProjectFiles(projectId, false);
+  }
+
+  private List<String> getProjectFiles(long projectId, boolean isSource) {
+    List<String> fileNames = new ArrayList<String>();
+    for (FileRecord fr : store.<FileRecord>getAll(filePrefix(projectId))) {
+      if (fr.isSource == isSource) {
+        fileNames.add(fr.fileName);
+      }
+    }
+    return fileNames;
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileName, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    try {
+      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileName, String userId, String content,
+      String encoding) {
+    try {
+      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFilesForce(long projectId, List<String> fileNames, String userId,
+      List<String> fileContents, String encoding) {
+    Preconditions.checkArgument(fileNames.size() == fileContents.size());
+    List<String> hashes = new ArrayList<String>(fileContents.size());
+    List<Integer> sizes = new ArrayList<Integer>(fileContents.size());
+    try {
+      for (String content : fileContents) {
+        byte[] bytes = content.getBytes(encoding);
+        hashes.add(contents.put(bytes));
+        sizes.add(bytes.length);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileNames.toString()), e);
+    }
+    synchronized (store) {
+      Batch batch = new Batch();
+      for (int i = 0; i < fileNames.size(); i++) {
+        try {
+          updateFile(batch, projectId, fileNames.get(i), userId, true, hashes.get(i),
+              sizes.get(i));
+        } catch (BlocksTruncatedException e) {
+          // Won't get here, exception isn't thrown when force is true
+        }
+      }
+      long modTime = updateProjectModDate(batch, projectId);
+      write(batch, collectProjectErrorInfo(userId, projectId, fileNames.toString()));
+      return modTime;
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileName, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    String hash;
+    try {
+      hash = contents.put(content);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    synchronized (store) {
+      Batch batch = new Batch();
+      updateFile(batch, projectId, fileName, userId, force, hash, content.length);
+      long modTime = updateProjectModDate(batch, projectId);
+      write(batch, collectProjectErrorInfo(userId, projectId, fileName));
+      return modTime;
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileName, String userId,
+      byte[] content) {
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  /*
+   * Points a file of a project to a stored content, in a batch. The file must exist, except for
+   * .yail and .png files, which are created.
+   */
+  private void updateFile(Batch batch, long projectId, String fileName, String userId,
+      boolean force, String hash, long size) throws BlocksTruncatedException {
+    FileRecord fr = store.get(fileKey(projectId, fileName));
+    // <Screen>.yail files are missing when user converts AI1 project to AI2
+    // instead of blowing up, just create a <Screen>.yail file
+    if (fr == null && (fileName.endsWith(".yail") || fileName.endsWith(".png"))) {
+      fr = new FileRecord();
+      fr.fileName = fileName;
+      fr.isSource = true;
+      fr.userId = userId;
+    }
+    Preconditions.checkState(fr != null);
+    checkOwner(fr, userId, projectId);
+    // Likely this is an empty blocks workspace, which replaces blocks only if forced
+    if (size < 125 && fileName.endsWith(".bky") && !force && fr.size > 120) {
+      throw new BlocksTruncatedException();
+    }
+    fr.contentHash = hash;
+    fr.size = size;
+    batch.put(fileKey(projectId, fileName), fr);
+  }
+
+  private static void checkOwner(FileRecord fr, String userId, long projectId) {
+    if (!Strings.isNullOrEmpty(fr.userId) && !fr.userId.equals(userId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileName) {
+    synchronized (store) {
+      FileRecord fr = store.get(fileKey(projectId, fileName));
+      if (fr != null) {
+        checkOwner(fr, userId, projectId);
+      }
+      Batch batch = new Batch().delete(fileKey(projectId, fileName));
+      long modTime = updateProjectModDate(batch, projectId);
+      write(batch, collectProjectErrorInfo(userId, projectId, fileName));
+      return modTime;
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public List<String> downloadFiles(String userId, long projectId, List<String> fileNames,
+      String encoding) {
+    List<String> fileContents = new ArrayList<String>(fileNames.size());
+    for (String fileName : fileNames) {
+      fileContents.add(downloadFile(userId, projectId, fileName, encoding));
+    }
+    return fileContents;
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    CorruptionRecord cr = new CorruptionRecord();
+    cr.timestamp = new Date();
+    cr.userId = userId;
+    cr.projectId = projectId;
+    cr.fileId = fileId;
+    cr.message = message;
+    write(new Batch().put(CORRUPTION + UUID.randomUUID(), cr),
+        collectProjectErrorInfo(userId, projectId, fileId));
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileName) {
+    FileRecord fr = store.get(fileKey(projectId, fileName));
+    if (fr == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName),
+          new FileNotFoundException("No data for " + fileName));
+    }
+    checkOwner(fr, userId, projectId);
+    return readContent(fr.contentHash, collectProjectErrorInfo(userId, projectId, fileName));
+  }
+
+  /*
+   * Reads a stored content. A file without content, whose creation was interrupted, is empty.
+   */
+  private byte[] readContent(String hash, String errorInfo) {
+    if (hash == null) {
+      return new byte[0];
+    }
+    try {
+      return contents.get(hash);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+    }
+  }
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    String uuid = UUID.randomUUID().toString();
+    OutputStream out = new FileOutputStream(new File(tempDir, uuid));
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return TEMP_FILE_PREFIX + uuid;
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    return new FileInputStream(getTempFile(fileName));
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    File file = getTempFile(fileName);
+    if (!file.delete()) {
+      throw new IOException("Unable to delete " + fileName);
+    }
+  }
+
+  private File getTempFile(String fileName) {
+    String uuid = fileName.startsWith(TEMP_FILE_PREFIX)
+        ? fileName.substring(TEMP_FILE_PREFIX.length()) : "";
+    if (uuid.isEmpty() || uuid.contains("/") || uuid.contains("\\") || uuid.contains("..")) {
+      throw new RuntimeException("Temporary file (" + fileName + ") Invalid File Name");
+    }
+    return new File(tempDir, uuid);
+  }
+
+  // MOTD management
+
+  @Override
+  public Motd getCurrentMotd() {
+    return new Motd(1, "Hello!", "Welcome to App Inventor.");
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery, boolean fatalError)
+      throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    int fileCount = exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError, zipFile);
+    String projectName = getProjectName(userId, projectId);
+    if (zipName == null) {
+      zipName = projectName + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName);
+    return projectSourceZip;
+  }
+
+  /*
+   * The contents are copied from their files to the zip through memory mappings, without being
+   * read into the heap.
+   */
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, boolean includeYail,
+      boolean includeScreenShots, boolean forGallery, boolean fatalError, OutputStream stream)
+      throws IOException {
+    boolean forBuildserver = includeAndroidKeystore && includeYail;
+    List<FileRecord> files = store.getAll(filePrefix(projectId));
+    Map<String, Integer> screens = new HashMap<String, Integer>();
+    for (FileRecord fr : files) {
+      if (isScreenFile(fr.fileName)) {
+        String fileNameNoExt = fr.fileName.substring(0, fr.fileName.lastIndexOf("."));
+        Integer count = screens.get(fileNameNoExt);
+        screens.put(fileNameNoExt, count == null ? 1 : count + 1);
+      }
+    }
+    Iterator<FileRecord> it = files.iterator();
+    while (it.hasNext()) {
+      FileRecord fr = it.next();
+      String fileName = fr.fileName;
+      if (fileName.startsWith("assets/external_comps") && forGallery) {
+        throw new IOException("FATAL Error, external component in gallery app");
+      }
+      if (!fr.isSource) {
+        it.remove();
+      } else if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH) ||
+          (fileName.startsWith("screenshots") && !includeScreenShots) ||
+          (fileName.startsWith("src/") && fileName.endsWith(".yail") && !includeYail)) {
+        // Legacy remix history, screenshots unless asked and YAIL unless asked aren't exported
+        it.remove();
+      } else if (forBuildserver && isScreenFile(fileName)) {
+        String fileNameNoExt = fileName.substring(0, fileName.lastIndexOf("."));
+        if (screens.get(fileNameNoExt) < 3) {
+          LOG.log(Level.INFO, "Not adding file to build " + fileName);
+          it.remove();
+          if (fileName.endsWith(".yail")) {
+            deleteFile(userId, projectId, fileName);
+          }
+        }
+      }
+    }
+    String projectHistory = null;
+    if (includeProjectHistory && !files.isEmpty()) {
+      projectHistory = Strings.emptyToNull(getProjectHistory(userId, projectId));
+    }
+    if (files.isEmpty() && projectHistory == null) {
+      // Nothing has been written to the stream yet
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    EmbeddedZipOutputStream out = new EmbeddedZipOutputStream(stream);
+    out.setComment("Built with MIT App Inventor");
+    try {
+      int fileCount = 0;
+      for (FileRecord fr : files) {
+        out.putNextEntry(new ZipEntry(fr.fileName));
+        if (fr.contentHash != null) {
+          try {
+            contents.copyTo(fr.contentHash, out);
+          } catch (FileNotFoundException e) {
+            LOG.log(Level.WARNING, "Missing content for " + fr.fileName, e);
+            if (fatalError) {
+              throw new IOException("FATAL Error reading file " + fr.fileName, e);
+            }
+          }
+        }
+        out.closeEntry();
+        fileCount++;
+      }
+      if (projectHistory != null) {
+        byte[] data = projectHistory.getBytes(StorageUtil.DEFAULT_CHARSET);
+        out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+        out.write(data, 0, data.length);
+        out.closeEntry();
+        fileCount++;
+      }
+      if (includeAndroidKeystore) {
+        UserFileRecord ufr =
+            store.get(userFileKey(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        if (ufr != null) {
+          byte[] data = readContent(ufr.contentHash, collectProjectErrorInfo(userId, projectId,
+              StorageUtil.ANDROID_KEYSTORE_FILENAME));
+          if (data.length > 0) {
+            out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+            out.write(data, 0, data.length);
+            out.closeEntry();
+            fileCount++;
+          }
+        }
+      }
+      // Finish the zip without closing the stream, which may hold other entries
+      out.finish();
+      return fileCount;
+    } finally {
+      out.end();
+    }
+  }
+
+  private static boolean isScreenFile(String fileName) {
+    return fileName.startsWith("src/") && (fileName.endsWith(".scm")
+        || fileName.endsWith(".bky") || fileName.endsWith(".yail"));
+  }
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    String userId = store.get(emailKey(email));
+    if (userId == null) {
+      throw new NoSuchElementException("Couldn't find a user with email " + email);
+    }
+    return userId;
+  }
+
+  @Override
+  public String findIpAddressByKey(String key) {
+    return store.get(RENDEZVOUS + key);
+  }
+
+  @Override
+  public void storeIpAddressByKey(String key, String ipAddress) {
+    write(new Batch().put(RENDEZVOUS + key, ipAddress), "rendezvous key=" + key);
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    File whiteList = new File(dir, "whitelist");
+    if (!whiteList.exists()) {
+      return false;
+    }
+    try {
+      for (String line : Files.readAllLines(whiteList.toPath(), Charsets.UTF_8)) {
+        if (line.trim().equalsIgnoreCase(email)) {
+          return true;
+        }
+      }
+      return false;
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Reading " + whiteList, e);
+    }
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    FeedbackRecord fr = new FeedbackRecord();
+    fr.notes = notes;
+    fr.foundIn = foundIn;
+    fr.faultData = faultData;
+    fr.comments = comments;
+    fr.datestamp = datestamp;
+    fr.email = email;
+    fr.projectId = projectId;
+    write(new Batch().put(FEEDBACK + UUID.randomUUID(), fr), null);
+  }
+
+  // Nonce Management Routines.
+  // The Nonce is used to map to userId and ProjectId and is used
+  // for non-authenticated access to a built APK file.
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    NonceRecord nr = store.get(NONCE + nonceValue);
+    return nr == null ? null : new Nonce(nonceValue, nr.userId, nr.projectId, nr.timestamp);
+  }
+
+  @Override
+  public void storeNonce(String nonceValue, String userId, long projectId) {
+    NonceRecord nr = new NonceRecord();
+    nr.nonce = nonceValue;
+    nr.userId = userId;
+    nr.projectId = projectId;
+    nr.timestamp = new Date();
+    write(new Batch().put(NONCE + nonceValue, nr), collectUserProjectErrorInfo(userId, projectId));
+  }
+
+  // Cleanup expired nonces which are older then 3 hours. Normal Nonce lifetime
+  // is 2 hours. So for one hour they persist and return "link expired" instead of
+  // "link not found" (after the object itself is removed).
+  @Override
+  public void cleanupNonces() {
+    long expired = System.currentTimeMillis() - NONCE_LIFETIME;
+    synchronized (store) {
+      Batch batch = new Batch();
+      for (NonceRecord nr : store.<NonceRecord>getAll(NONCE)) {
+        if (nr.timestamp.getTime() < expired) {
+          batch.delete(NONCE + nr.nonce);
+        }
+      }
+      write(batch, null);
+    }
+  }
+
+  @Override
+  public void checkUpgrade(String userId) {
+    // Nothing to upgrade, files are always stored the same way
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+    // Nothing to upgrade, files are always stored the same way
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    return new SplashConfig(0, 350, 100, "<b>Welcome to MIT App Inventor</b>");
+  }
+
+  @Override
+  public PWData createPWData(String email) {
+    PWRecord pr = new PWRecord();
+    pr.id = UUID.randomUUID().toString();
+    pr.email = email;
+    pr.timestamp = new Date();
+    write(new Batch().put(PWDATA + pr.id, pr), null);
+    return createPWData(pr);
+  }
+
+  @Override
+  public PWData findPWData(String uid) {
+    PWRecord pr = store.get(PWDATA + uid);
+    return pr == null ? null : createPWData(pr);
+  }
+
+  private static PWData createPWData(PWRecord pr) {
+    PWData pwData = new PWData();
+    pwData.id = pr.id;
+    pwData.email = pr.email;
+    pwData.timestamp = pr.timestamp;
+    return pwData;
+  }
+
+  // Remove the PWData older than 24 hours
+  @Override
+  public void cleanuppwdata() {
+    long expired = System.currentTimeMillis() - PWDATA_LIFETIME;
+    synchronized (store) {
+      Batch batch = new Batch();
+      for (PWRecord pr : store.<PWRecord>getAll(PWDATA)) {
+        if (pr.timestamp.getTime() < expired) {
+          batch.delete(PWDATA + pr.id);
+        }
+      }
+      write(batch, null);
+    }
+  }
+
+  // The routines below are part of the user admin interface. Called from AdminInfoServiceImpl
+
+  @Override
+  public List<AdminUser> searchUsers(String partialEmail) {
+    List<AdminUser> users = new ArrayList<AdminUser>();
+    List<String> userIds = store.getAll(EMAIL, emailKey(partialEmail), 21);
+    for (String userId : userIds) {
+      UserRecord ur = store.get(userKey(userId));
+      if (ur != null) {
+        users.add(new AdminUser(ur.id, ur.name, ur.email, ur.tosAccepted, ur.isAdmin,
+            ur.type == User.MODERATOR, ur.visited));
+      }
+    }
+    return users;
+  }
+
+  @Override
+  public void storeUser(AdminUser user) throws AdminInterfaceException {
+    synchronized (store) {
+      Batch batch = new Batch();
+      UserRecord ur = null;
+      if (user.getId() != null) {
+        ur = store.get(userKey(user.getId()));
+      }
+      if (ur == null) {             // New User
+        if (store.get(emailKey(user.getEmail())) != null) {
+          throw new AdminInterfaceException("User Already exists = " + user.getEmail());
+        }
+        ur = createUser(batch, UUID.randomUUID().toString(), user.getEmail());
+      } else {
+        setEmail(batch, ur, user.getEmail());
+      }
+      String password = user.getPassword();
+      if (password != null && !password.equals("")) {
+        ur.password = password;
+      }
+      ur.isAdmin = user.getIsAdmin();
+      ur.type = user.getIsModerator() ? User.MODERATOR : User.USER;
+      batch.put(userKey(ur.id), ur);
+      write(batch, collectUserErrorInfo(ur.id));
+    }
+  }
+
+  @Override
+  public String downloadBackpack(String backPackId) {
+    String content = store.get(BACKPACK + backPackId);
+    return content == null ? "[]" : content;  // No shared backpack, return an empty backpack
+  }
+
+  @Override
+  public void uploadBackpack(String backPackId, String content) {
+    write(new Batch().put(BACKPACK + backPackId, content), null);
+  }
+
+  @Override
+  public void storeBuildStatus(String userId, long projectId, int progress) {
+    buildStatus.put(userId + "/" + projectId, progress);
+  }
+
+  @Override
+  public int getBuildStatus(String userId, long projectId) {
+    Integer progress = buildStatus.get(userId + "/" + projectId);
+    return progress == null ? 50 : progress;
+  }
+
+  @Override
+  public void assertUserHasProject(String userId, long projectId) {
+    if (store.get(userProjectKey(userId, projectId)) == null) {
+      // User doesn't have the corresponding project.
+      throw new SecurityException("Unauthorized access");
+    }
+  }
+
+  private <T extends Serializable> void update(String key, Update<T> update, String errorInfo) {
+    synchronized (store) {
+      T record = store.get(key);
+      if (record != null) {
+        update.apply(record);
+        write(new Batch().put(key, record), errorInfo);
+      }
+    }
+  }
+
+  private void write(Batch batch, String errorInfo) {
+    try {
+      store.write(batch);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+    }
+  }
+
+  private static String userKey(String userId) {
+    return USER + userId;
+  }
+
+  private static String emailKey(String email) {
+    return EMAIL + email.toLowerCase();
+  }
+
+  private static String projectKey(long projectId) {
+    return PROJECT + projectId;
+  }
+
+  private static String userProjectKey(String userId, long projectId) {
+    return USER_PROJECT + userId + "/" + projectId;
+  }
+
+  private static String filePrefix(long projectId) {
+    return FILE + projectId + "/";
+  }
+
+  private static String fileKey(long projectId, String fileName) {
+    return filePrefix(projectId) + fileName;
+  }
+
+  private static String userFileKey(String userId, String fileName) {
+    return USER_FILE + userId + "/" + fileName;
+  }
+
+  private static String collectUserErrorInfo(final String userId) {
+    return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
+  }
+
+  private static String collectUserErrorInfo(final String userId, String fileName) {
+    return "user=" + userId + ", file=" + fileName;
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+
+  private static String collectUserProjectErrorInfo(final String userId, final long projectId) {
+    return "user=" + userId + ", project=" + projectId;
+  }
+}
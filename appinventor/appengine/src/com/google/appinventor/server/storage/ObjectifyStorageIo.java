@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
@@ -39,6 +40,7 @@ import com.google.appinventor.server.storage.StoredData.UserFileData;
 import com.google.appinventor.server.storage.StoredData.UserProjectData;
 import com.google.appinventor.server.storage.StoredData.RendezvousData;
 import com.google.appinventor.server.storage.StoredData.WhiteListData;
+import com.google.appinventor.server.util.EmbeddedZipOutputStream;
 import com.google.appinventor.shared.rpc.AdminInterfaceException;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.Motd;
@@ -56,9 +58,11 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
@@ -80,8 +84,10 @@ import com.google.appengine.tools.cloudstorage.RetryParams;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -90,10 +96,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 import java.util.Date;
 import java.util.UUID;
 
@@ -134,6 +145,14 @@ public class ObjectifyStorageIo implements  StorageIo {
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  // The number of files of a project read in parallel when exporting it. As many files are
+  // read ahead of the one being written.
+  private static final int EXPORT_PARALLEL_READS =
+      Math.max(1, Flag.createFlag("export.parallel.reads", 8).get());
+
+  // The size of the blocks prefetched when reading a file from GCS
+  private static final int GCS_PREFETCH_BLOCK_SIZE = 256 * 1024;
+
   // Use this class to define the work of a job that can be
   // retried. The "datastore" argument to run() is the Objectify
   // object for this job (created with
@@ -1569,12 +1588,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
 
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1591,88 +1605,8 @@ public class ObjectifyStorageIo implements  StorageIo {
               LOG.log(Level.INFO, "Fetched " + key.getString() + " from memcache.");
             }
           }
-
-          // <Screen>.yail files are missing when user converts AI1 project to AI2
-          // instead of blowing up, just create a <Screen>.yail file
-          if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
-            fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
-            fd.userId = userId;
-          }
-
-          Preconditions.checkState(fd != null);
-
-          if (fd.userId != null && !fd.userId.equals("")) {
-            if (!fd.userId.equals(userId)) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectUserProjectErrorInfo(userId, projectId),
-                new UnauthorizedAccessException(userId, projectId, null));
-            }
-          }
-
-          if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
-            if (!force) {            // force is true if we *really* want to save it!
-              checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
-            }
-          }
-
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstoreKey.t = fd.blobKey;
-          }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else {
-            if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
-              fd.isGCS = false;
-              fd.gcsName = null;
-            }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
-          }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
-            }
-          }
-          // Old file not marked with ownership, mark it now
-          if (fd.userId == null || fd.userId.equals("")) {
-            fd.userId = userId;
-          }
+          fd = updateFileData(datastore, fd, projectId, fileName, userId, force, content,
+              doingConversion, oldBlobstoreKey);
           datastore.put(fd);
           memcache.put(key.getString(), fd); // Store the updated data in memcache
           modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
@@ -1704,6 +1638,187 @@ public class ObjectifyStorageIo implements  StorageIo {
     return modTime.t;
   }
 
+  @Override
+  public long uploadFilesForce(final long projectId, final List<String> fileNames,
+      final String userId, final List<String> contents, final String encoding) {
+    Preconditions.checkArgument(fileNames.size() == contents.size());
+    validateGCS();
+    final List<byte[]> rawContents = new ArrayList<byte[]>(contents.size());
+    try {
+      for (String content : contents) {
+        rawContents.add(content.getBytes(encoding));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileNames.toString()), e);
+    }
+    final Result<Long> modTime = new Result<Long>();
+    final List<String> oldBlobstoreKeys = new ArrayList<String>();
+
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          oldBlobstoreKeys.clear();
+          Map<String, FileData> fileData = findFileData(datastore, projectId, fileNames);
+          Map<String, FileData> updatedFiles = new HashMap<String, FileData>();
+          for (int i = 0; i < fileNames.size(); i++) {
+            String fileName = fileNames.get(i);
+            Result<String> oldBlobstoreKey = new Result<String>();
+            FileData fd = updateFileData(datastore, fileData.get(fileName), projectId, fileName,
+                userId, true, rawContents.get(i), false, oldBlobstoreKey);
+            fileData.put(fileName, fd);
+            updatedFiles.put(projectFileKey(projectKey(projectId), fileName).getString(), fd);
+            if (oldBlobstoreKey.t != null) {
+              oldBlobstoreKeys.add(oldBlobstoreKey.t);
+            }
+          }
+          datastore.put(updatedFiles.values());  // batch put
+          memcache.putAll(updatedFiles); // Store the updated data in memcache
+          modTime.t = updateProjectModDate(datastore, projectId, false);
+        }
+      }, false);
+
+      // Deleted outside of the job, as in uploadRawFile
+      for (String oldBlobstoreKey : oldBlobstoreKeys) {
+        deleteBlobstoreFile(oldBlobstoreKey);
+      }
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileNames.toString()), e);
+    }
+    return modTime.t;
+  }
+
+  /*
+   * Looks up the entities of some files of a project, first in memcache and then, for the
+   * files missing there, with a single datastore batch get. Files that don't exist are
+   * missing from the result.
+   */
+  private Map<String, FileData> findFileData(Objectify datastore, long projectId,
+      List<String> fileNames) {
+    Map<String, Key<FileData>> keys = new HashMap<String, Key<FileData>>();
+    for (String fileName : fileNames) {
+      Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
+      keys.put(key.getString(), key);
+    }
+    Map<String, FileData> fileData = new HashMap<String, FileData>();
+    List<Key<FileData>> uncachedKeys = new ArrayList<Key<FileData>>();
+    Map<String, Object> cached = memcache.getAll(keys.keySet());
+    for (Map.Entry<String, Key<FileData>> entry : keys.entrySet()) {
+      FileData fd = (FileData) cached.get(entry.getKey());
+      if (fd == null) {
+        uncachedKeys.add(entry.getValue());
+      } else {
+        fileData.put(fd.fileName, fd);
+      }
+    }
+    if (!uncachedKeys.isEmpty()) {
+      for (FileData fd : datastore.get(uncachedKeys).values()) {  // batch get
+        fileData.put(fd.fileName, fd);
+      }
+    }
+    return fileData;
+  }
+
+  /*
+   * Stores the new content of a project file in its entity, which the caller puts, and returns
+   * the entity. The content is written to GCS when the file belongs there. The key of the
+   * blob previously holding the content, if any, is returned in oldBlobstoreKey.
+   */
+  private FileData updateFileData(Objectify datastore, FileData fd, long projectId,
+      String fileName, String userId, boolean force, byte[] content, boolean doingConversion,
+      Result<String> oldBlobstoreKey) throws ObjectifyException {
+    final boolean useGCS = useGCSforFile(fileName, content.length);
+    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
+      :false);
+
+    // <Screen>.yail files are missing when user converts AI1 project to AI2
+    // instead of blowing up, just create a <Screen>.yail file
+    if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
+      fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
+      fd.userId = userId;
+    }
+
+    Preconditions.checkState(fd != null);
+
+    if (fd.userId != null && !fd.userId.equals("")) {
+      if (!fd.userId.equals(userId)) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+      }
+    }
+
+    if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
+      if (!force) {            // force is true if we *really* want to save it!
+        checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
+      }
+    }
+
+    if (fd.isBlob) {
+      // mark the old blobstore blob for deletion
+     oldBlobstoreKey.t = fd.blobKey;
+    }
+    if (useGCS) {
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      try {
+        GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+      // If the content was previously stored in the datastore, clear it out.
+      fd.content = null;
+      fd.isBlob = false;  // in case we are converting from a blob
+      fd.blobstorePath = null;
+    } else {
+      if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
+        try {             // and is now stored in the data store
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+        }
+        fd.isGCS = false;
+        fd.gcsName = null;
+      }
+      // Note, Don't have to do anything if the file was in the
+      // Blobstore and shrank because the code above (3 lines
+      // into the function) already handles removing the old
+      // contents from the Blobstore.
+      fd.isBlob = false;
+      fd.blobstorePath = null;
+      fd.content = content;
+    }
+    if (considerBackup && !doingConversion) {
+      if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+        try {
+          String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
+          GcsOutputChannel outputChannel =
+              gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
+          outputChannel.write(ByteBuffer.wrap(content));
+          outputChannel.close();
+          fd.lastBackup = System.currentTimeMillis();
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
+        }
+      }
+    }
+    // Old file not marked with ownership, mark it now
+    if (fd.userId == null || fd.userId.equals("")) {
+      fd.userId = userId;
+    }
+    return fd;
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1824,7 +1939,6 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
     validateGCS();
-    final Result<byte[]> result = new Result<byte[]>();
     final Result<FileData> fd = new Result<FileData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1842,7 +1956,46 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
     // read the blob/GCS File outside of the job
-    FileData fileData = fd.t;
+    return readRawFile(userId, projectId, fileName, fd.t);
+  }
+
+  @Override
+  public List<String> downloadFiles(final String userId, final long projectId,
+      final List<String> fileNames, final String encoding) {
+    validateGCS();
+    final Result<Map<String, FileData>> fileData = new Result<Map<String, FileData>>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          fileData.t = findFileData(datastore, projectId, fileNames);
+        }
+      }, false); // Transaction not needed
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileNames.toString()), e);
+    }
+    // read the blob/GCS Files outside of the job
+    List<String> contents = new ArrayList<String>(fileNames.size());
+    for (String fileName : fileNames) {
+      byte[] content = readRawFile(userId, projectId, fileName, fileData.t.get(fileName));
+      try {
+        contents.add(new String(content, encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+            + collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    }
+    return contents;
+  }
+
+  /*
+   * Returns the content of a project file given its entity, reading it from GCS or the
+   * blobstore if it is stored there. This must be called outside of any transaction.
+   */
+  private byte[] readRawFile(String userId, long projectId, String fileName,
+      FileData fileData) {
+    final Result<byte[]> result = new Result<byte[]>();
     if (fileData != null) {
       if (fileData.userId != null && !fileData.userId.equals("")) {
         if (!fileData.userId.equals(userId)) {
@@ -2002,6 +2155,50 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        projectName, zipFile);
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    OutputStream out) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        new Result<String>(), out);
+  }
+
+  /*
+   * Writes project files as a zip archive to a stream, which is left open, and sets the name
+   * of the project. The contents of the files are read ahead of the zip writer, so that only
+   * the files being read are held in memory. Nothing is written if the project has no files to
+   * export.
+   */
+  private int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    final Result<String> projectName,
+    OutputStream stream) throws IOException {
     final boolean forBuildserver = includeAndroidKeystore && includeYail;
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
@@ -2013,221 +2210,273 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     final Map<String, Integer> screens = new HashMap<String, Integer>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+    final EmbeddedZipOutputStream out = new EmbeddedZipOutputStream(stream);
     out.setComment("Built with MIT App Inventor");
-
     try {
-      JobRetryHelper job = new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) throws IOException {
-          Key<ProjectData> projectKey = projectKey(projectId);
-          for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
-            fileData.add(fd);
-            String fileName = fd.fileName;
-            if (fileName.startsWith("src/") && (fileName.endsWith(".scm") || fileName.endsWith(".bky") || fileName.endsWith(".yail"))) {
-              String fileNameNoExt = fileName.substring(0, fileName.lastIndexOf("."));
-              int count = screens.containsKey(fileNameNoExt) ? screens.get(fileNameNoExt) + 1 : 1;
-              screens.put(fileNameNoExt, count);
-            }
-          }
-          Iterator<FileData> it = fileData.iterator();
-          while (it.hasNext()) {
-            FileData fd = it.next();
-            String fileName = fd.fileName;
-            if (fileName.startsWith("assets/external_comps") && forGallery) {
-              throw new IOException("FATAL Error, external component in gallery app");
+
+      ExecutorService fileReader = null;
+      try {
+        JobRetryHelper job = new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) throws IOException {
+            Key<ProjectData> projectKey = projectKey(projectId);
+            for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
+              fileData.add(fd);
+              String fileName = fd.fileName;
+              if (fileName.startsWith("src/") && (fileName.endsWith(".scm") || fileName.endsWith(".bky") || fileName.endsWith(".yail"))) {
+                String fileNameNoExt = fileName.substring(0, fileName.lastIndexOf("."));
+                int count = screens.containsKey(fileNameNoExt) ? screens.get(fileNameNoExt) + 1 : 1;
+                screens.put(fileNameNoExt, count);
+              }
             }
-            if (!fd.role.equals(FileData.RoleEnum.SOURCE)) {
-              it.remove();
-            } else if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH) ||
-                      (fileName.startsWith("screenshots") && !includeScreenShots) ||
-                      (fileName.startsWith("src/") && fileName.endsWith(".yail") && !includeYail)) {
-              // Skip legacy remix history files that were previous stored with the project
-              // only include screenshots if asked ...
-              // Don't include YAIL files when exporting projects
-              // includeYail will be set to true when we are exporting the source
-              // to send to the buildserver or when the person exporting
-              // a project is an Admin (for debugging).
-              // Otherwise Yail files are confusing cruft. In the case of
-              // the Firebase Component they may contain secrets which we would
-              // rather not have leak into an export .aia file or into the Gallery
-              it.remove();
-            } else if (forBuildserver && fileName.startsWith("src/") &&
-                (fileName.endsWith(".scm") || fileName.endsWith(".bky") || fileName.endsWith(".yail"))) {
-              String fileNameNoExt = fileName.substring(0, fileName.lastIndexOf("."));
-              if ((Integer)screens.get(fileNameNoExt) < 3) {
-                LOG.log(Level.INFO, "Not adding file to build ", fileName);
+            Iterator<FileData> it = fileData.iterator();
+            while (it.hasNext()) {
+              FileData fd = it.next();
+              String fileName = fd.fileName;
+              if (fileName.startsWith("assets/external_comps") && forGallery) {
+                throw new IOException("FATAL Error, external component in gallery app");
+              }
+              if (!fd.role.equals(FileData.RoleEnum.SOURCE)) {
                 it.remove();
-                if (fileName.endsWith(".yail")) {
-                  deleteFile(userId, projectId, fileName);
+              } else if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH) ||
+                        (fileName.startsWith("screenshots") && !includeScreenShots) ||
+                        (fileName.startsWith("src/") && fileName.endsWith(".yail") && !includeYail)) {
+                // Skip legacy remix history files that were previous stored with the project
+                // only include screenshots if asked ...
+                // Don't include YAIL files when exporting projects
+                // includeYail will be set to true when we are exporting the source
+                // to send to the buildserver or when the person exporting
+                // a project is an Admin (for debugging).
+                // Otherwise Yail files are confusing cruft. In the case of
+                // the Firebase Component they may contain secrets which we would
+                // rather not have leak into an export .aia file or into the Gallery
+                it.remove();
+              } else if (forBuildserver && fileName.startsWith("src/") &&
+                  (fileName.endsWith(".scm") || fileName.endsWith(".bky") || fileName.endsWith(".yail"))) {
+                String fileNameNoExt = fileName.substring(0, fileName.lastIndexOf("."));
+                if ((Integer)screens.get(fileNameNoExt) < 3) {
+                  LOG.log(Level.INFO, "Not adding file to build ", fileName);
+                  it.remove();
+                  if (fileName.endsWith(".yail")) {
+                    deleteFile(userId, projectId, fileName);
+                  }
                 }
               }
             }
-          }
-          if (fileData.size() > 0) {
-            ProjectData pd = datastore.find(projectKey);
-            projectName.t = pd.name;
-            if (includeProjectHistory && !Strings.isNullOrEmpty(pd.history)) {
-              projectHistory.t = pd.history;
+            if (fileData.size() > 0) {
+              ProjectData pd = datastore.find(projectKey);
+              projectName.t = pd.name;
+              if (includeProjectHistory && !Strings.isNullOrEmpty(pd.history)) {
+                projectHistory.t = pd.history;
+              }
             }
           }
+        };
+        runJobWithRetries(job, true);
+        IOException error = job.getIOException();
+        if (error != null) {
+          throw error;
+        }
+        if (fileData.isEmpty() && projectHistory.t == null) {
+          // Nothing has been written to the stream yet
+          throw new IllegalArgumentException("No files to download");
+        }
+
+        // Process the file contents outside of the job since we can't read
+        // blobs in the job. The next files are read in parallel while one is
+        // written, and written in order.
+        fileReader = createFileReader();
+        List<Future<byte[]>> contents = new ArrayList<Future<byte[]>>(fileData.size());
+        for (int i = 0; i < fileData.size(); i++) {
+          while (contents.size() < fileData.size()
+              && contents.size() <= i + EXPORT_PARALLEL_READS) {
+            contents.add(fileReader.submit(
+                readFileDataJob(userId, projectId, fileData.get(contents.size()), fatalError)));
+          }
+          fileName = fileData.get(i).fileName;
+          byte[] data = getFileData(contents.get(i));
+          contents.set(i, null);  // Let the content be collected once written
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount.t++;
+        }
+        if (projectHistory.t != null) {
+          byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
+          out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount.t++;
+        }
+      } catch (ObjectifyException e) {
+        CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+        throw new IOException("Reflecting exception for userid " + userId +
+            " projectId " + projectId + ", original exception " + e.getMessage());
+      } catch (IllegalArgumentException e) {
+        throw e;  // No files to download
+      } catch (RuntimeException e) {
+        CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+        throw new IOException("Reflecting exception for userid " + userId +
+            " projectId " + projectId + ", original exception " + e.getMessage());
+      } finally {
+        if (fileReader != null) {
+          fileReader.shutdownNow();
         }
-      };
-      runJobWithRetries(job, true);
-      IOException error = job.getIOException();
-      if (error != null) {
-        throw error;
       }
-      // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
-            }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else if (isTrue(fd.isGCS)) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
+
+      if (includeAndroidKeystore) {
+        try {
+          runJobWithRetries(new JobRetryHelper() {
+              @Override
+              public void run(Objectify datastore) {
                 try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
+                  Key<UserData> userKey = userKey(userId);
+                  for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
+                    if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
+                        (ufd.content.length > 0)) {
+                      out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+                      out.write(ufd.content, 0, ufd.content.length);
+                      out.closeEntry();
+                      fileCount.t++;
                     }
                   }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
+                } catch (IOException e) {
+                  throw CrashReport.createAndLogError(LOG, null,
+                      collectProjectErrorInfo(userId, projectId,
+                          StorageUtil.ANDROID_KEYSTORE_FILENAME), e);
                 }
               }
-            }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else {
-          data = fd.content;
+          }, false);
+        } catch (ObjectifyException e) {
+          throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
         }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
-        }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
-      }
-      if (projectHistory.t != null) {
-        byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
-        out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
       }
-    } catch (ObjectifyException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
-    } catch (RuntimeException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
+
+      // Finish the zip without closing the stream, which may hold other entries
+      out.finish();
+      return fileCount.t;
+    } finally {
+      out.end();
+    }
+  }
+
+  /*
+   * Returns an executor reading the contents of the files of a project. Reads run on up to
+   * EXPORT_PARALLEL_READS request threads when the request allows it, and in the calling thread
+   * otherwise, as in the tests.
+   */
+  private static ExecutorService createFileReader() {
+    ThreadFactory threadFactory = null;
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      threadFactory = ThreadManager.currentRequestThreadFactory();
+    }
+    if (threadFactory == null) {
+      return MoreExecutors.newDirectExecutorService();
     }
+    return Executors.newFixedThreadPool(EXPORT_PARALLEL_READS, threadFactory);
+  }
 
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
+  private Callable<byte[]> readFileDataJob(final String userId, final long projectId,
+      final FileData fd, final boolean fatalError) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return readFileData(userId, projectId, fd, fatalError);
+      }
+    };
+  }
+
+  /*
+   * Waits for the content of a file read by createFileReader, rethrowing the exception of the
+   * read if it failed.
+   */
+  private static byte[] getFileData(Future<byte[]> content) throws IOException {
+    try {
+      return content.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading a project file", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
     }
+  }
 
-    if (includeAndroidKeystore) {
+  /*
+   * Reads the content of a project file from wherever it is stored. This must be called
+   * outside of any transaction.
+   */
+  private byte[] readFileData(String userId, long projectId, FileData fd, boolean fatalError)
+      throws IOException {
+    String fileName = fd.fileName;
+    byte[] data = null;
+    if (fd.isBlob) {
       try {
-        runJobWithRetries(new JobRetryHelper() {
-            @Override
-            public void run(Objectify datastore) {
-              try {
-                Key<UserData> userKey = userKey(userId);
-                for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
-                  if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
-                      (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-                    out.write(ufd.content, 0, ufd.content.length);
-                    out.closeEntry();
-                    fileCount.t++;
-                  }
-                }
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId,
-                        StorageUtil.ANDROID_KEYSTORE_FILENAME), e);
-              }
+        if (fd.blobKey == null) {
+          throw new BlobReadException("blobKey is null");
+        }
+        data = getBlobstoreBytes(fd.blobKey);
+      } catch (BlobReadException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    } else if (isTrue(fd.isGCS)) {
+      try {
+        int count;
+        boolean npfHappened = false;
+        boolean recovered = false;
+        for (count = 0; count < 5; count++) {
+          GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+          // The channel is read to its end, which saves asking GCS for the size of the file
+          // first, and fetches the next block of the file while one is copied.
+          GcsInputChannel readChannel =
+              gcsService.openPrefetchingReadChannel(gcsFileName, 0, GCS_PREFETCH_BLOCK_SIZE);
+          try {
+            data = ByteStreams.toByteArray(Channels.newInputStream(readChannel));
+            recovered = true;
+            break;        // We got the data, break out of the loop!
+          } catch (FileNotFoundException e) {
+            // This happens if the object in GCS is non-existent, which would happen
+            // when people uploaded a zero length object. As of this change, we now
+            // store zero length objects into GCS, but there are plenty of older objects
+            // that are missing in GCS.
+            LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
+            npfHappened = true;
+            data = new byte[0];
+          } finally {
+            readChannel.close();
+          }
+        }
+
+        // report out on how things went above
+        if (npfHappened) {    // We lost at least once
+          if (recovered) {
+            LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
+              " count = " + count);
+          } else {
+            LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
+            if (fatalError) {
+              throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
             }
-        }, false);
-      } catch (ObjectifyException e) {
-        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+          }
+        }
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
       }
+    } else {
+      data = fd.content;
     }
-
-    out.close();
-
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+    if (data == null) {     // This happens if file creation is interrupted
+      data = new byte[0];
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    return data;
   }
 
   @Override
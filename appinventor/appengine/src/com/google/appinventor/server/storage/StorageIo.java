@@ -19,6 +19,7 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -476,6 +477,20 @@ public interface StorageIo {
    */
   long uploadFileForce(long projectId, String fileId, String userId, String content, String encoding);
 
+  /**
+   * Uploads several files of a project at once, writing their entities in a
+   * single batch and updating the modification date of the project once.
+   * This version uses "force" to write even a trivial workspace file.
+   * @param projectId  project ID
+   * @param fileIds  file IDs
+   * @param userId the user who owns the files
+   * @param contents  file contents, in the order of fileIds
+   * @param encoding encoding of contents
+   * @return modification date for project
+   */
+  long uploadFilesForce(long projectId, List<String> fileIds, String userId,
+      List<String> contents, String encoding);
+
   /**
    * Uploads a file.
    * @param projectId  project ID
@@ -518,6 +533,19 @@ public interface StorageIo {
    */
   String downloadFile(String userId, long projectId, String fileId, String encoding);
 
+  /**
+   * Downloads several files of a project at once, reading their entities in
+   * a single batch.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileIds  file IDs
+   * @param encoding encoding of content
+   *
+   * @return  file contents, in the order of fileIds
+   */
+  List<String> downloadFiles(String userId, long projectId, List<String> fileIds,
+      String encoding);
+
   /**
    * Records a "corruption" record so we can analyze if corruption is
    * happening.
@@ -599,6 +627,29 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   *  Writes project files as a zip archive to a stream, without holding the
+   *  archive in memory. The archive holds the same files as the one returned
+   *  by the method above.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param out  the stream to write the zip archive to, which is left open
+   *
+   * @return  the number of files written
+   * @throws IllegalArgumentException if the project has no files to export, in
+   *    which case nothing is written to out
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    OutputStream out) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -6,8 +6,11 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.flags.Flag;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
+
 /**
  * Holds the singleton StorageIo subclass object. We introduce this class
  * so that we can switch out the underlying StorageIo subclass without changing
@@ -17,13 +20,21 @@ import com.google.common.annotations.VisibleForTesting;
  *
  */
 public class StorageIoInstanceHolder {
+  // The directory of a LocalStorageIo, which is used instead of the datastore when set
+  private static final Flag<String> localStorageDir = Flag.createFlag("storage.local.dir", "");
+
   private static StorageIo INSTANCE;
   
   private StorageIoInstanceHolder() {} // not to be instantiated
 
   public static StorageIo getInstance() {
     if (INSTANCE == null) {
-      INSTANCE = new ObjectifyStorageIo();
+      String dir = localStorageDir.get();
+      if (dir.isEmpty()) {
+        INSTANCE = new ObjectifyStorageIo();
+      } else {
+        INSTANCE = new LocalStorageIo(new File(dir));
+      }
     }
     return INSTANCE;
   }
@@ -0,0 +1,31 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import java.io.OutputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip output stream writing to a stream that belongs to the caller, such as a response or
+ * an entry of another zip.
+ *
+ * <p>The zip is completed with {@link #finish()} and the stream is never closed. Closing it
+ * is what normally releases the native memory of the compressor, so {@link #end()} must be
+ * called instead, in a finally block, whether the zip was finished or not.
+ *
+ */
+public final class EmbeddedZipOutputStream extends ZipOutputStream {
+  public EmbeddedZipOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /**
+   * Releases the compressor. The stream cannot be written afterwards.
+   */
+  public void end() {
+    def.end();
+  }
+}
@@ -0,0 +1,122 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+
+/**
+ * A change to the content of a text file, sent instead of the whole content
+ * when auto-saving large .bky and .scm files.
+ *
+ * The change replaces the characters of the file between the common prefix
+ * and the common suffix of its old and new contents, which for an edit of a
+ * blocks workspace or a form is a small part of the file. The delta carries
+ * the hash of the content it applies to, so that it isn't applied to another
+ * version of the file, and the hash of the content it produces, so that the
+ * result can be checked before it is saved.
+ *
+ * This class is used by both the client and the server, so it must only use
+ * code that GWT can translate.
+ */
+public class FileDelta implements Serializable {
+
+  // For serialization
+  private static final long serialVersionUID = 4106255436416624843L;
+
+  private String baseHash;
+  private int start;
+  private int removedLength;
+  private String inserted;
+  private String resultHash;
+
+  /**
+   * Default constructor. This constructor is required by GWT.
+   */
+  @SuppressWarnings("unused")
+  private FileDelta() {
+  }
+
+  private FileDelta(String baseHash, int start, int removedLength, String inserted,
+      String resultHash) {
+    this.baseHash = baseHash;
+    this.start = start;
+    this.removedLength = removedLength;
+    this.inserted = inserted;
+    this.resultHash = resultHash;
+  }
+
+  /**
+   * Creates the delta turning one content into another.
+   *
+   * @param base  the content the delta applies to
+   * @param result  the content the delta produces
+   * @return  the delta
+   */
+  public static FileDelta create(String base, String result) {
+    int maxCommonLength = Math.min(base.length(), result.length());
+    int prefixLength = 0;
+    while (prefixLength < maxCommonLength
+        && base.charAt(prefixLength) == result.charAt(prefixLength)) {
+      prefixLength++;
+    }
+    int suffixLength = 0;
+    while (suffixLength < maxCommonLength - prefixLength
+        && base.charAt(base.length() - 1 - suffixLength)
+            == result.charAt(result.length() - 1 - suffixLength)) {
+      suffixLength++;
+    }
+    return new FileDelta(hash(base), prefixLength,
+        base.length() - prefixLength - suffixLength,
+        result.substring(prefixLength, result.length() - suffixLength), hash(result));
+  }
+
+  /**
+   * Returns a hash of a content, made of its length and a 32 bit FNV-1a hash
+   * of its characters.
+   *
+   * @param content  the content
+   * @return  the hash of the content
+   */
+  public static String hash(String content) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < content.length(); i++) {
+      hash ^= content.charAt(i);
+      // Multiplies by the FNV prime 0x01000193 with shifts, which overflow the
+      // same way in Java and in the JavaScript generated by GWT.
+      hash += (hash << 1) + (hash << 4) + (hash << 7) + (hash << 8) + (hash << 24);
+    }
+    return content.length() + ":" + Integer.toHexString(hash);
+  }
+
+  /**
+   * Applies the delta to a content.
+   *
+   * @param base  the content to apply the delta to
+   * @return  the content produced by the delta, or null if base isn't the
+   *          content the delta was created for or the delta is malformed
+   */
+  public String apply(String base) {
+    // The delta comes from the client, so its range is checked before it is
+    // used, without overflowing
+    if (start < 0 || removedLength < 0 || start > base.length()
+        || removedLength > base.length() - start || inserted == null
+        || !hash(base).equals(baseHash)) {
+      return null;
+    }
+    String result = base.substring(0, start) + inserted + base.substring(start + removedLength);
+    return hash(result).equals(resultHash) ? result : null;
+  }
+
+  /**
+   * Returns the number of characters the delta inserts, which is roughly the
+   * size of the delta.
+   *
+   * @return  the length of the inserted text
+   */
+  public int getInsertedLength() {
+    return inserted.length();
+  }
+}
@@ -0,0 +1,31 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+
+/**
+ * Thrown when a {@link FileDelta} doesn't apply to the saved content of a
+ * file. The client then saves the whole content instead.
+ */
+public class FileDeltaMismatchException extends Exception implements Serializable {
+
+    private String message;
+
+    public FileDeltaMismatchException() {
+      super();
+    }
+
+    public FileDeltaMismatchException(String message) {
+      super();
+      this.message = message;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+}
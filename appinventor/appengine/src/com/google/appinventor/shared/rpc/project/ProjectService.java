@@ -263,6 +263,24 @@ public interface ProjectService extends RemoteService {
   long save2(String sessionId, long projectId, String fileId, boolean force, String content) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Saves the content of the file associated with a node in the project tree,
+   * given as a change to its saved content. This version throws a
+   * FileDeltaMismatchException if the delta doesn't apply to the saved content,
+   * in which case the whole content should be saved with save2.
+   *
+   * @param sessionId current session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param force whether to write an empty blocks workspace
+   * @param delta  change to the saved content of the file
+   * @return modification date for project
+   *
+   * @see #save2(String, long, String, boolean, String)
+   */
+  long saveDelta(String sessionId, long projectId, String fileId, boolean force, FileDelta delta)
+      throws InvalidSessionException, BlocksTruncatedException, FileDeltaMismatchException;
+
   /**
    * Saves the contents of multiple files.
    *
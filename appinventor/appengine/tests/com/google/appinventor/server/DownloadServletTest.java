@@ -127,6 +127,21 @@ public class DownloadServletTest {
     assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
   }
 
+  @Test
+  public void testDownloadAllProjectsSource() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "all-projects-source");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    expect(exporterMock.exportAllProjectsSourceZip(USER_ID, response.getOutputStream()))
+        .andReturn(2);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    download.doGet(request, response);
+    checkResponseHeader(response, "attachment; filename=\"all-projects.zip\"");
+    assertEquals("application/zip; charset=utf-8", response.getContentType());
+    PowerMock.verifyAll();
+  }
+
   @Test
   public void testDownloadProjectOutputFileWithoutTarget() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
@@ -167,5 +167,38 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testExportAllProjectsSourceZipToStream() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = exporter.exportAllProjectsSourceZip(USER_ID, out);
+    assertEquals(1, count);
+
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    ZipEntry zipEntry = zis.getNextEntry();
+    assertEquals(PROJECT_NAME + ".aia", zipEntry.getName());
+    ProjectSourceZip project = new ProjectSourceZip(zipEntry.getName(),
+        ByteStreams.toByteArray(zis), 2);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(project);
+    assertFalse(content.containsKey(FileExporter.REMIX_INFORMATION_FILE_PATH));
+    assertNull(zis.getNextEntry());
+  }
+
+  public void testExportSelectedProjectsSourceZipSkipsEmptyProjects() throws IOException {
+    ProjectSourceZip zip = exporter.exportSelectedProjectsSourceZip(USER_ID,
+        "selected-projects.zip", Arrays.asList(projectId + 1, projectId));
+    assertEquals(1, zip.getFileCount());
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.getContent()));
+    assertEquals(PROJECT_NAME + ".aia", zis.getNextEntry().getName());
+    assertNull(zis.getNextEntry());
+  }
+
+  public void testExportSelectedProjectsSourceZipWithoutFiles() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      exporter.exportSelectedProjectsSourceZip(USER_ID, Arrays.asList(projectId + 1), out);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(0, out.size());
+  }
 }
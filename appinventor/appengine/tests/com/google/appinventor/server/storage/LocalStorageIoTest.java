@@ -0,0 +1,177 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.FileExporterImpl;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests LocalStorageIo class.
+ */
+public class LocalStorageIoTest extends TestCase {
+  private static final String USER_ID = "123";
+  private static final String OTHER_USER_ID = "456";
+  private static final String SCM_FILE_NAME = "src/Screen1.scm";
+  private static final String BKY_FILE_NAME = "src/Screen1.bky";
+  private static final String ASSET_FILE_NAME = "assets/kitty.jpg";
+  private static final String BLOCKS = "<xml>" + new String(new char[200]).replace('\0', ' ')
+      + "</xml>";
+  private static final byte[] ASSET_CONTENT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255 };
+
+  private File dir;
+  private LocalStorageIo storage;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = Files.createTempDir();
+    storage = new LocalStorageIo(dir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    StorageIoInstanceHolder.setInstance(null);
+  }
+
+  private long createProject(String userId) {
+    Project project = new Project("Project1");
+    project.addTextFile(new TextFile(SCM_FILE_NAME, "{}"));
+    project.addTextFile(new TextFile(BKY_FILE_NAME, BLOCKS));
+    project.addRawFile(new RawFile(ASSET_FILE_NAME, ASSET_CONTENT));
+    return storage.createProject(userId, project, "");
+  }
+
+  public void testProjectsSurviveRestart() throws Exception {
+    User user = storage.getUser(USER_ID, "user@example.com");
+    assertEquals("user@example.com", user.getUserEmail());
+    long projectId = createProject(USER_ID);
+    storage.uploadFileForce(projectId, SCM_FILE_NAME, USER_ID, "{\"changed\":1}", "UTF-8");
+
+    storage = new LocalStorageIo(dir);
+    assertEquals(USER_ID, storage.findUserByEmail("USER@example.com"));
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals("Project1", storage.getProjectName(USER_ID, projectId));
+    assertEquals("{\"changed\":1}", storage.downloadFile(USER_ID, projectId, SCM_FILE_NAME,
+        "UTF-8"));
+    assertTrue(Arrays.equals(ASSET_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE_NAME)));
+    assertTrue(createProject(USER_ID) > projectId);
+  }
+
+  public void testTornWriteIsDropped() throws Exception {
+    storage.getUser(USER_ID, "user@example.com");
+    long projectId = createProject(USER_ID);
+    File log = new File(new File(dir, "metadata"), "metadata.log");
+    long length = log.length();
+    storage.setUserName(USER_ID, "name");
+    // Cut the last write short, as a crash would
+    RandomAccessFile file = new RandomAccessFile(log, "rw");
+    file.setLength(length + 5);
+    file.close();
+
+    storage = new LocalStorageIo(dir);
+    assertEquals("Project1", storage.getProjectName(USER_ID, projectId));
+    assertFalse("name".equals(storage.getUserName(USER_ID)));
+    storage.setUserName(USER_ID, "name");
+    storage = new LocalStorageIo(dir);
+    assertEquals("name", storage.getUserName(USER_ID));
+  }
+
+  public void testIdenticalContentsAreStoredOnce() throws Exception {
+    long projectId1 = createProject(USER_ID);
+    long projectId2 = createProject(USER_ID);
+    assertEquals(3, countContents());
+
+    storage.deleteProject(USER_ID, projectId1);
+    storage.uploadRawFileForce(projectId2, ASSET_FILE_NAME, USER_ID, new byte[] { 1 });
+    assertEquals(4, countContents());
+    // The replaced content is removed once no project uses it
+    storage = new LocalStorageIo(dir);
+    assertEquals(3, countContents());
+  }
+
+  private int countContents() {
+    int count = 0;
+    for (File parent : new File(dir, "contents").listFiles()) {
+      if (!parent.getName().equals("tmp")) {
+        count += parent.listFiles().length;
+      }
+    }
+    return count;
+  }
+
+  public void testUploadChecks() throws Exception {
+    long projectId = createProject(USER_ID);
+    try {
+      storage.uploadFile(projectId, BKY_FILE_NAME, USER_ID, "<xml></xml>", "UTF-8");
+      fail();
+    } catch (BlocksTruncatedException e) {
+      // expected
+    }
+    assertEquals(BLOCKS, storage.downloadFile(USER_ID, projectId, BKY_FILE_NAME, "UTF-8"));
+    storage.uploadFileForce(projectId, BKY_FILE_NAME, USER_ID, "<xml></xml>", "UTF-8");
+    assertEquals("<xml></xml>", storage.downloadFile(USER_ID, projectId, BKY_FILE_NAME, "UTF-8"));
+
+    try {
+      storage.uploadFileForce(projectId, SCM_FILE_NAME, OTHER_USER_ID, "{}", "UTF-8");
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof UnauthorizedAccessException);
+    }
+  }
+
+  public void testExportProjectSourceZip() throws Exception {
+    long projectId = createProject(USER_ID);
+    storage.addOutputFilesToProject(USER_ID, projectId, "build/Android/Project1.apk");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(3, storage.exportProjectSourceZip(USER_ID, projectId, false, false, false,
+        false, false, false, out));
+
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    List<String> names = new ArrayList<String>();
+    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+      names.add(entry.getName());
+      if (entry.getName().equals(ASSET_FILE_NAME)) {
+        byte[] content = new byte[ASSET_CONTENT.length];
+        assertEquals(content.length, zip.read(content));
+        assertTrue(Arrays.equals(ASSET_CONTENT, content));
+      }
+    }
+    assertTrue(names.containsAll(Arrays.asList(SCM_FILE_NAME, BKY_FILE_NAME, ASSET_FILE_NAME)));
+  }
+
+  public void testExportProjectSourceZipThroughFileExporter() throws Exception {
+    long projectId = createProject(USER_ID);
+    StorageIoInstanceHolder.setInstance(storage);
+    ProjectSourceZip zipFile = new FileExporterImpl().exportProjectSourceZip(USER_ID, projectId,
+        false, false, null, false, false, false, false);
+    assertEquals("Project1.aia", zipFile.getFileName());
+    assertEquals(3, zipFile.getFileCount());
+
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipFile.getContent()));
+    List<String> names = new ArrayList<String>();
+    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+      names.add(entry.getName());
+    }
+    assertTrue(names.containsAll(Arrays.asList(SCM_FILE_NAME, BKY_FILE_NAME, ASSET_FILE_NAME)));
+  }
+}
@@ -306,6 +306,38 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     oldModificationDate = modificationDate;
   }
 
+  public void testUploadDownloadFiles() {
+    final String USER_ID = "1150";
+    final String USER_EMAIL = "newuser1150@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, SCM_FILE_NAME1, BKY_FILE_NAME1);
+    List<String> fileNames = Arrays.asList(BKY_FILE_NAME1, SCM_FILE_NAME1);
+
+    long modificationDate = storage.uploadFilesForce(projectId, fileNames, USER_ID,
+        Arrays.asList(FILE_CONTENT2, FILE_CONTENT1), StorageUtil.DEFAULT_CHARSET);
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+    assertEquals(Arrays.asList(FILE_CONTENT2, FILE_CONTENT1),
+        storage.downloadFiles(USER_ID, projectId, fileNames, StorageUtil.DEFAULT_CHARSET));
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, SCM_FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+
+    // A missing <Screen>.yail file is created, as when uploading it alone
+    storage.uploadFilesForce(projectId, Arrays.asList(YAIL_FILE_NAME1), USER_ID,
+        Arrays.asList(FILE_CONTENT1), StorageUtil.DEFAULT_CHARSET);
+    assertEquals(Arrays.asList(FILE_CONTENT1, FILE_CONTENT2),
+        storage.downloadFiles(USER_ID, projectId, Arrays.asList(YAIL_FILE_NAME1, BKY_FILE_NAME1),
+            StorageUtil.DEFAULT_CHARSET));
+
+    try {
+      storage.uploadFilesForce(projectId, Arrays.asList(SCM_FILE_NAME2), USER_ID,
+          Arrays.asList(FILE_CONTENT1), StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+  }
+
   public void testAddRemoveFile() throws BlocksTruncatedException {
     final String USER_ID = "1200";
     final String USER_EMAIL = "newuser1200@test.com";
@@ -0,0 +1,65 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.shared.rpc.project;
+
+import java.lang.reflect.Field;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests FileDelta class.
+ */
+public class FileDeltaTest extends TestCase {
+  private static final String BLOCKS =
+      "<xml><block type=\"text\" x=\"10\" y=\"20\"><field name=\"TEXT\">a</field></block></xml>";
+
+  public void testApply() {
+    String moved = BLOCKS.replace("x=\"10\"", "x=\"150\"");
+    FileDelta delta = FileDelta.create(BLOCKS, moved);
+    assertEquals(1, delta.getInsertedLength());
+    assertEquals(moved, delta.apply(BLOCKS));
+
+    assertEquals("", FileDelta.create(BLOCKS, "").apply(BLOCKS));
+    assertEquals(BLOCKS, FileDelta.create("", BLOCKS).apply(""));
+    assertEquals(BLOCKS, FileDelta.create(BLOCKS, BLOCKS).apply(BLOCKS));
+    // Repeated characters at the edit
+    assertEquals("aaaa", FileDelta.create("aa", "aaaa").apply("aa"));
+    assertEquals("aa", FileDelta.create("aaaa", "aa").apply("aaaa"));
+  }
+
+  public void testApplyToOtherContent() {
+    FileDelta delta = FileDelta.create(BLOCKS, BLOCKS.replace("a<", "b<"));
+    assertNull(delta.apply(BLOCKS.replace("a<", "c<")));
+    assertNull(delta.apply(""));
+  }
+
+  public void testApplyMalformedDelta() throws Exception {
+    String moved = BLOCKS.replace("x=\"10\"", "x=\"150\"");
+    // Deltas come from the client, which may send anything
+    assertNull(withField(FileDelta.create(BLOCKS, moved), "start", -1).apply(BLOCKS));
+    assertNull(withField(FileDelta.create(BLOCKS, moved), "removedLength", -1).apply(BLOCKS));
+    assertNull(withField(FileDelta.create(BLOCKS, moved), "removedLength", Integer.MAX_VALUE)
+        .apply(BLOCKS));
+    assertNull(withField(FileDelta.create(BLOCKS, moved), "inserted", null).apply(BLOCKS));
+  }
+
+  public void testHash() {
+    // The hash of FNV-1a, computed with multiplications
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < BLOCKS.length(); i++) {
+      hash = (hash ^ BLOCKS.charAt(i)) * 0x01000193;
+    }
+    assertEquals(BLOCKS.length() + ":" + Integer.toHexString(hash), FileDelta.hash(BLOCKS));
+    assertFalse(FileDelta.hash("ab").equals(FileDelta.hash("ba")));
+  }
+
+  private static FileDelta withField(FileDelta delta, String name, Object value)
+      throws Exception {
+    Field field = FileDelta.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(delta, value);
+    return delta;
+  }
+}
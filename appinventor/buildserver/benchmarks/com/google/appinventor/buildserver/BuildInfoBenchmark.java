@@ -0,0 +1,86 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the creation of a compiler for a project, which reads the build information of the
+ * components it uses, and the collection of the permissions, libraries, assets, activities and
+ * other manifest entries they need.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BuildInfoBenchmark {
+  @Param({"helloPurr", "paintPot", "makeQuiz", "makeQuiz-x10"})
+  public String sample;
+
+  private final PrintStream out = new PrintStream(ByteStreams.nullOutputStream());
+  private File projectDir;
+  private Project project;
+  private Set<String> componentTypes;
+  private Map<String, Set<String>> componentBlocks;
+
+  @Setup
+  public void setUp() throws Exception {
+    SampleProject sampleProject = SampleProject.load(sample);
+    projectDir = Files.createTempDir();
+    project = new Project(sampleProject.writeTo(projectDir));
+    componentTypes = sampleProject.getComponentTypes();
+    componentBlocks = sampleProject.getComponentBlocks();
+  }
+
+  @Benchmark
+  public Object collectBuildInfo() {
+    return createCompiler(project, componentTypes, componentBlocks, out);
+  }
+
+  @TearDown
+  public void tearDown() {
+    SampleProject.delete(projectDir);
+  }
+
+  /**
+   * Creates a compiler and collects the manifest entries of a project, like
+   * {@link Compiler#compile} does before its build stages.
+   */
+  static Compiler createCompiler(Project project, Set<String> componentTypes,
+      Map<String, Set<String>> componentBlocks, PrintStream out) {
+    Compiler compiler = new Compiler(project, componentTypes, componentBlocks, out, out, out,
+        false, false, false, 2048, null, null);
+    compiler.generateAssets();
+    compiler.generateActivities();
+    compiler.generateMetadata();
+    compiler.generateActivityMetadata();
+    compiler.generateBroadcastReceivers();
+    compiler.generateServices();
+    compiler.generateContentProviders();
+    compiler.generateLibNames();
+    compiler.generateNativeLibNames();
+    compiler.generatePermissions();
+    compiler.generateMinSdks();
+    compiler.generateBroadcastReceiver();
+    return compiler;
+  }
+}
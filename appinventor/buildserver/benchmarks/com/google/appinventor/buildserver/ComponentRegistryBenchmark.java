@@ -0,0 +1,30 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the loading of the descriptions and build information of the built-in components,
+ * which the build server does once at startup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ComponentRegistryBenchmark {
+
+  @Benchmark
+  public Object load() throws Exception {
+    return ComponentRegistry.load(
+        Compiler.class.getResource(Compiler.RUNTIME_FILES_DIR + "simple_components.json"),
+        Compiler.class.getResource(
+            Compiler.RUNTIME_FILES_DIR + "simple_components_build_info.json"));
+  }
+}
@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the analysis of the designer and blocks files of a project: parsing the JSON
+ * properties of each screen and collecting its component types and blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FormAnalysisBenchmark {
+  @Param({"helloPurr", "paintPot", "makeQuiz", "makeQuiz-x10"})
+  public String sample;
+
+  private SampleProject project;
+
+  @Setup
+  public void setUp() throws Exception {
+    project = SampleProject.load(sample);
+  }
+
+  @Benchmark
+  public int analyze() {
+    int count = 0;
+    for (String form : project.getFormSources()) {
+      JSONObject properties = FormPropertiesAnalyzer.parseSourceFile(form);
+      count += FormPropertiesAnalyzer.getComponentTypesFromForm(properties).size();
+      count += FormPropertiesAnalyzer.getComponentBlocksFromForm(properties).size();
+    }
+    for (String bky : project.getBlocksSources()) {
+      count += FormPropertiesAnalyzer.getComponentBlocksFromBlocksFile(bky).size();
+    }
+    return count;
+  }
+}
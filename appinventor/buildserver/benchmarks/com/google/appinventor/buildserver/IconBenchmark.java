@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the generation of the launcher icons of every density from an application icon of
+ * a given size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IconBenchmark {
+  // The densities, and launcher and adaptive icon foreground sizes, used by the compiler
+  private static final List<String> DENSITIES =
+      Arrays.asList("mdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi");
+  private static final List<Integer> STANDARD_SIZES = Arrays.asList(48, 72, 96, 144, 192);
+  private static final List<Integer> FOREGROUND_SIZES = Arrays.asList(108, 162, 216, 324, 432);
+
+  @Param({"192", "512", "1024"})
+  public int size;
+
+  private BufferedImage icon;
+  private File outputDir;
+  private File outputPngFile;
+  private List<File> mipmapDirectories;
+
+  @Setup
+  public void setUp() {
+    icon = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2 = icon.createGraphics();
+    g2.setPaint(new GradientPaint(0, 0, Color.ORANGE, size, size, Color.BLUE));
+    g2.fillOval(0, 0, size, size);
+    g2.dispose();
+
+    outputDir = Files.createTempDir();
+    outputPngFile = new File(outputDir, "ya.png");
+    mipmapDirectories = new ArrayList<File>();
+    for (String density : DENSITIES) {
+      File mipmapDirectory = new File(outputDir, "mipmap-" + density);
+      mipmapDirectory.mkdir();
+      mipmapDirectories.add(mipmapDirectory);
+    }
+  }
+
+  @Benchmark
+  public long render() throws Exception {
+    Compiler.renderApplicationIcon(icon, outputPngFile, mipmapDirectories, STANDARD_SIZES,
+        FOREGROUND_SIZES);
+    return outputPngFile.length();
+  }
+
+  @TearDown
+  public void tearDown() {
+    SampleProject.delete(outputDir);
+  }
+}
@@ -0,0 +1,61 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the generation of the AndroidManifest.xml of a project.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ManifestBenchmark {
+  @Param({"helloPurr", "paintPot", "makeQuiz", "makeQuiz-x10"})
+  public String sample;
+
+  private File projectDir;
+  private File manifestFile;
+  private Compiler compiler;
+
+  @Setup
+  public void setUp() throws Exception {
+    SampleProject sampleProject = SampleProject.load(sample);
+    projectDir = Files.createTempDir();
+    manifestFile = new File(projectDir, "AndroidManifest.xml");
+    compiler = BuildInfoBenchmark.createCompiler(new Project(sampleProject.writeTo(projectDir)),
+        sampleProject.getComponentTypes(), sampleProject.getComponentBlocks(),
+        new PrintStream(ByteStreams.nullOutputStream()));
+  }
+
+  @Benchmark
+  public long writeManifest() {
+    if (!compiler.writeAndroidManifest(manifestFile)) {
+      throw new IllegalStateException("Unable to write " + manifestFile);
+    }
+    return manifestFile.length();
+  }
+
+  @TearDown
+  public void tearDown() {
+    SampleProject.delete(projectDir);
+  }
+}
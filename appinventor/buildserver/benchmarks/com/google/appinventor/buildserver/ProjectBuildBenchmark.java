@@ -0,0 +1,85 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures the end-to-end build of a project, from the zip sent by the App Inventor server to
+ * the signed APK. Each iteration is a single build.
+ *
+ * <p>The libraries are dexed into a cache directory shared by the iterations, as on the build
+ * server, so the warmup iterations fill it. The APK, screen class and icon caches are not
+ * used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProjectBuildBenchmark {
+  @Param({"helloPurr", "paintPot", "makeQuiz", "makeQuiz-x10"})
+  public String sample;
+
+  @Param({"2048"})
+  public int childProcessRamMb;
+
+  private File workDir;
+  private File outputDir;
+  private File dexCacheDir;
+  private ZipFile inputZip;
+  private PrintStream stdout;
+
+  @Setup
+  public void setUp() throws Exception {
+    workDir = Files.createTempDir();
+    outputDir = new File(workDir, "output");
+    dexCacheDir = new File(workDir, "dexCache");
+    if (!outputDir.mkdir() || !dexCacheDir.mkdir()) {
+      throw new IllegalStateException("Unable to create directories in " + workDir);
+    }
+    File zipFile = new File(workDir, sample + ".zip");
+    SampleProject.load(sample).writeZip(zipFile);
+    inputZip = new ZipFile(zipFile);
+
+    // The compiler prints its progress to System.out.
+    stdout = System.out;
+    System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+  }
+
+  @Benchmark
+  public Result build() {
+    Result result = new ProjectBuilder().build("benchmark", inputZip, outputDir, null,
+        false, false, false, new String[0], childProcessRamMb, dexCacheDir.getAbsolutePath(),
+        null);
+    if (!result.succeeded()) {
+      throw new IllegalStateException("Build of " + sample + " failed:\n"
+          + result.getOutput() + result.getError());
+    }
+    return result;
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    System.setOut(stdout);
+    inputZip.close();
+    SampleProject.delete(workDir);
+  }
+}
@@ -0,0 +1,229 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A canned project used by the benchmarks.
+ *
+ * <p>The projects are made of the designer (.scm), blocks (.bky) and expected YAIL files of the
+ * sample apps used by the blocks editor tests. A larger project is made by repeating the screen
+ * of a sample, renamed Screen1, Screen2 and so on.
+ */
+final class SampleProject {
+  /**
+   * The system property holding the data directory of the blocks editor tests.
+   */
+  static final String SAMPLES_DIR_PROPERTY = "benchmark.samplesDir";
+
+  private static final String PACKAGE = "appinventor.ai_benchmark";
+
+  // The package of the expected YAIL files of the blocks editor tests
+  private static final String YAIL_PACKAGE = "fakepackagename";
+
+  private final String name;
+
+  // Project file path (e.g. "src/appinventor/ai_benchmark/paintPot/Screen1.scm") to contents
+  private final Map<String, String> files = new LinkedHashMap<String, String>();
+
+  private final List<String> formSources = new ArrayList<String>();
+  private final List<String> blocksSources = new ArrayList<String>();
+
+  private SampleProject(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Loads a canned project from the data directory named by the {@value #SAMPLES_DIR_PROPERTY}
+   * system property.
+   *
+   * @param name  the name of the project: the name of the sample, such as {@code "paintPot"},
+   *     optionally followed by the number of copies of its screen, as in {@code "makeQuiz-x10"}
+   */
+  static SampleProject load(String name) throws IOException {
+    String dataDir = System.getProperty(SAMPLES_DIR_PROPERTY);
+    if (dataDir == null) {
+      throw new IllegalStateException("The " + SAMPLES_DIR_PROPERTY + " property is not set");
+    }
+    int index = name.lastIndexOf("-x");
+    if (index < 0) {
+      return load(new File(dataDir), name, 1);
+    }
+    return load(new File(dataDir), name.substring(0, index),
+        Integer.parseInt(name.substring(index + 2)));
+  }
+
+  /**
+   * Loads a canned project.
+   *
+   * @param dataDir  the data directory of the blocks editor tests
+   * @param sample  the name of the sample, such as {@code "paintPot"}
+   * @param screens  the number of copies of the screen of the sample in the project
+   */
+  static SampleProject load(File dataDir, String sample, int screens) throws IOException {
+    File sampleDir = new File(dataDir, sample);
+    String form = Files.toString(new File(sampleDir, "Screen1.scm"), Charsets.UTF_8);
+    String blocks = Files.toString(new File(sampleDir, "Screen1.bky"), Charsets.UTF_8);
+    String yail = Files.toString(findYail(sampleDir), Charsets.UTF_8);
+
+    SampleProject project = new SampleProject(screens == 1 ? sample : sample + "-x" + screens);
+    String projectName = screens == 1 ? sample : sample + "_x" + screens;
+    String packageName = PACKAGE + "." + projectName;
+    project.files.put("youngandroidproject/project.properties",
+        "main=" + packageName + ".Screen1\n" +
+        "name=" + projectName + "\n" +
+        "assets=../assets\n" +
+        "source=../src\n" +
+        "build=../build\n" +
+        "versioncode=1\n" +
+        "versionname=1.0\n" +
+        "useslocation=False\n" +
+        "aname=" + projectName + "\n" +
+        "sizing=Responsive\n");
+    for (int i = 1; i <= screens; i++) {
+      String screen = "Screen" + i;
+      String path = "src/" + packageName.replace('.', '/') + "/" + screen;
+      String screenForm = form.replace("Screen1", screen);
+      project.files.put(path + YoungAndroidConstants.FORM_PROPERTIES_EXTENSION, screenForm);
+      String screenBlocks = blocks.replace("Screen1", screen);
+      project.files.put(path + YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION, screenBlocks);
+      project.files.put(path + YoungAndroidConstants.YAIL_EXTENSION,
+          yail.replace("Screen1", screen).replace(YAIL_PACKAGE, packageName + "." + screen));
+      project.formSources.add(screenForm);
+      project.blocksSources.add(screenBlocks);
+    }
+    return project;
+  }
+
+  private static File findYail(File sampleDir) throws IOException {
+    File[] files = sampleDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith("Expected" + YoungAndroidConstants.YAIL_EXTENSION)) {
+          return file;
+        }
+      }
+    }
+    throw new IOException("No expected YAIL file in " + sampleDir);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the contents of the designer files of the project, one per screen.
+   */
+  List<String> getFormSources() {
+    return formSources;
+  }
+
+  /**
+   * Returns the contents of the blocks files of the project, one per screen.
+   */
+  List<String> getBlocksSources() {
+    return blocksSources;
+  }
+
+  /**
+   * Returns the fully qualified types of the components used by the project.
+   */
+  Set<String> getComponentTypes() throws IOException, JSONException {
+    Map<String, String> nameTypeMap = ComponentRegistry.getSimpleComponents().getNameTypeMap();
+    Set<String> types = new HashSet<String>();
+    for (String form : formSources) {
+      for (String name : FormPropertiesAnalyzer.getComponentTypesFromFormFile(form)) {
+        types.add(nameTypeMap.get(name));
+      }
+    }
+    return types;
+  }
+
+  /**
+   * Returns the blocks of each component type used by the project, including the properties
+   * set in the designer.
+   */
+  Map<String, Set<String>> getComponentBlocks() {
+    Map<String, Set<String>> blocks = new HashMap<String, Set<String>>();
+    for (String bky : blocksSources) {
+      mergeComponentBlocks(blocks, FormPropertiesAnalyzer.getComponentBlocksFromBlocksFile(bky));
+    }
+    for (String form : formSources) {
+      mergeComponentBlocks(blocks, FormPropertiesAnalyzer.getComponentBlocksFromForm(
+          FormPropertiesAnalyzer.parseSourceFile(form)));
+    }
+    return blocks;
+  }
+
+  private static void mergeComponentBlocks(Map<String, Set<String>> result,
+      Map<String, Set<String>> blocks) {
+    for (Map.Entry<String, Set<String>> entry : blocks.entrySet()) {
+      Set<String> typeBlocks = result.get(entry.getKey());
+      if (typeBlocks == null) {
+        result.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+      } else {
+        typeBlocks.addAll(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Writes the project to a directory.
+   *
+   * @return  the project properties file
+   */
+  File writeTo(File projectDir) throws IOException {
+    for (Map.Entry<String, String> file : files.entrySet()) {
+      File target = new File(projectDir, file.getKey());
+      Files.createParentDirs(target);
+      Files.write(file.getValue(), target, Charsets.UTF_8);
+    }
+    return new File(projectDir, "youngandroidproject/project.properties");
+  }
+
+  /**
+   * Writes the project as the zip sent to the build server.
+   */
+  void writeZip(File zipFile) throws IOException {
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile))) {
+      for (Map.Entry<String, String> file : files.entrySet()) {
+        out.putNextEntry(new ZipEntry(file.getKey()));
+        out.write(file.getValue().getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Deletes a file or a directory and its contents.
+   */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
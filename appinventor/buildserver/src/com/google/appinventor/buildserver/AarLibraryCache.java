@@ -0,0 +1,172 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.util.AARLibraries;
+import com.google.appinventor.buildserver.util.AARLibrary;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import com.android.ide.common.internal.PngCruncher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of exploded Android Archive (AAR) libraries and of their merged resources, shared
+ * by all builds of a build server.
+ *
+ * <p>The AARs a build needs only depend on the component types it uses, so most builds use
+ * exactly the same ones. Each AAR is unpacked once, into {@code exploded/<digest>}, where
+ * {@code <digest>} is the digest of the archive. The resources of a set of AARs are merged once,
+ * into {@code merged/<key>}, where {@code <key>} is computed from the sorted digests of the
+ * archives in the set. A build then only merges its own resources on top of the merged ones.
+ *
+ * <p>Both kinds of entries are kept in a {@link DiskCache}. Exploded libraries are never
+ * removed, as the AARs come from the build server's own resources. The least recently used
+ * merged resource sets are removed once there are more than {@code maxMerged}.
+ */
+final class AarLibraryCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(AarLibraryCache.class.getName());
+
+  private static final String EXPLODED_DIR = "exploded";
+  private static final String MERGED_DIR = "merged";
+
+  private static final DiskCache exploded = new DiskCache("exploded AAR library");
+  private static final DiskCache merged = new DiskCache("merged AAR resources");
+
+  private AarLibraryCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, or null to disable the cache
+   * @param maxMerged  the maximum number of merged resource sets kept in the cache
+   */
+  static synchronized void configure(String dir, int maxMerged) {
+    exploded.configure(dir == null ? null : new File(dir, EXPLODED_DIR).getPath(),
+        Integer.MAX_VALUE, Long.MAX_VALUE);
+    merged.configure(dir == null ? null : new File(dir, MERGED_DIR).getPath(), maxMerged,
+        Long.MAX_VALUE);
+    if (exploded.isEnabled() != merged.isEnabled()) {
+      exploded.configure(null, Integer.MAX_VALUE, Long.MAX_VALUE);
+      merged.configure(null, maxMerged, Long.MAX_VALUE);
+    }
+  }
+
+  static synchronized boolean isEnabled() {
+    return exploded.isEnabled() && merged.isEnabled();
+  }
+
+  static int getExplodedHitCount() {
+    return exploded.getHitCount();
+  }
+
+  static int getExplodedMissCount() {
+    return exploded.getMissCount();
+  }
+
+  static int getMergedHitCount() {
+    return merged.getHitCount();
+  }
+
+  static int getMergedMissCount() {
+    return merged.getMissCount();
+  }
+
+  /**
+   * Unpacks an AAR library into the cache, unless it is already there, and points the library
+   * at the cached copy.
+   *
+   * @param library  the library to unpack
+   * @throws IOException  if the library cannot be read or unpacked
+   */
+  static void unpack(final AARLibrary library) throws IOException {
+    String key = FileDigests.digest(library.getFile());
+    File entry = exploded.get(key);
+    if (entry != null) {
+      exploded.hit(entry);
+    } else {
+      exploded.miss();
+      entry = exploded.store(key, new DiskCache.EntryWriter() {
+        @Override
+        public void write(File dir) throws IOException {
+          new AARLibrary(library.getFile()).unpackToDirectory(dir);
+        }
+      });
+      if (entry == null) {
+        throw new IllegalStateException("The AAR library cache is not enabled");
+      }
+    }
+    library.attachToDirectory(entry);
+  }
+
+  /**
+   * Returns the merged resources of a set of AAR libraries, merging them into the cache if
+   * needed.
+   *
+   * @param libraries  the libraries, each unpacked with {@link #unpack(AARLibrary)}
+   * @param cruncher  the PNG cruncher used for merging
+   * @return  the directory holding the merged resources, or null if the libraries could not
+   *          be merged
+   */
+  static File getMergedResources(final AARLibraries libraries, final PngCruncher cruncher) {
+    String key;
+    try {
+      key = getKey(libraries);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to compute the key of the AAR libraries", e);
+      return null;
+    }
+    File entry = merged.get(key);
+    if (entry != null) {
+      merged.hit(entry);
+      return entry;
+    }
+    merged.miss();
+    try {
+      entry = merged.store(key, new DiskCache.EntryWriter() {
+        @Override
+        public void write(File dir) throws IOException {
+          if (!libraries.mergeLibraryResources(dir, cruncher)) {
+            throw new IOException("Unable to merge the resources of the AAR libraries into "
+                + dir);
+          }
+        }
+      });
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache the merged resources of the AAR libraries", e);
+      return null;
+    }
+    return entry != null && entry.isDirectory() ? entry : null;
+  }
+
+  /*
+   * Computes the key of a set of libraries from the sorted digests of their archives, so that
+   * it does not depend on the order in which the libraries were added.
+   */
+  static String getKey(AARLibraries libraries) throws IOException {
+    List<String> digests = new ArrayList<String>();
+    for (AARLibrary library : libraries) {
+      digests.add(FileDigests.digest(library.getFile()));
+    }
+    Collections.sort(digests);
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String digest : digests) {
+      hasher.putString(digest, Charsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+}
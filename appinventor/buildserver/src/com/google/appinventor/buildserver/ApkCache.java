@@ -0,0 +1,201 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Disk cache of the signed APKs built from unchanged projects.
+ *
+ * <p>An entry is keyed by the SHA-1 of the build server version, the user name and the name and
+ * contents of every entry of the project zip (sources, assets, properties and the keystore, if
+ * any). Building the same project again therefore yields the APK of the first build, signed
+ * with the same key, without running the compiler.
+ *
+ * <p>Each entry is a directory holding the APK and the build messages. Only successful builds
+ * of projects that came with a keystore are stored: a keystore generated by a build holds the
+ * user's private key, which must not outlive the build on this server. The App Inventor server
+ * stores the generated keystore and sends it with the next build of the project, which can then
+ * be cached. The entries are kept in a {@link DiskCache} limited in size rather than in number.
+ */
+final class ApkCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ApkCache.class.getName());
+
+  private static final String RESULT_FILE = "result.json";
+
+  private static final DiskCache cache = new DiskCache("APK");
+
+  /**
+   * A build found in the cache.
+   */
+  static final class CachedBuild {
+    private final Result result;
+    private final File apk;
+
+    private CachedBuild(Result result, File apk) {
+      this.result = result;
+      this.apk = apk;
+    }
+
+    Result getResult() {
+      return result;
+    }
+
+    File getApk() {
+      return apk;
+    }
+  }
+
+  private ApkCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, or null to disable the cache
+   * @param maxMegabytes  the maximum size of the cache
+   */
+  static void configure(String dir, int maxMegabytes) {
+    cache.configure(dir, Integer.MAX_VALUE, Math.max(1, maxMegabytes) * 1024L * 1024);
+  }
+
+  static boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  static int getHitCount() {
+    return cache.getHitCount();
+  }
+
+  static int getMissCount() {
+    return cache.getMissCount();
+  }
+
+  /**
+   * Computes the fingerprint of a build request. The order of the zip entries does not matter.
+   *
+   * @param serverVersion  the version of the build server
+   * @param userName  the user name, which goes into a generated keystore
+   * @param inputZip  the project zip
+   * @return  the key of the build
+   * @throws IOException  if the zip cannot be read
+   */
+  static String getKey(String serverVersion, String userName, ZipFile inputZip)
+      throws IOException {
+    List<ZipEntry> entries = new ArrayList<ZipEntry>();
+    Enumeration<? extends ZipEntry> zipEntries = inputZip.entries();
+    while (zipEntries.hasMoreElements()) {
+      entries.add(zipEntries.nextElement());
+    }
+    Collections.sort(entries, new Comparator<ZipEntry>() {
+      @Override
+      public int compare(ZipEntry a, ZipEntry b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(String.valueOf(serverVersion), Charsets.UTF_8);
+    hasher.putByte((byte) 0);
+    hasher.putString(String.valueOf(userName), Charsets.UTF_8);
+    byte[] buffer = new byte[64 * 1024];
+    for (ZipEntry entry : entries) {
+      if (entry.isDirectory()) {
+        continue;
+      }
+      hasher.putByte((byte) 0);
+      hasher.putString(entry.getName(), Charsets.UTF_8);
+      hasher.putByte((byte) 0);
+      try (InputStream in = inputZip.getInputStream(entry)) {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, read);
+        }
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Copies a cached build into the output directory.
+   *
+   * @param key  the key of the build
+   * @param outputDir  the directory to copy the APK to
+   * @return  the cached build, or null if there is none
+   */
+  static CachedBuild restore(String key, File outputDir) {
+    File entry = cache.get(key);
+    if (entry == null) {
+      cache.miss();
+      return null;
+    }
+    try {
+      JSONObject json = new JSONObject(
+          Files.toString(new File(entry, RESULT_FILE), Charsets.UTF_8));
+      File apk = new File(outputDir, json.getString("apk"));
+      Files.copy(new File(entry, apk.getName()), apk);
+      cache.hit(entry);
+      return new CachedBuild(
+          new Result(true, json.getString("output"), json.getString("error")), apk);
+    } catch (IOException|JSONException e) {
+      LOG.log(Level.WARNING, "Unable to restore cached APK " + key, e);
+      cache.miss();
+      return null;
+    }
+  }
+
+  /**
+   * Stores a successful build. Builds that generated a keystore must not be stored.
+   *
+   * @param key  the key of the build
+   * @param result  the result of the build
+   * @param apk  the signed APK
+   */
+  static void store(String key, final Result result, final File apk) {
+    if (!result.succeeded()) {
+      return;
+    }
+    try {
+      cache.store(key, new DiskCache.EntryWriter() {
+        @Override
+        public void write(File dir) throws IOException {
+          Files.copy(apk, new File(dir, apk.getName()));
+          try {
+            JSONObject json = new JSONObject();
+            json.put("apk", apk.getName());
+            json.put("output", result.getOutput());
+            json.put("error", result.getError());
+            Files.write(json.toString(), new File(dir, RESULT_FILE), Charsets.UTF_8);
+          } catch (JSONException e) {
+            throw new IOException(e);
+          }
+        }
+      });
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache APK " + apk, e);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage timing histograms and counters for the builds run by this build server, served as
+ * JSON on /buildserver/metrics.
+ */
+final class BuildMetrics {
+
+  // Build stages
+  static final String BUILD = "build";
+  static final String UNZIP = "unzip";
+  static final String COMPONENT_ANALYSIS = "component-analysis";
+  static final String AAPT = "aapt";
+  static final String KAWA = "kawa";
+  static final String DX = "dx";
+  static final String APK_BUILDER = "apkbuilder";
+  static final String ZIPALIGN = "zipalign";
+  static final String SIGN = "sign";
+  static final String UPLOAD = "upload";
+  static final String BUILD_QUEUE_WAIT = "build-queue-wait";
+  static final String CHILD_PROCESS_WAIT = "child-process-wait";
+
+  // Upper bounds of the histogram buckets
+  private static final long[] MILLIS_BOUNDS =
+      { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000 };
+  private static final long[] MEGABYTES_BOUNDS =
+      { 64, 128, 256, 512, 768, 1024, 1536, 2048, 3072, 4096 };
+
+  // How often the memory of running child processes is sampled
+  private static final long RSS_SAMPLE_PERIOD_MS = 100;
+
+  private static final ConcurrentMap<String, Histogram> stages =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final Histogram childProcessPeakRss = new Histogram(MEGABYTES_BOUNDS);
+
+  private static Timer rssSampler = null;
+
+  private BuildMetrics() {
+  }
+
+  /**
+   * A histogram with fixed buckets. Each bucket counts the samples that are less than or equal
+   * to its bound and greater than the bound of the previous bucket; the last bucket counts the
+   * rest.
+   */
+  static class Histogram {
+    private final long[] bounds;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    Histogram(long[] bounds) {
+      this.bounds = bounds;
+      this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    void record(long value) {
+      int i = 0;
+      while (i < bounds.length && value > bounds[i]) {
+        i++;
+      }
+      buckets.incrementAndGet(i);
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current;
+      while (value > (current = max.get())) {
+        if (max.compareAndSet(current, value)) {
+          break;
+        }
+      }
+    }
+
+    long getCount() {
+      return count.get();
+    }
+
+    long getSum() {
+      return sum.get();
+    }
+
+    long getMax() {
+      return max.get();
+    }
+
+    long getBucket(int i) {
+      return buckets.get(i);
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("count", count.get());
+      json.put("sum", sum.get());
+      json.put("max", max.get());
+      JSONObject histogram = new JSONObject();
+      for (int i = 0; i < bounds.length; i++) {
+        histogram.put("le-" + bounds[i], buckets.get(i));
+      }
+      histogram.put("le-inf", buckets.get(bounds.length));
+      json.put("buckets", histogram);
+      return json;
+    }
+  }
+
+  /**
+   * Records how long a build stage took.
+   *
+   * @param stage  the stage, one of the constants of this class
+   * @param millis  the duration of the stage, in milliseconds
+   */
+  static void recordStage(String stage, long millis) {
+    Histogram histogram = stages.get(stage);
+    if (histogram == null) {
+      histogram = new Histogram(MILLIS_BOUNDS);
+      Histogram previous = stages.putIfAbsent(stage, histogram);
+      if (previous != null) {
+        histogram = previous;
+      }
+    }
+    histogram.record(millis);
+  }
+
+  static Histogram getStage(String stage) {
+    return stages.get(stage);
+  }
+
+  /**
+   * Samples the peak resident memory of a child process until it exits, and then records it.
+   * This only works on Linux; elsewhere the process is ignored.
+   *
+   * @param process  the child process
+   */
+  static void watchChildProcess(final Process process) {
+    final long pid = getPid(process);
+    if (pid <= 0 || !new File("/proc/" + pid + "/status").exists()) {
+      return;
+    }
+    TimerTask task = new TimerTask() {
+      private long peakKb = 0;
+
+      @Override
+      public void run() {
+        long hwm = readPeakRssKb(pid);
+        if (hwm > peakKb) {
+          peakKb = hwm;
+        }
+        if (hwm < 0 || hasExited(process)) {
+          cancel();
+          if (peakKb > 0) {
+            childProcessPeakRss.record(peakKb / 1024);
+          }
+        }
+      }
+    };
+    synchronized (BuildMetrics.class) {
+      if (rssSampler == null) {
+        rssSampler = new Timer("child-process-rss-sampler", true);
+      }
+      rssSampler.schedule(task, 0, RSS_SAMPLE_PERIOD_MS);
+    }
+  }
+
+  /**
+   * Returns the timing histograms of all stages, and the peak memory histogram of child
+   * processes, in MB.
+   */
+  static JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    JSONObject stagesJson = new JSONObject();
+    for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+      stagesJson.put(stage.getKey(), stage.getValue().toJson());
+    }
+    json.put("stages-ms", stagesJson);
+    json.put("child-process-peak-rss-mb", childProcessPeakRss.toJson());
+    return json;
+  }
+
+  private static boolean hasExited(Process process) {
+    try {
+      process.exitValue();
+      return true;
+    } catch (IllegalThreadStateException e) {
+      return false;
+    }
+  }
+
+  /*
+   * Returns the VmHWM (peak resident set size) of a process in KB, or -1 if it has gone.
+   */
+  private static long readPeakRssKb(long pid) {
+    try {
+      for (String line : Files.readLines(new File("/proc/" + pid + "/status"), Charsets.UTF_8)) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.parseLong(line.substring(6).replace("kB", "").trim());
+        }
+      }
+    } catch (IOException|NumberFormatException e) {
+      // The process has exited.
+    }
+    return -1;
+  }
+
+  /*
+   * Returns the pid of a process: Process.pid() on Java 9 and later, the pid field of
+   * UNIXProcess before that. Returns -1 if neither is available.
+   */
+  private static long getPid(Process process) {
+    try {
+      Method pid = Process.class.getMethod("pid");
+      return ((Number) pid.invoke(process)).longValue();
+    } catch (ReflectiveOperationException e) {
+      // Not Java 9
+    }
+    try {
+      Field pid = process.getClass().getDeclaredField("pid");
+      pid.setAccessible(true);
+      return pid.getInt(process);
+    } catch (ReflectiveOperationException|RuntimeException e) {
+      return -1;
+    }
+  }
+}
@@ -20,14 +20,14 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
@@ -42,8 +42,13 @@ import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -73,14 +78,142 @@ public class BuildServer {
     // We create a ProgressReporter instance which is handed off to the
     // project builder and compiler. It is called to report the progress
     // of the build. The reporting is done by calling the callback URL
-    // and putting the status inside a "build.status" file. This isn't
-    // particularly efficient, but this is the version 0.9 implementation
+    // and putting the status inside a "build.status" file. Reports are
+    // sent by a few threads shared by all builds, never by the build
+    // itself: a report replaces the one of the same build still waiting
+    // to be sent, and a build reports at most once per interval, so a
+    // slow App Inventor server cannot stall compilation.
+    private static final int NONE = -1;
+
+    private static final ScheduledExecutorService sender =
+        Executors.newScheduledThreadPool(2, new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger(0);
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "progress-reporter-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    private static volatile long minIntervalMillis = 1000;
+
+    private static final AtomicInteger sentReports = new AtomicInteger(0);
+    private static final AtomicInteger coalescedReports = new AtomicInteger(0);
+
+    // How long a failed report waits before it is sent again.
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    // How long close() waits for a report being sent before abandoning it.
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
     String callbackUrlStr;
+
+    // The latest progress not sent yet, or NONE. A send is scheduled whenever it is not NONE.
+    private final AtomicInteger pending = new AtomicInteger(NONE);
+    private volatile boolean closed = false;
+    // Held while a report is sent, so that the reports of a build go out one at a time.
+    private final ReentrantLock sending = new ReentrantLock();
+    private long lastSentMillis = 0;  // guarded by sending
+    private volatile HttpURLConnection current;  // the report being sent, if any
+
     ProgressReporter(String callbackUrlStr) {
       this.callbackUrlStr = callbackUrlStr;
     }
 
+    static void configure(long intervalMillis) {
+      minIntervalMillis = Math.max(0, intervalMillis);
+    }
+
+    static int getSentCount() {
+      return sentReports.get();
+    }
+
+    static int getCoalescedCount() {
+      return coalescedReports.get();
+    }
+
     public void report(int progress) {
+      if (closed) {
+        return;
+      }
+      if (pending.getAndSet(progress) != NONE) {
+        // The report waiting to be sent now carries the new progress
+        coalescedReports.incrementAndGet();
+        return;
+      }
+      schedule(0);
+    }
+
+    /**
+     * Stops reporting. Later reports are dropped, so that none of them arrives after the result
+     * of the build. A report being sent is waited for briefly and then abandoned, so that a slow
+     * App Inventor server does not hold up the result.
+     */
+    void close() {
+      closed = true;
+      pending.set(NONE);
+      try {
+        if (sending.tryLock(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          sending.unlock();
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      HttpURLConnection inFlight = current;
+      if (inFlight != null) {
+        LOG.warning("Abandoning progress report still being sent");
+        inFlight.disconnect();
+      }
+    }
+
+    private void schedule(long delayMillis) {
+      sender.schedule(new Runnable() {
+        @Override
+        public void run() {
+          send();
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void send() {
+      if (!sending.tryLock()) {
+        // Another report of this build is still being sent. Come back later rather than hold a
+        // thread that the other builds need to send their reports.
+        schedule(Math.max(minIntervalMillis, RETRY_DELAY_MILLIS));
+        return;
+      }
+      try {
+        if (closed) {
+          return;
+        }
+        long wait = lastSentMillis + minIntervalMillis - System.currentTimeMillis();
+        if (wait > 0) {
+          schedule(wait);
+          return;
+        }
+        int progress = pending.getAndSet(NONE);
+        if (progress == NONE) {
+          return;
+        }
+        lastSentMillis = System.currentTimeMillis();
+        // A kept-alive connection the server has closed in the meantime fails the first attempt,
+        // and a POST is not retried by HttpURLConnection; the second one uses a new connection.
+        if (post(progress) || closed || post(progress)) {
+          return;
+        }
+        // Send the progress again later, unless a newer one is already waiting.
+        if (pending.compareAndSet(NONE, progress)) {
+          schedule(Math.max(minIntervalMillis, RETRY_DELAY_MILLIS));
+        }
+      } finally {
+        sending.unlock();
+      }
+    }
+
+    private boolean post(int progress) {
       try {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         ZipOutputStream zipoutput = new ZipOutputStream(output);
@@ -90,9 +223,10 @@ public class BuildServer {
         pout.flush();
         zipoutput.flush();
         zipoutput.close();
-        ByteArrayInputStream zipinput = new ByteArrayInputStream(output.toByteArray());
+        byte[] zip = output.toByteArray();
         URL callbackUrl = new URL(callbackUrlStr);
         HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+        current = connection;
         connection.setDoOutput(true);
         connection.setRequestMethod("POST");
         // Make sure we aren't misinterpreted as
@@ -100,23 +234,31 @@ public class BuildServer {
         connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
         connection.setConnectTimeout(5000);
         connection.setReadTimeout(5000);
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+        connection.setFixedLengthStreamingMode(zip.length);
+        OutputStream outputStream = connection.getOutputStream();
         try {
-          BufferedInputStream bufferedInputStream = new BufferedInputStream(zipinput);
-          try {
-            ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-            bufferedOutputStream.flush();
-          } finally {
-            bufferedInputStream.close();
-          }
+          outputStream.write(zip);
         } finally {
-          bufferedOutputStream.close();
+          outputStream.close();
+        }
+        int responseCode = connection.getResponseCode();
+        // Read the whole response so that the connection is kept alive for the next report
+        InputStream response = responseCode < 400
+            ? connection.getInputStream() : connection.getErrorStream();
+        if (response != null) {
+          ByteStreams.toByteArray(response);
+          response.close();
         }
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-          LOG.severe("Bad Response Code! (sending status): "+ connection.getResponseCode());
+        sentReports.incrementAndGet();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+          LOG.severe("Bad Response Code! (sending status): "+ responseCode);
         }
+        return true;
       } catch (IOException e) {
         LOG.severe("IOException during progress report!");
+        return false;
+      } finally {
+        current = null;
       }
     }
   }
@@ -135,6 +277,10 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that wait for a free slot before new ones are rejected.")
+    int maxQueuedBuilds = 20;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -151,6 +297,78 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--toolCacheDir",
+            usage = "the directory to extract the build tools and libraries to, kept across restarts")
+    String toolCacheDir = null;
+
+    @Option(name = "--screenCacheDir",
+            usage = "the directory to cache the compiled classes of screens")
+    String screenCacheDir = null;
+
+    @Option(name = "--screenCacheMaxEntries",
+            usage = "Maximum number of screens kept in the screen class cache.")
+    int screenCacheMaxEntries = 1000;
+
+    @Option(name = "--aarCacheDir",
+            usage = "the directory to cache the exploded AAR libraries and their merged resources")
+    String aarCacheDir = null;
+
+    @Option(name = "--aarCacheMaxMergedEntries",
+            usage = "Maximum number of merged AAR resource sets kept in the AAR library cache.")
+    int aarCacheMaxMergedEntries = 50;
+
+    @Option(name = "--dexInProcess",
+            usage = "Run dx inside the build server instead of in a child process.")
+    boolean dexInProcess = false;
+
+    @Option(name = "--buildStageThreads",
+            usage = "Maximum number of stages of a single build that run in parallel. 1 runs them one at a time.")
+    int buildStageThreads = 4;
+
+    @Option(name = "--toolTimeoutSeconds",
+            usage = "Time after which an invocation of aapt is killed. 0 means no limit.")
+    int toolTimeoutSeconds = 600;
+
+    @Option(name = "--uploadAttempts",
+            usage = "Maximum number of attempts to deliver a build result to its callback.")
+    int uploadAttempts = 4;
+
+    @Option(name = "--uploadBackoffMs",
+            usage = "Delay before retrying to deliver a build result, doubled for every retry.")
+    long uploadBackoffMs = 1000;
+
+    @Option(name = "--progressReportIntervalMs",
+            usage = "Minimum time between two progress reports of a build.")
+    long progressReportIntervalMs = 1000;
+
+    @Option(name = "--apkCacheDir",
+            usage = "the directory to cache the APKs built from unchanged projects")
+    String apkCacheDir = null;
+
+    @Option(name = "--apkCacheMaxMb",
+            usage = "Maximum size of the APK cache, in MB.")
+    int apkCacheMaxMb = 1024;
+
+    @Option(name = "--iconCacheDir",
+            usage = "the directory to cache the launcher icons generated for application icons")
+    String iconCacheDir = null;
+
+    @Option(name = "--iconCacheMaxEntries",
+            usage = "Maximum number of application icons kept in the icon cache.")
+    int iconCacheMaxEntries = 1000;
+
+    @Option(name = "--maxChildProcesses",
+            usage = "Maximum number of Kawa and dx processes that can run in parallel. 0 means size by processors and memory.")
+    int maxChildProcesses = 0;
+
+    @Option(name = "--kawaWorkers",
+            usage = "Number of idle Kawa compiler processes kept warm between builds. 0 disables reuse.")
+    int kawaWorkers = 2;
+
+    @Option(name = "--kawaWorkerMaxJobs",
+            usage = "Number of compilations after which a Kawa compiler process is replaced.")
+    int kawaWorkerMaxJobs = 25;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -186,7 +404,7 @@ public class BuildServer {
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static QueuingBuildExecutor buildExecutor;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -217,8 +435,9 @@ public class BuildServer {
   //                            In this state we return bad health, but accept jobs
   //                DOWN:       We return bad health and reject jobs
   //                DRAINING:   We have reached > 2/3 of max permitted jobs
-  //                            We return bad health (but accept jobs) until
-  //                            the number of active jobs is < 1/3 of max
+  //                            (counting queued jobs) We return bad health
+  //                            (but accept jobs) until the number of active
+  //                            and queued jobs is < 1/3 of max
   private enum ShutdownState { UP, SHUTTING, TURNING, DOWN, DRAINING };
 
   private static volatile boolean draining = false; // We have exceeded 2/3 max load, waiting for
@@ -310,6 +529,51 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("estimated-build-wait-in-ms", buildExecutor.getEstimatedWaitMillis() + "");
+
+    // Kawa and dx processes
+    ChildProcessScheduler scheduler = ChildProcessScheduler.get();
+    variables.put("maximum-simultaneous-child-processes", scheduler.getPermits() + "");
+    variables.put("active-child-processes", scheduler.getActiveCount() + "");
+    variables.put("waiting-child-processes", scheduler.getWaitingCount() + "");
+    variables.put("completed-child-process-waits", scheduler.getAcquisitionCount() + "");
+    variables.put("child-process-total-wait-in-ms", scheduler.getTotalWaitMillis() + "");
+    variables.put("child-process-max-wait-in-ms", scheduler.getMaxWaitMillis() + "");
+
+    // Kawa compiler processes
+    variables.put("idle-kawa-workers", KawaCompilerPool.getIdleWorkerCount() + "");
+    variables.put("started-kawa-workers", KawaCompilerPool.getStartedWorkerCount() + "");
+    variables.put("reused-kawa-workers", KawaCompilerPool.getReusedWorkerCount() + "");
+
+    // Screen class cache
+    variables.put("screen-class-cache-hits", ScreenClassCache.getHitCount() + "");
+    variables.put("screen-class-cache-misses", ScreenClassCache.getMissCount() + "");
+
+    // AAR library cache
+    variables.put("exploded-aar-cache-hits", AarLibraryCache.getExplodedHitCount() + "");
+    variables.put("exploded-aar-cache-misses", AarLibraryCache.getExplodedMissCount() + "");
+    variables.put("merged-aar-resources-cache-hits", AarLibraryCache.getMergedHitCount() + "");
+    variables.put("merged-aar-resources-cache-misses", AarLibraryCache.getMergedMissCount() + "");
+
+    // Icon cache
+    variables.put("icon-cache-hits", IconCache.getHitCount() + "");
+    variables.put("icon-cache-misses", IconCache.getMissCount() + "");
+
+    // APK cache
+    variables.put("apk-cache-hits", ApkCache.getHitCount() + "");
+    variables.put("apk-cache-misses", ApkCache.getMissCount() + "");
+
+    // Native tools
+    variables.put("tool-invocations", ToolRunner.getInvocationCount() + "");
+    variables.put("tool-timeouts", ToolRunner.getTimeoutCount() + "");
+
+    // Build result delivery
+    variables.put("upload-retries", ResultUploader.getRetryCount() + "");
+    variables.put("upload-failures", ResultUploader.getFailureCount() + "");
+    variables.put("progress-reports-sent", ProgressReporter.getSentCount() + "");
+    variables.put("progress-reports-coalesced", ProgressReporter.getCoalescedCount() + "");
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -321,13 +585,79 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns build stage timings, child process and cache statistics as JSON.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response metrics() throws JSONException {
+    JSONObject metrics = BuildMetrics.toJson();
+
+    JSONObject builds = new JSONObject();
+    builds.put("requests", asyncBuildRequests.get());
+    builds.put("rejected", rejectedAsyncBuildRequests.get());
+    builds.put("successful", successfulBuildRequests.get());
+    builds.put("failed", failedBuildRequests.get());
+    builds.put("active", buildExecutor.getActiveTaskCount());
+    builds.put("queued", buildExecutor.getQueuedTaskCount());
+    builds.put("estimated-wait-ms", buildExecutor.getEstimatedWaitMillis());
+    metrics.put("builds", builds);
+
+    ChildProcessScheduler scheduler = ChildProcessScheduler.get();
+    JSONObject childProcesses = new JSONObject();
+    childProcesses.put("permits", scheduler.getPermits());
+    childProcesses.put("active", scheduler.getActiveCount());
+    childProcesses.put("waiting", scheduler.getWaitingCount());
+    metrics.put("child-processes", childProcesses);
+
+    JSONObject caches = new JSONObject();
+    caches.put("screen-classes", cacheJson(ScreenClassCache.getHitCount(),
+        ScreenClassCache.getMissCount()));
+    caches.put("predexed-libraries", cacheJson(DexExecTask.getPredexHitCount(),
+        DexExecTask.getPredexMissCount()));
+    caches.put("exploded-aars", cacheJson(AarLibraryCache.getExplodedHitCount(),
+        AarLibraryCache.getExplodedMissCount()));
+    caches.put("merged-aar-resources", cacheJson(AarLibraryCache.getMergedHitCount(),
+        AarLibraryCache.getMergedMissCount()));
+    caches.put("icons", cacheJson(IconCache.getHitCount(), IconCache.getMissCount()));
+    caches.put("apks", cacheJson(ApkCache.getHitCount(), ApkCache.getMissCount()));
+    caches.put("kawa-workers", cacheJson(KawaCompilerPool.getReusedWorkerCount(),
+        KawaCompilerPool.getStartedWorkerCount()));
+    metrics.put("caches", caches);
+
+    JSONObject tools = new JSONObject();
+    tools.put("invocations", ToolRunner.getInvocationCount());
+    tools.put("timeouts", ToolRunner.getTimeoutCount());
+    metrics.put("tools", tools);
+
+    JSONObject uploads = new JSONObject();
+    uploads.put("retries", ResultUploader.getRetryCount());
+    uploads.put("failures", ResultUploader.getFailureCount());
+    metrics.put("uploads", uploads);
+
+    JSONObject progressReports = new JSONObject();
+    progressReports.put("sent", ProgressReporter.getSentCount());
+    progressReports.put("coalesced", ProgressReporter.getCoalescedCount());
+    metrics.put("progress-reports", progressReports);
+
+    return Response.ok(metrics.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  private static JSONObject cacheJson(int hits, int misses) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("hits", hits);
+    json.put("misses", misses);
+    json.put("hit-rate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+    return json;
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
    * @param token -- secret token used like a password to authenticate the shutdown command
    * @param delay -- the delay in seconds before jobs are no longer accepted
    */
-
   @GET
   @Path("shutdown")
   @Produces(MediaType.TEXT_PLAIN)
@@ -562,35 +892,26 @@ public class BuildServer {
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile, new ProgressReporter(callbackUrlStr));
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+              ProgressReporter reporter = new ProgressReporter(callbackUrlStr);
+              final Result buildResult;
               try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
+                buildResult = buildAndCount(userName, inputZipFile, reporter);
               } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
+                reporter.close();
               }
+              // Send zip back to the callbackUrl
+              LOG.info("CallbackURL: " + callbackUrlStr);
+              ResultUploader.upload(callbackUrlStr, new ResultUploader.Body() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                  try {
+                    writeResultZip(buildResult, out);
+                  } catch (JSONException e) {
+                    throw new IOException(e);
+                  }
+                }
+              });
+              checkMemory();
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
@@ -602,10 +923,14 @@ public class BuildServer {
           }
         };
       try {
-        buildExecutor.execute(buildTask);
+        long estimatedWait = buildExecutor.getEstimatedWaitMillis();
+        buildExecutor.execute(buildTask, userName, inputZip.length());
+        if (estimatedWait > 0) {
+          LOG.info("Build queued, estimated wait " + estimatedWait + " ms");
+        }
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and its queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
@@ -614,7 +939,10 @@ public class BuildServer {
         // overloading or maintenance of the server. The implication
         // is that this is a temporary condition which will be
         // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        long retryAfterSeconds = Math.max(1, buildExecutor.getEstimatedWaitMillis() / 1000);
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+            .header("Retry-After", retryAfterSeconds)
+            .entity("The build server is currently at maximum capacity.").build();
       }
     }
     // Note: The code below should no longer be invoked. Progress reports
@@ -626,31 +954,48 @@ public class BuildServer {
 
   private void buildAndCreateZip(String userName, File inputZipFile, ProgressReporter reporter)
     throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile, reporter);
-    boolean buildSucceeded = buildResult.succeeded();
+    Result buildResult = buildAndCount(userName, inputZipFile, reporter);
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
-    if (buildSucceeded) {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputZip))) {
+      writeResultZip(buildResult, out);
+    }
+  }
+
+  private Result buildAndCount(String userName, File inputZipFile, ProgressReporter reporter)
+    throws IOException {
+    Result buildResult = build(userName, inputZipFile, reporter);
+    if (buildResult.succeeded()) {
+      successfulBuildRequests.getAndIncrement();
+    } else {
+      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
+      failedBuildRequests.getAndIncrement();
+    }
+    return buildResult;
+  }
+
+  /**
+   * Writes the zip sent back to App Inventor: the APK and the generated keystore if the build
+   * succeeded, and build.out. The APK is read from where the build left it, so this can be
+   * called again to resend the result.
+   */
+  private void writeResultZip(Result buildResult, OutputStream out)
+    throws IOException, JSONException {
+    ZipOutputStream zipOutputStream = new ZipOutputStream(out);
+    if (buildResult.succeeded()) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
         Files.copy(outputKeystore, zipOutputStream);
       }
       zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
       Files.copy(outputApk, zipOutputStream);
-      successfulBuildRequests.getAndIncrement();
-    } else {
-      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
-      failedBuildRequests.getAndIncrement();
     }
     zipOutputStream.putNextEntry(new ZipEntry("build.out"));
     String buildOutputJson = genBuildOutput(buildResult);
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
-    zipOutputStream.flush();
-    zipOutputStream.close();
+    zipOutputStream.finish();
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -671,7 +1016,20 @@ public class BuildServer {
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, null,
+    ZipFile inputZipFile = new ZipFile(zipFile);
+    String cacheKey = null;
+    if (ApkCache.isEnabled()) {
+      cacheKey = ApkCache.getKey(GitBuildId.getVersion(), userName, inputZipFile);
+      ApkCache.CachedBuild cached = ApkCache.restore(cacheKey, outputDir);
+      if (cached != null) {
+        LOG.info("Serving cached APK " + cacheKey);
+        outputApk = cached.getApk();
+        outputApk.deleteOnExit();  // In case build server is killed before cleanUp executes.
+        inputZipFile.close();
+        return cached.getResult();
+      }
+    }
+    Result buildResult = projectBuilder.build(userName, inputZipFile, outputDir, null,
         false, false, false, null,
         commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, reporter);
     String buildOutput = buildResult.getOutput();
@@ -686,6 +1044,12 @@ public class BuildServer {
     if (outputKeystore != null) {
       outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
+    // A generated keystore holds the user's private key, so such builds are not cached. The next
+    // build of the project comes with the keystore and is cached then.
+    if (cacheKey != null && buildResult.succeeded() && outputApk != null
+        && outputKeystore == null) {
+      ApkCache.store(cacheKey, buildResult, outputApk);
+    }
     checkMemory();
     return buildResult;
   }
@@ -746,8 +1110,9 @@ public class BuildServer {
             return;
           }
           while (true) {
-            int tasks = buildExecutor.getActiveTaskCount();
+            int tasks = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
             if (tasks <= 0) {
+              KawaCompilerPool.shutdown();
               try {
                 Thread.sleep(10000); // One final wait so people can get
                                      // their barcode
@@ -765,8 +1130,35 @@ public class BuildServer {
       });
 
 
+    if (commandLineOptions.toolCacheDir != null) {
+      ToolResourceCache.configure(commandLineOptions.toolCacheDir);
+    }
+
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new QueuingBuildExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds);
+    StageGraph.configure(commandLineOptions.buildStageThreads);
+    ToolRunner.configure(commandLineOptions.toolTimeoutSeconds);
+    ResultUploader.configure(commandLineOptions.uploadAttempts, commandLineOptions.uploadBackoffMs);
+    ProgressReporter.configure(commandLineOptions.progressReportIntervalMs);
+    // Parse the component descriptions once, before the first build needs them
+    try {
+      ComponentRegistry.getSimpleComponents();
+    } catch (JSONException e) {
+      LOG.severe("Unable to parse the component descriptions: " + e.getMessage());
+      System.exit(1);
+    }
+    ChildProcessScheduler.configure(commandLineOptions.maxChildProcesses,
+        commandLineOptions.childProcessRamMb);
+    KawaCompilerPool.configure(commandLineOptions.kawaWorkers,
+        commandLineOptions.kawaWorkerMaxJobs);
+    DexExecTask.setInProcess(commandLineOptions.dexInProcess);
+    ScreenClassCache.configure(commandLineOptions.screenCacheDir,
+        commandLineOptions.screenCacheMaxEntries);
+    AarLibraryCache.configure(commandLineOptions.aarCacheDir,
+        commandLineOptions.aarCacheMaxMergedEntries);
+    ApkCache.configure(commandLineOptions.apkCacheDir, commandLineOptions.apkCacheMaxMb);
+    IconCache.configure(commandLineOptions.iconCacheDir, commandLineOptions.iconCacheMaxEntries);
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -778,6 +1170,7 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds);
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
@@ -812,7 +1205,7 @@ public class BuildServer {
                                 // (unlimited == 0) and allow more then 10 max builds
         return ShutdownState.UP;
       }
-      int active = buildExecutor.getActiveTaskCount();
+      int active = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
       if (draining) {
         if (active < max/3) {
           draining = false;
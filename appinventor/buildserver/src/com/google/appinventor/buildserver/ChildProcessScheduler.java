@@ -0,0 +1,164 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many memory hungry child processes (Kawa and dx) run at the same time.
+ *
+ * <p>Each Kawa or dx run may use up to {@code childProcessRamMb} of memory. Rather than
+ * serializing all of them across every build, the build server hands out a fixed number of
+ * permits, sized by the number of processors and the amount of physical memory. Builds wait
+ * in FIFO order for a permit, and the time spent waiting is recorded so that it can be shown
+ * on the /buildserver/vars page.
+ */
+final class ChildProcessScheduler {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ChildProcessScheduler.class.getName());
+
+  // Memory we leave for the build server itself and the operating system when sizing permits.
+  private static final long RESERVED_MB = 1024;
+
+  // The scheduler shared by all builds. Until configured, only one child process runs at a time,
+  // which matches the behavior of the command line compiler.
+  private static volatile ChildProcessScheduler shared = new ChildProcessScheduler(1);
+
+  private final int permits;
+  private final Semaphore semaphore;
+
+  private final AtomicInteger waiting = new AtomicInteger(0);
+  private final AtomicInteger acquisitions = new AtomicInteger(0);
+  private final AtomicLong totalWaitMillis = new AtomicLong(0);
+  private final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+  /**
+   * Creates a ChildProcessScheduler.
+   *
+   * @param permits the maximum number of child processes that may run at once
+   */
+  ChildProcessScheduler(int permits) {
+    this.permits = Math.max(1, permits);
+    this.semaphore = new Semaphore(this.permits, true);
+  }
+
+  /**
+   * Returns the scheduler shared by all builds.
+   */
+  static ChildProcessScheduler get() {
+    return shared;
+  }
+
+  /**
+   * Replaces the shared scheduler. This should only be called at startup, before any build runs.
+   *
+   * @param permits the maximum number of child processes, or 0 to size it from the processors
+   *                and physical memory available
+   * @param childProcessRamMb the maximum memory used by a single child process, in MB
+   */
+  static void configure(int permits, int childProcessRamMb) {
+    if (permits <= 0) {
+      permits = computeDefaultPermits(childProcessRamMb);
+    }
+    LOG.info("Maximum simultaneous Kawa/dx processes = " + permits);
+    shared = new ChildProcessScheduler(permits);
+  }
+
+  /**
+   * Computes a permit count from the number of processors and the physical memory.
+   *
+   * @param childProcessRamMb the maximum memory used by a single child process, in MB
+   * @return the number of child processes that fit on this machine, at least 1
+   */
+  static int computeDefaultPermits(int childProcessRamMb) {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    int byCpu = osBean.getAvailableProcessors();
+    int byRam = byCpu;
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean && childProcessRamMb > 0) {
+      long physicalMb =
+          getTotalMemorySize((com.sun.management.OperatingSystemMXBean) osBean) / (1024 * 1024);
+      long heapMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+      byRam = (int) ((physicalMb - heapMb - RESERVED_MB) / childProcessRamMb);
+    }
+    return Math.max(1, Math.min(byCpu, byRam));
+  }
+
+  /*
+   * Returns the physical memory of the machine, in bytes. getTotalPhysicalMemorySize is
+   * deprecated in favor of getTotalMemorySize from Java 14 on, so the latter is used when the
+   * JVM has it.
+   */
+  @SuppressWarnings("deprecation")
+  private static long getTotalMemorySize(com.sun.management.OperatingSystemMXBean osBean) {
+    try {
+      return (Long) com.sun.management.OperatingSystemMXBean.class
+          .getMethod("getTotalMemorySize").invoke(osBean);
+    } catch (ReflectiveOperationException e) {
+      return osBean.getTotalPhysicalMemorySize();
+    }
+  }
+
+  /**
+   * Waits for a permit to run a child process. Every call must be paired with a call to
+   * {@link #release()}, normally in a finally block.
+   */
+  void acquire() {
+    long start = System.currentTimeMillis();
+    waiting.incrementAndGet();
+    try {
+      semaphore.acquireUninterruptibly();
+    } finally {
+      waiting.decrementAndGet();
+    }
+    long waited = System.currentTimeMillis() - start;
+    acquisitions.incrementAndGet();
+    totalWaitMillis.addAndGet(waited);
+    BuildMetrics.recordStage(BuildMetrics.CHILD_PROCESS_WAIT, waited);
+    long max;
+    while (waited > (max = maxWaitMillis.get())) {
+      if (maxWaitMillis.compareAndSet(max, waited)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns a permit obtained with {@link #acquire()}.
+   */
+  void release() {
+    semaphore.release();
+  }
+
+  public int getPermits() {
+    return permits;
+  }
+
+  public int getActiveCount() {
+    return permits - semaphore.availablePermits();
+  }
+
+  public int getWaitingCount() {
+    return waiting.get();
+  }
+
+  public int getAcquisitionCount() {
+    return acquisitions.get();
+  }
+
+  public long getTotalWaitMillis() {
+    return totalWaitMillis.get();
+  }
+
+  public long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+}
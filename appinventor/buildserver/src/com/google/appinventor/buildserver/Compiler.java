@@ -17,16 +17,19 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -37,24 +40,34 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -86,9 +99,6 @@ public final class Compiler {
 
   public static int currentProgress = 10;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
-
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
   private static final String ZIPSLASH = "/";
@@ -123,8 +133,6 @@ public final class Compiler {
       RUNTIME_FILES_DIR + "android.jar";
   private static final String[] SUPPORT_JARS;
   private static final String[] SUPPORT_AARS;
-  private static final String COMP_BUILD_INFO =
-      RUNTIME_FILES_DIR + "simple_components_build_info.json";
   private static final String DX_JAR =
       RUNTIME_FILES_DIR + "dx.jar";
   private static final String KAWA_RUNTIME =
@@ -182,18 +190,12 @@ public final class Compiler {
 
   private static final String LINUX_AAPT_TOOL =
       "/tools/linux/aapt";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
   private static final String MAC_AAPT_TOOL =
       "/tools/mac/aapt";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
   private static final String WINDOWS_AAPT_TOOL =
       "/tools/windows/aapt";
   private static final String WINDOWS_PTHEAD_DLL =
       "/tools/windows/libwinpthread-1.dll";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
 
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
@@ -264,15 +266,6 @@ public final class Compiler {
   private final ConcurrentMap<String, Set<String>> componentBroadcastReceiver =
       new ConcurrentHashMap<String, Set<String>>();
 
-  /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
-   */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
-
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String COMPILATION_ERROR =
       "Error: Your build failed due to an error when compiling %s.\n";
@@ -331,8 +324,8 @@ public final class Compiler {
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
 
-  private JSONArray simpleCompsBuildInfo;
-  private JSONArray extCompsBuildInfo;
+  // Build information of the built-in components followed by that of the project's extensions
+  private List<ComponentRegistry.BuildInfo> compsBuildInfo;
   private Set<String> simpleCompTypes;  // types needed by the project
   private Set<String> extCompTypes; // types needed by the project
 
@@ -342,12 +335,31 @@ public final class Compiler {
   private List<File> dexFiles = new ArrayList<>();
 
   /**
-   * Mapping from type name to path in project to minimize tests against the file system.
+   * The last progress reported, in percent.
+   */
+  private final AtomicInteger progress = new AtomicInteger(0);
+
+  /**
+   * Mapping from type name to path in project to minimize tests against the file system. Filled
+   * by build stages that run at the same time.
    */
-  private Map<String, String> extTypePathCache = new HashMap<String, String>();
+  private final Map<String, String> extTypePathCache = new ConcurrentHashMap<String, String>();
 
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
+  // Renders the icon densities of all builds, so that concurrent builds share the processors.
+  private static final ExecutorService iconRenderers = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "icon-renderer-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   private BuildServer.ProgressReporter reporter; // Used to report progress of the build
 
   /*
@@ -716,7 +728,8 @@ public final class Compiler {
     }
   }
 
-  private void generateMinSdks() {
+  @VisibleForTesting
+  void generateMinSdks() {
     try {
       loadJsonInfo(minSdksNeeded, ComponentDescriptorConstants.ANDROIDMINSDK_TARGET);
     } catch (IOException|JSONException e) {
@@ -987,7 +1000,8 @@ public final class Compiler {
   /*
    * Creates an AndroidManifest.xml file needed for the Android application.
    */
-  private boolean writeAndroidManifest(File manifestFile) {
+  @VisibleForTesting
+  boolean writeAndroidManifest(File manifestFile) {
     // Create AndroidManifest.xml
     String mainClass = project.getMainClass();
     String packageName = Signatures.getPackageName(mainClass);
@@ -1312,9 +1326,9 @@ public final class Compiler {
    * @param project  project to build
    * @param compTypes component types used in the project
    * @param compBlocks component type mapped to blocks used in project
-   * @param out  stdout stream for compiler messages
-   * @param err  stderr stream for compiler messages
-   * @param userErrors stream to write user-visible error messages
+   * @param stdout  stdout stream for compiler messages
+   * @param stderr  stderr stream for compiler messages
+   * @param userErrorStream stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
@@ -1322,15 +1336,20 @@ public final class Compiler {
    * @throws IOException
    */
   public static boolean compile(Project project, Set<String> compTypes, Map<String, Set<String>> compBlocks,
-                                PrintStream out, PrintStream err, PrintStream userErrors,
+                                PrintStream stdout, PrintStream stderr, PrintStream userErrorStream,
                                 boolean isForCompanion, boolean isForEmulator,
-                                boolean includeDangerousPermissions, String keystoreFilePath,
+                                boolean includeDangerousPermissions, final String keystoreFilePath,
                                 int childProcessRam, String dexCacheDir, String outputFileName,
                                 BuildServer.ProgressReporter reporter) throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
+    // The build stages run at the same time, so their messages are written out stage by stage.
+    final PrintStream out = StageGraph.perStage(stdout);
+    PrintStream err = StageGraph.perStage(stderr);
+    PrintStream userErrors = StageGraph.perStage(userErrorStream);
+
     // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, compTypes, compBlocks, out, err, userErrors,
+    final Compiler compiler = new Compiler(project, compTypes, compBlocks, out, err, userErrors,
         isForCompanion, isForEmulator, includeDangerousPermissions, childProcessRam, dexCacheDir,
         reporter);
 
@@ -1353,15 +1372,15 @@ public final class Compiler {
     compiler.generateBroadcastReceiver();
 
     // Create build directory.
-    File buildDir = createDir(project.getBuildDirectory());
+    final File buildDir = createDir(project.getBuildDirectory());
 
-    // Prepare application icon.
-    out.println("________Preparing application icon");
-    File resDir = createDir(buildDir, "res");
-    File drawableDir = createDir(resDir, "drawable");
+    // Create the directories shared by the build stages up front, so that the stages only depend
+    // on each other through the files they write.
+    final File resDir = createDir(buildDir, "res");
+    final File drawableDir = createDir(resDir, "drawable");
 
     // Create mipmap directories
-    File mipmapV26 = createDir(resDir, "mipmap-anydpi-v26");
+    final File mipmapV26 = createDir(resDir, "mipmap-anydpi-v26");
     File mipmapHdpi = createDir(resDir,"mipmap-hdpi");
     File mipmapMdpi = createDir(resDir,"mipmap-mdpi");
     File mipmapXhdpi = createDir(resDir,"mipmap-xhdpi");
@@ -1369,128 +1388,179 @@ public final class Compiler {
     File mipmapXxxhdpi = createDir(resDir,"mipmap-xxxhdpi");
 
     // Create list of mipmaps for all icon types with respective sizes
-    List<File> mipmapDirectoriesForIcons = Arrays.asList(mipmapMdpi, mipmapHdpi, mipmapXhdpi, mipmapXxhdpi, mipmapXxxhdpi);
-    List<Integer> standardICSizesForMipmaps = Arrays.asList(48,72,96,144,192);
-    List<Integer> foregroundICSizesForMipmaps = Arrays.asList(108,162,216,324,432);
+    final List<File> mipmapDirectoriesForIcons = Arrays.asList(mipmapMdpi, mipmapHdpi, mipmapXhdpi, mipmapXxhdpi, mipmapXxxhdpi);
+    final List<Integer> standardICSizesForMipmaps = Arrays.asList(48,72,96,144,192);
+    final List<Integer> foregroundICSizesForMipmaps = Arrays.asList(108,162,216,324,432);
+
+    final File animDir = createDir(resDir, "anim");
+    final File styleDir = createDir(resDir, "values");
+    final File style11Dir = createDir(resDir, "values-v11");
+    final File style14Dir = createDir(resDir, "values-v14");
+    final File style21Dir = createDir(resDir, "values-v21");
+    final File style23Dir = createDir(resDir, "values-v23");
+    final File providerDir = createDir(resDir, "xml");
+    final File manifestFile = new File(buildDir, "AndroidManifest.xml");
 
-    if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"), mipmapDirectoriesForIcons, standardICSizesForMipmaps, foregroundICSizesForMipmaps)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(15);        // Have to call directly because we are in a
-    }                             // Static context
+    File deployDir = createDir(buildDir, "deploy");
+    final String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
+        project.getProjectName() + ".ap_";
+    final File classesDir = createDir(buildDir, "classes");
+    // The R classes of the AAR libraries are compiled to a directory of their own, as they are
+    // generated while Kawa writes to the classes directory.
+    final File rClassesDir = createDir(buildDir, "r-classes");
+    final File tmpDir = createDir(buildDir, "tmp");
+    final String dexedClassesDir = tmpDir.getAbsolutePath();
 
-    // Create anim directory and animation xml files
-    out.println("________Creating animation xml");
-    File animDir = createDir(resDir, "anim");
-    if (!compiler.createAnimationXml(animDir)) {
-      return false;
+    String fileName = outputFileName;
+    if (fileName == null) {
+      fileName = project.getProjectName() + ".apk";
     }
+    final String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH + fileName;
+    final String unsignedApkPath = tmpDir.getAbsolutePath() + SLASH + "unsigned.apk";
 
-    // Create values directory and style xml files
-    out.println("________Creating style xml");
-    File styleDir = createDir(resDir, "values");
-    File style11Dir = createDir(resDir, "values-v11");
-    File style14Dir = createDir(resDir, "values-v14");
-    File style21Dir = createDir(resDir, "values-v21");
-    File style23Dir = createDir(resDir, "values-v23");
-    if (!compiler.createValuesXml(styleDir, "") ||
-        !compiler.createValuesXml(style11Dir, "-v11") ||
-        !compiler.createValuesXml(style14Dir, "-v14") ||
-        !compiler.createValuesXml(style21Dir, "-v21") ||
-        !compiler.createValuesXml(style23Dir, "-v23")) {
-      return false;
-    }
+    StageGraph graph = new StageGraph();
 
-    out.println("________Creating provider_path xml");
-    File providerDir = createDir(resDir, "xml");
-    if (!compiler.createProviderXml(providerDir)) {
-      return false;
-    }
+    // Prepare application icon.
+    StageGraph.Stage icon = graph.add("icon", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Preparing application icon");
+        if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"),
+            mipmapDirectoriesForIcons, standardICSizesForMipmaps, foregroundICSizesForMipmaps)) {
+          return false;
+        }
+        compiler.setProgress(15);
+        return true;
+      }
+    });
+
+    StageGraph.Stage resourceXml = graph.add("resource-xml", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        // Create animation xml files
+        out.println("________Creating animation xml");
+        if (!compiler.createAnimationXml(animDir)) {
+          return false;
+        }
 
-    out.println("________Creating network_security_config xml");
-    if (!compiler.createNetworkConfigXml(providerDir)) {
-      return false;
-    }
+        // Create style xml files
+        out.println("________Creating style xml");
+        if (!compiler.createValuesXml(styleDir, "") ||
+            !compiler.createValuesXml(style11Dir, "-v11") ||
+            !compiler.createValuesXml(style14Dir, "-v14") ||
+            !compiler.createValuesXml(style21Dir, "-v21") ||
+            !compiler.createValuesXml(style23Dir, "-v23")) {
+          return false;
+        }
 
-    // Generate ic_launcher.xml
-    out.println("________Generating adaptive icon file");
-    File icLauncher = new File(mipmapV26, "ic_launcher.xml");
-    if (!compiler.writeICLauncher(icLauncher, false)) {
-      return false;
-    }
+        out.println("________Creating provider_path xml");
+        if (!compiler.createProviderXml(providerDir)) {
+          return false;
+        }
 
-    // Generate ic_launcher_round.xml
-    out.println("________Generating round adaptive icon file");
-    File icLauncherRound = new File(mipmapV26, "ic_launcher_round.xml");
-    if (!compiler.writeICLauncher(icLauncherRound, true)) {
-      return false;
-    }
+        out.println("________Creating network_security_config xml");
+        if (!compiler.createNetworkConfigXml(providerDir)) {
+          return false;
+        }
 
-    // Generate ic_launcher_background.xml
-    out.println("________Generating adaptive icon background file");
-    File icBackgroundColor = new File(styleDir, "ic_launcher_background.xml");
-    if (!compiler.writeICLauncherBackground(icBackgroundColor)) {
-      return false;
-    }
+        // Generate ic_launcher.xml
+        out.println("________Generating adaptive icon file");
+        File icLauncher = new File(mipmapV26, "ic_launcher.xml");
+        if (!compiler.writeICLauncher(icLauncher, false)) {
+          return false;
+        }
+
+        // Generate ic_launcher_round.xml
+        out.println("________Generating round adaptive icon file");
+        File icLauncherRound = new File(mipmapV26, "ic_launcher_round.xml");
+        if (!compiler.writeICLauncher(icLauncherRound, true)) {
+          return false;
+        }
+
+        // Generate ic_launcher_background.xml
+        out.println("________Generating adaptive icon background file");
+        File icBackgroundColor = new File(styleDir, "ic_launcher_background.xml");
+        return compiler.writeICLauncherBackground(icBackgroundColor);
+      }
+    });
 
     // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(20);
-    }
+    StageGraph.Stage manifest = graph.add("manifest", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Generating manifest file");
+        if (!compiler.writeAndroidManifest(manifestFile)) {
+          return false;
+        }
+        compiler.setProgress(20);
+        return true;
+      }
+    });
 
     // Insert native libraries
-    out.println("________Attaching native libraries");
-    if (!compiler.insertNativeLibs(buildDir)) {
-      return false;
-    }
+    StageGraph.Stage nativeLibs = graph.add("native-libs", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Attaching native libraries");
+        return compiler.insertNativeLibs(buildDir);
+      }
+    });
 
     // Attach Android AAR Library dependencies
-    out.println("________Attaching Android Archive (AAR) libraries");
-    if (!compiler.attachAarLibraries(buildDir)) {
-      return false;
-    }
+    StageGraph.Stage aarLibs = graph.add("aar-libraries", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Attaching Android Archive (AAR) libraries");
+        return compiler.attachAarLibraries(buildDir);
+      }
+    });
 
     // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
-    if (!compiler.attachCompAssets()) {
-      return false;
-    }
+    StageGraph.Stage compAssets = graph.add("component-assets", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Attaching component assets");
+        return compiler.attachCompAssets();
+      }
+    });
 
     // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDir(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
-        project.getProjectName() + ".ap_";
-    File srcJavaDir = createDir(buildDir, "generated/src");
-    File rJavaDir = createDir(buildDir, "generated/symbols");
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir, rJavaDir)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(30);
-    }
+    StageGraph.Stage aapt = graph.add("aapt", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Invoking AAPT");
+        File srcJavaDir = createDir(buildDir, "generated/src");
+        File rJavaDir = createDir(buildDir, "generated/symbols");
+        if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir, rJavaDir)) {
+          return false;
+        }
+        compiler.setProgress(30);
+        return true;
+      }
+    }, icon, resourceXml, manifest, aarLibs, compAssets);
 
-    // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDir(buildDir, "classes");
-    if (!compiler.generateRClasses(classesDir)) {
-      return false;
-    }
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(35);
-    }
+    StageGraph.Stage rClasses = graph.add("r-classes", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Compiling R classes");
+        return compiler.generateRClasses(rClassesDir);
+      }
+    }, aapt);
+
+    // Create class files. Kawa does not need the resources, so it overlaps with AAPT.
+    StageGraph.Stage classes = graph.add("kawa", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Compiling source files");
+        if (!compiler.generateClasses(classesDir, rClassesDir)) {
+          return false;
+        }
+        compiler.setProgress(35);
+        return true;
+      }
+    }, aarLibs);
 
     // Invoke dx on class files
-    out.println("________Invoking DX");
     // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
     // overhead for subsequent runs).  I think it's because of the need to dx the entire
     // kawa runtime every time.  We should probably only do that once and then copy all the
@@ -1506,45 +1576,49 @@ public final class Compiler {
     // method of identifying via a hash of the path won't work when files
     // are copied into temporary storage) and processed via a hacked up version of
     // Android SDK's Dex Ant task
-    File tmpDir = createDir(buildDir, "tmp");
-    String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runMultidex(classesDir, dexedClassesDir)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(85);
-    }
+    StageGraph.Stage dex = graph.add("dx", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Invoking DX");
+        if (!compiler.runMultidex(classesDir, rClassesDir, dexedClassesDir)) {
+          return false;
+        }
+        compiler.setProgress(85);
+        return true;
+      }
+    }, classes, rClasses);
 
     // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
-    String fileName = outputFileName;
-    if (fileName == null) {
-      fileName = project.getProjectName() + ".apk";
-    }
-    String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH + fileName;
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(95);
-    }
-
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
-      return false;
-    }
+    StageGraph.Stage apkBuilder = graph.add("apkbuilder", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Invoking ApkBuilder");
+        if (!compiler.runApkBuilder(unsignedApkPath, tmpPackageName, dexedClassesDir)) {
+          return false;
+        }
+        compiler.setProgress(95);
+        return true;
+      }
+    }, aapt, dex, nativeLibs);
+
+    // ZipAlign and sign the apk file in a single pass
+    graph.add("sign", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________ZipAligning and signing the apk file");
+        if (!compiler.runAlignAndSign(unsignedApkPath, apkAbsolutePath, keystoreFilePath,
+            tmpDir)) {
+          return false;
+        }
+        compiler.setProgress(100);
+        return true;
+      }
+    }, apkBuilder);
 
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runApkSigner(apkAbsolutePath, keystoreFilePath)) {
+    if (!graph.run()) {
       return false;
     }
 
-    if (reporter != null) {
-      reporter.report(100);
-    }
-
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
 
@@ -1604,6 +1678,7 @@ public final class Compiler {
    * can call System.exit(1), which will bring down our server.
    */
   private boolean runApkBuilder(String apkAbsolutePath, String zipArchive, String dexedClassesDir) {
+    long startApkBuilder = System.currentTimeMillis();
     try {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive,
@@ -1619,6 +1694,8 @@ public final class Compiler {
         apkBuilder.addNativeLibraries(libsDir);
       }
       apkBuilder.sealApk();
+      BuildMetrics.recordStage(BuildMetrics.APK_BUILDER,
+          System.currentTimeMillis() - startApkBuilder);
       return true;
     } catch (Exception e) {
       // This is fatal.
@@ -1672,7 +1749,7 @@ public final class Compiler {
    * important because when we Dex the libraries, a given library can only appear once.
    *
    */
-  private boolean generateClasses(File classesDir) {
+  private boolean generateClasses(File classesDir, File rClassesDir) {
     try {
       List<Project.SourceDescriptor> sources = project.getSources();
       List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
@@ -1725,13 +1802,21 @@ public final class Compiler {
         classpath.append(COLON);
       }
 
+      classpath.append(getResource(KOTLIN_STDLIB));
+      classpath.append(COLON);
+      classpath.append(getResource(ANDROID_RUNTIME));
+
+      // The libraries that depend on the project are given to the Kawa compiler with each job,
+      // so that warm compilers can be shared by all projects.
+      StringBuilder projectClasspath = new StringBuilder();
+
       // attach the jars of external comps
       Set<String> addedExtJars = new HashSet<String>();
       for (String type : extCompTypes) {
         String sourcePath = getExtCompDirPath(type) + SIMPLE_ANDROID_RUNTIME_JAR;
         if (!addedExtJars.contains(sourcePath)) {  // don't add multiple copies for bundled extensions
-          classpath.append(sourcePath);
-          classpath.append(COLON);
+          projectClasspath.append(sourcePath);
+          projectClasspath.append(COLON);
           addedExtJars.add(sourcePath);
         }
       }
@@ -1753,8 +1838,8 @@ public final class Compiler {
 
           uniqueLibsNeeded.add(sourcePath);
 
-          classpath.append(sourcePath);
-          classpath.append(COLON);
+          projectClasspath.append(sourcePath);
+          projectClasspath.append(COLON);
         }
       }
 
@@ -1763,62 +1848,94 @@ public final class Compiler {
         if (classesJar != null) {  // true for optimized AARs in App Inventor libs
           final String abspath = classesJar.getAbsolutePath();
           uniqueLibsNeeded.add(abspath);
-          classpath.append(abspath);
-          classpath.append(COLON);
+          projectClasspath.append(abspath);
+          projectClasspath.append(COLON);
         }
       }
+
+      String kawaProjectClasspath = projectClasspath.toString();
       if (explodedAarLibs.size() > 0) {
-        classpath.append(explodedAarLibs.getOutputDirectory().getAbsolutePath());
-        classpath.append(COLON);
+        kawaProjectClasspath += rClassesDir.getAbsolutePath();
       }
 
-      classpath.append(getResource(KOTLIN_STDLIB));
-      classpath.append(COLON);
-      classpath.append(getResource(ANDROID_RUNTIME));
-
-      System.out.println("Libraries Classpath = " + classpath);
+      System.out.println("Libraries Classpath = " + classpath + COLON + kawaProjectClasspath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
+
+      // Reuse the classes of screens that were compiled before in the same environment.
+      List<String> changedSourceFileNames = Lists.newArrayList();
+      Map<File, String> screenCacheKeys = Maps.newHashMap();
+      if (ScreenClassCache.isEnabled()) {
+        // The R classes are left out of the key, as they may still be being compiled and the
+        // YAIL never refers to them.
+        String environmentKey = ScreenClassCache.getEnvironmentKey(packagePrefix,
+            classpath + COLON + projectClasspath, yailRuntime);
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          File classFile = new File(classFileNames.get(i));
+          String key = ScreenClassCache.getKey(environmentKey, new File(sourceFileNames.get(i)));
+          if (!ScreenClassCache.restore(key, classFile)) {
+            screenCacheKeys.put(classFile, key);
+            changedSourceFileNames.add(sourceFileNames.get(i));
+          }
+        }
+        out.println("Reusing compiled classes for "
+            + (sourceFileNames.size() - changedSourceFileNames.size()) + " of "
+            + sourceFileNames.size() + " screens");
+      } else {
+        changedSourceFileNames.addAll(sourceFileNames);
+      }
+
       List<String> kawaCommandArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
       Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packagePrefix,
           "-C");
       // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
       // source file names. The resulting .class files contain references to the source file names,
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
+      kawaCommandArgs.addAll(changedSourceFileNames);
       kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
-
-      long start = System.currentTimeMillis();
-      // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
-      // them to the protocol buffer for logging purposes. (See
-      // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
-      }
-      if (!kawaSuccess) {
-        LOG.log(Level.SEVERE, "Kawa compile has failed.");
-      }
-      String kawaOutput = kawaOutputStream.toString();
-      out.print(kawaOutput);
-      String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
-      out.println(kawaCompileTimeMessage);
-      LOG.info(kawaCompileTimeMessage);
+
+      if (!changedSourceFileNames.isEmpty()) {
+        long start;
+        // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
+        // them to the protocol buffer for logging purposes. (See
+        // buildserver/ProjectBuilder.processCompilerOutout.
+        ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
+        boolean kawaSuccess;
+        // Kawa and DX processes can use a lot of memory, so the number running at once is limited.
+        ChildProcessScheduler scheduler = ChildProcessScheduler.get();
+        scheduler.acquire();
+        try {
+          start = System.currentTimeMillis();
+          kawaSuccess = KawaCompilerPool.compile(classpath.toString(), kawaProjectClasspath, mx,
+              yailRuntime, kawaCommandArgs, System.out, new PrintStream(kawaOutputStream));
+        } finally {
+          scheduler.release();
+        }
+        if (!kawaSuccess) {
+          LOG.log(Level.SEVERE, "Kawa compile has failed.");
+        }
+        String kawaOutput = kawaOutputStream.toString();
+        out.print(kawaOutput);
+        long kawaTime = System.currentTimeMillis() - start;
+        BuildMetrics.recordStage(BuildMetrics.KAWA, kawaTime);
+        String kawaCompileTimeMessage = "Kawa compile time: " + (kawaTime / 1000.0) + " seconds";
+        out.println(kawaCompileTimeMessage);
+        LOG.info(kawaCompileTimeMessage);
+
+        if (kawaSuccess) {
+          for (Map.Entry<File, String> entry : screenCacheKeys.entrySet()) {
+            if (entry.getKey().exists()) {
+              ScreenClassCache.store(entry.getValue(), entry.getKey());
+            }
+          }
+        }
+      }
 
       // Check that all of the class files were created.
       // If they weren't, return with an error.
@@ -1841,38 +1958,54 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDir(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
+  /**
+   * Aligns and signs the apk built by ApkBuilder, writing the final apk.
+   *
+   * @param unsignedApkPath the apk produced by ApkBuilder
+   * @param apkAbsolutePath the path of the signed apk
+   * @param keystoreAbsolutePath the keystore holding the signing key
+   * @param tmpDir directory for intermediate files
+   * @return true if successful or false if an error occurred
+   */
+  private boolean runAlignAndSign(String unsignedApkPath, String apkAbsolutePath,
+      String keystoreAbsolutePath, File tmpDir) {
+    long startSign = System.currentTimeMillis();
+    try {
+      InProcessApkSigner.alignAndSign(getResource(APKSIGNER_JAR), new File(keystoreAbsolutePath),
+          "AndroidKey", "android", new File(unsignedApkPath), new File(apkAbsolutePath));
+      String signTimeMessage = "ZIPALIGN and APKSIGNER time: " +
+          ((System.currentTimeMillis() - startSign) / 1000.0) + " seconds";
+      out.println(signTimeMessage);
+      LOG.info(signTimeMessage);
+      return true;
+    } catch (InProcessApkSigner.UnavailableException e) {
+      LOG.log(Level.WARNING, "Unable to sign in process, running zipalign and apksigner", e);
+    } catch (IOException|GeneralSecurityException e) {
+      e.printStackTrace();
+      LOG.warning("YAIL compiler - apksigner execution failed.");
+      err.println("YAIL compiler - apksigner execution failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "APKSIGNER"));
+      return false;
+    }
+
+    // Fall back to the command line tools
+    if (!copyFile(unsignedApkPath, apkAbsolutePath)) {
       userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
       return false;
     }
+    return runZipAlign(apkAbsolutePath, tmpDir) && runApkSigner(apkAbsolutePath,
+        keystoreAbsolutePath);
+  }
+
+  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
     // TODO: create tmp file for zipaling result
     String zipAlignedPath = tmpDir.getAbsolutePath() + SLASH + "zipaligned.apk";
-    // zipalign -f 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
     long startZipAlign = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
+    // Same as zipalign -f 4 infile.zip outfile.zip, without starting a process
+    try (OutputStream zipAligned = new BufferedOutputStream(new FileOutputStream(zipAlignedPath))) {
+      ZipAligner.align(new File(apkAbsolutePath), zipAligned, 4);
+    } catch (IOException e) {
+      e.printStackTrace();
       LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
       err.println("YAIL compiler - ZIPALIGN execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
@@ -1884,8 +2017,9 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
       return false;
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
+    long zipAlignTime = System.currentTimeMillis() - startZipAlign;
+    BuildMetrics.recordStage(BuildMetrics.ZIPALIGN, zipAlignTime);
+    String zipALignTimeMessage = "ZIPALIGN time: " + (zipAlignTime / 1000.0) + " seconds";
     out.println(zipALignTimeMessage);
     LOG.info(zipALignTimeMessage);
     return true;
@@ -1917,7 +2051,9 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "APKSIGNER"));
       return false;
     }
-    String apkSignerTimeMessage = "APKSIGNER time: " + ((System.currentTimeMillis() - startApkSigner) / 1000.0) + " seconds";
+    long apkSignerTime = System.currentTimeMillis() - startApkSigner;
+    BuildMetrics.recordStage(BuildMetrics.SIGN, apkSignerTime);
+    String apkSignerTimeMessage = "APKSIGNER time: " + (apkSignerTime / 1000.0) + " seconds";
     out.println(apkSignerTimeMessage);
     LOG.info(apkSignerTimeMessage);
     return true;
@@ -1926,24 +2062,44 @@ public final class Compiler {
   /*
    * Returns a resized image given a new width and height
    */
-  private BufferedImage resizeImage(BufferedImage icon, int height, int width) {
-    Image tmp = icon.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-    BufferedImage finalResized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-    Graphics2D g2 = finalResized.createGraphics();
-    g2.drawImage(tmp, 0, 0, null);
-    return finalResized;
+  private static BufferedImage resizeImage(BufferedImage icon, int height, int width) {
+    return scaleImage(icon, width, height);
+  }
+
+  /*
+   * Scales an image with bilinear interpolation. Large reductions are done by halving the image
+   * in steps, which keeps the edges as smooth as area averaging (Image.SCALE_SMOOTH) at a
+   * fraction of its cost.
+   */
+  private static BufferedImage scaleImage(BufferedImage image, int width, int height) {
+    BufferedImage scaled = image;
+    int currentWidth = image.getWidth();
+    int currentHeight = image.getHeight();
+    do {
+      currentWidth = currentWidth / 2 >= width ? currentWidth / 2 : width;
+      currentHeight = currentHeight / 2 >= height ? currentHeight / 2 : height;
+      BufferedImage step =
+          new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g2 = step.createGraphics();
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g2.drawImage(scaled, 0, 0, currentWidth, currentHeight, null);
+      g2.dispose();
+      scaled = step;
+    } while (currentWidth != width || currentHeight != height);
+    return scaled;
   }
 
   /*
    * Creates the circle image of an icon
    */
-  private BufferedImage produceRoundIcon(BufferedImage icon) {
+  private static BufferedImage produceRoundIcon(BufferedImage icon) {
     int imageWidth = icon.getWidth();
     // Ratio of icon size to png image size for round icon is 0.80
     double iconWidth = imageWidth * 0.80;
     // Round iconWidth value to even int for a centered png
     int intIconWidth = ((int)Math.round(iconWidth / 2) * 2);
-    Image tmp = icon.getScaledInstance(intIconWidth, intIconWidth, Image.SCALE_SMOOTH);
+    BufferedImage tmp = scaleImage(icon, intIconWidth, intIconWidth);
     int marginWidth = ((imageWidth - intIconWidth) / 2);
     BufferedImage roundIcon = new BufferedImage(imageWidth, imageWidth, BufferedImage.TYPE_INT_ARGB);
     Graphics2D g2 = roundIcon.createGraphics();
@@ -1955,13 +2111,13 @@ public final class Compiler {
   /*
    * Creates the image of an icon with rounded corners
    */
-  private BufferedImage produceRoundedCornerIcon(BufferedImage icon) {
+  private static BufferedImage produceRoundedCornerIcon(BufferedImage icon) {
     int imageWidth = icon.getWidth();
     // Ratio of icon size to png image size for roundRect icon is 0.93
     double iconWidth = imageWidth * 0.93;
     // Round iconWidth value to even int for a centered png
     int intIconWidth = ((int)Math.round(iconWidth / 2) * 2);
-    Image tmp = icon.getScaledInstance(intIconWidth, intIconWidth, Image.SCALE_SMOOTH);
+    BufferedImage tmp = scaleImage(icon, intIconWidth, intIconWidth);
     int marginWidth = ((imageWidth - intIconWidth) / 2);
     // Corner radius of roundedCornerIcon needs to be 1/12 of width according to Android material guidelines
     float cornerRadius = intIconWidth / 12;
@@ -1975,14 +2131,14 @@ public final class Compiler {
   /*
    * Creates the foreground image of an icon
    */
-  private BufferedImage produceForegroundImageIcon(BufferedImage icon) {
+  private static BufferedImage produceForegroundImageIcon(BufferedImage icon) {
     int imageWidth = icon.getWidth();
     // According to the adaptive icon documentation, both layers are 108x108dp but only the inner
     // 72x72dp appears in the masked viewport, so we shrink down the size of the image accordingly.
     double iconWidth = imageWidth * 72.0 / 108.0;
     // Round iconWidth value to even int for a centered png
     int intIconWidth = ((int)Math.round(iconWidth / 2) * 2);
-    Image tmp = icon.getScaledInstance(intIconWidth, intIconWidth, Image.SCALE_SMOOTH);
+    BufferedImage tmp = scaleImage(icon, intIconWidth, intIconWidth);
     int marginWidth = ((imageWidth - intIconWidth) / 2);
     BufferedImage foregroundImageIcon = new BufferedImage(imageWidth, imageWidth, BufferedImage.TYPE_INT_ARGB);
     Graphics2D g2 = foregroundImageIcon.createGraphics();
@@ -1991,51 +2147,54 @@ public final class Compiler {
   }
 
   /*
-   * Loads the icon for the application, either a user provided one or the default one.
+   * Loads the icon for the application, either a user provided one or the default one. The
+   * generated images are cached: changes to how they are rendered must be reflected in
+   * IconCache.RENDERER_VERSION.
    */
   private boolean prepareApplicationIcon(File outputPngFile, List<File> mipmapDirectories, List<Integer> standardICSizes, List<Integer> foregroundICSizes) {
     String userSpecifiedIcon = Strings.nullToEmpty(project.getIcon());
     try {
-      BufferedImage icon;
+      byte[] iconBytes;
       if (!userSpecifiedIcon.isEmpty()) {
-        File iconFile = new File(project.getAssetsDirectory(), userSpecifiedIcon);
-        icon = ImageIO.read(iconFile);
-        if (icon == null) {
-          // This can happen if the iconFile isn't an image file.
-          // For example, icon is null if the file is a .wav file.
-          // TODO(lizlooney) - This happens if the user specifies a .ico file. We should
-          // fix that.
-          userErrors.print(String.format(ICON_ERROR, userSpecifiedIcon));
-          return false;
-        }
+        iconBytes = Files.toByteArray(new File(project.getAssetsDirectory(), userSpecifiedIcon));
       } else {
         // Load the default image.
-        icon = ImageIO.read(Compiler.class.getResource(DEFAULT_ICON));
+        iconBytes = Resources.toByteArray(Compiler.class.getResource(DEFAULT_ICON));
       }
 
-      BufferedImage roundIcon = produceRoundIcon(icon);
-      BufferedImage roundRectIcon = produceRoundedCornerIcon(icon);
-      BufferedImage foregroundIcon = produceForegroundImageIcon(icon);
-
-      // For each mipmap directory, create all types of ic_launcher photos with respective mipmap sizes
-      for(int i=0; i < mipmapDirectories.size(); i++){
-        File mipmapDirectory = mipmapDirectories.get(i);
-        Integer standardSize = standardICSizes.get(i);
-        Integer foregroundSize = foregroundICSizes.get(i);
-
-        BufferedImage round = resizeImage(roundIcon,standardSize,standardSize);
-        BufferedImage roundRect = resizeImage(roundRectIcon,standardSize,standardSize);
-        BufferedImage foreground = resizeImage(foregroundIcon,foregroundSize,foregroundSize);
-
-        File roundIconPng = new File(mipmapDirectory,"ic_launcher_round.png");
-        File roundRectIconPng = new File(mipmapDirectory,"ic_launcher.png");
-        File foregroundPng = new File(mipmapDirectory,"ic_launcher_foreground.png");
+      // Every file generated from the icon, by its name in the icon cache
+      Map<String, File> iconFiles = new LinkedHashMap<String, File>();
+      iconFiles.put(outputPngFile.getName(), outputPngFile);
+      for (File mipmapDirectory : mipmapDirectories) {
+        for (String name : Arrays.asList("ic_launcher_round.png", "ic_launcher.png",
+            "ic_launcher_foreground.png")) {
+          iconFiles.put(mipmapDirectory.getName() + "-" + name, new File(mipmapDirectory, name));
+        }
+      }
+      String cacheKey = null;
+      if (IconCache.isEnabled()) {
+        cacheKey = IconCache.getKey(iconBytes, standardICSizes, foregroundICSizes);
+        if (IconCache.restore(cacheKey, iconFiles)) {
+          return true;
+        }
+      }
 
-        ImageIO.write(round, "png", roundIconPng);
-        ImageIO.write(roundRect, "png", roundRectIconPng);
-        ImageIO.write(foreground, "png", foregroundPng);
+      BufferedImage icon = ImageIO.read(new ByteArrayInputStream(iconBytes));
+      if (icon == null && userSpecifiedIcon.isEmpty()) {
+        throw new IOException("Unable to read the default icon");
+      } else if (icon == null) {
+        // This can happen if the iconFile isn't an image file.
+        // For example, icon is null if the file is a .wav file.
+        // TODO(lizlooney) - This happens if the user specifies a .ico file. We should
+        // fix that.
+        userErrors.print(String.format(ICON_ERROR, userSpecifiedIcon));
+        return false;
+      }
+      renderApplicationIcon(icon, outputPngFile, mipmapDirectories, standardICSizes,
+          foregroundICSizes);
+      if (cacheKey != null) {
+        IconCache.store(cacheKey, iconFiles);
       }
-      ImageIO.write(icon, "png", outputPngFile);
     } catch (Exception e) {
       e.printStackTrace();
       // If the user specified the icon, this is fatal.
@@ -2048,6 +2207,58 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Writes the drawable and the launcher icons of every density, rendering the densities in
+   * parallel.
+   */
+  @VisibleForTesting
+  static void renderApplicationIcon(final BufferedImage icon, File outputPngFile,
+      List<File> mipmapDirectories, final List<Integer> standardICSizes,
+      final List<Integer> foregroundICSizes) throws Exception {
+    // The variants only need to be twice as large as the largest mipmap to scale down smoothly.
+    int workingWidth = Math.min(icon.getWidth(), 2 * Collections.max(foregroundICSizes));
+    final BufferedImage workingIcon = workingWidth == icon.getWidth() ? icon
+        : scaleImage(icon, workingWidth,
+            Math.max(1, icon.getHeight() * workingWidth / icon.getWidth()));
+    final BufferedImage roundIcon = produceRoundIcon(workingIcon);
+    final BufferedImage roundRectIcon = produceRoundedCornerIcon(workingIcon);
+    final BufferedImage foregroundIcon = produceForegroundImageIcon(workingIcon);
+
+    // For each mipmap directory, create all types of ic_launcher photos with respective mipmap sizes
+    List<Future<Void>> densities = new ArrayList<Future<Void>>();
+    for (int i = 0; i < mipmapDirectories.size(); i++) {
+      final File mipmapDirectory = mipmapDirectories.get(i);
+      final int standardSize = standardICSizes.get(i);
+      final int foregroundSize = foregroundICSizes.get(i);
+      densities.add(iconRenderers.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          BufferedImage round = resizeImage(roundIcon, standardSize, standardSize);
+          BufferedImage roundRect = resizeImage(roundRectIcon, standardSize, standardSize);
+          BufferedImage foreground = resizeImage(foregroundIcon, foregroundSize, foregroundSize);
+
+          File roundIconPng = new File(mipmapDirectory, "ic_launcher_round.png");
+          File roundRectIconPng = new File(mipmapDirectory, "ic_launcher.png");
+          File foregroundPng = new File(mipmapDirectory, "ic_launcher_foreground.png");
+
+          ImageIO.write(round, "png", roundIconPng);
+          ImageIO.write(roundRect, "png", roundRectIconPng);
+          ImageIO.write(foreground, "png", foregroundPng);
+          return null;
+        }
+      }));
+    }
+    ImageIO.write(icon, "png", outputPngFile);
+    for (Future<Void> density : densities) {
+      try {
+        density.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw cause instanceof Exception ? (Exception) cause : e;
+      }
+    }
+  }
+
   /**
    * Processes recursively the directory pointed at by {@code dir} and adds any class files
    * encountered to the {@code classes} set.
@@ -2138,13 +2349,16 @@ public final class Compiler {
    * @param dexedClassesDir output directory for classes.dex
    * @return true if successful or false if an error occurred
    */
-  private boolean runMultidex(File classesDir, String dexedClassesDir) {
+  private boolean runMultidex(File classesDir, File rClassesDir, String dexedClassesDir) {
     Set<String> mainDexClasses = new HashSet<>();
     List<File> inputList = new ArrayList<>();
     boolean success;
     try {
       // Set up classes for main dex file
       inputList.add(recordForMainDex(classesDir, mainDexClasses));
+      if (explodedAarLibs.size() > 0) {
+        inputList.add(recordForMainDex(rClassesDir, mainDexClasses));
+      }
       inputList.add(recordForMainDex(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)),
           mainDexClasses));
       inputList.add(recordForMainDex(new File(getResource(KAWA_RUNTIME)), mainDexClasses));
@@ -2193,13 +2407,18 @@ public final class Compiler {
         dexTask.setDexedLibs(dexCacheDir);
       }
       String dxTimeMessage;
-      synchronized (SYNC_KAWA_OR_DX) {
+      ChildProcessScheduler scheduler = ChildProcessScheduler.get();
+      scheduler.acquire();
+      try {
         setProgress(50);
         long startDx = System.currentTimeMillis();
         success = dexTask.execute(inputList);
-        dxTimeMessage = String.format(Locale.getDefault(), "DX time: %f seconds",
-            (System.currentTimeMillis() - startDx) / 1000.0);
+        long dxTime = System.currentTimeMillis() - startDx;
+        BuildMetrics.recordStage(BuildMetrics.DX, dxTime);
+        dxTimeMessage = String.format(Locale.getDefault(), "DX time: %f seconds", dxTime / 1000.0);
         setProgress(75);
+      } finally {
+        scheduler.release();
       }
 
       // Aggregate all of the classes.dex files output by dx
@@ -2284,16 +2503,16 @@ public final class Compiler {
     String[] aaptPackageCommandLine = aaptPackageCommandLineArgs.toArray(new String[aaptPackageCommandLineArgs.size()]);
     libSetup();                 // Setup /tmp/lib64 on Linux
     long startAapt = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err)) {
+    // Using System.out on purpose. Don't want to pollute build messages with tools output
+    if (!ToolRunner.run("aapt", aaptPackageCommandLine, System.out)) {
       LOG.warning("YAIL compiler - AAPT execution failed.");
       err.println("YAIL compiler - AAPT execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
       return false;
     }
-    String aaptTimeMessage = "AAPT time: " +
-        ((System.currentTimeMillis() - startAapt) / 1000.0) + " seconds";
+    long aaptTime = System.currentTimeMillis() - startAapt;
+    BuildMetrics.recordStage(BuildMetrics.AAPT, aaptTime);
+    String aaptTimeMessage = "AAPT time: " + (aaptTime / 1000.0) + " seconds";
     out.println(aaptTimeMessage);
     LOG.info(aaptTimeMessage);
 
@@ -2390,7 +2609,12 @@ public final class Compiler {
             if (!processedLibs.contains(libname)) {
               // explode libraries into ${buildDir}/exploded-aars/<package>/
               AARLibrary aarLib = new AARLibrary(new File(getResource(RUNTIME_FILES_DIR + libname)));
-              aarLib.unpackToDirectory(explodedBaseDir);
+              if (AarLibraryCache.isEnabled()) {
+                // reuse the copy exploded by an earlier build
+                AarLibraryCache.unpack(aarLib);
+              } else {
+                aarLib.unpackToDirectory(explodedBaseDir);
+              }
               explodedAarLibs.add(aarLib);
               processedLibs.add(libname);
             }
@@ -2433,7 +2657,7 @@ public final class Compiler {
             return false;
           }
 
-          Files.copy(new File(sourcePath), new File(targetDir, assetName));
+          linkOrCopy(new File(sourcePath), new File(targetDir, assetName));
         }
       }
 
@@ -2442,7 +2666,7 @@ public final class Compiler {
       if (assets != null) {
         for (File asset : assets) {
           if (asset.isFile()) {
-            Files.copy(asset, new File(mergedAssetDir, asset.getName()));
+            linkOrCopy(asset, new File(mergedAssetDir, asset.getName()));
           }
         }
       }
@@ -2454,6 +2678,22 @@ public final class Compiler {
     }
   }
 
+  /**
+   * Makes {@code target} a hard link to {@code source}, falling back to a copy where the file
+   * system does not support links. Assets are never modified by the build, so the second copy
+   * of large media files is avoided.
+   */
+  @VisibleForTesting
+  static void linkOrCopy(File source, File target) throws IOException {
+    // A target that is already a link must not be overwritten in place.
+    java.nio.file.Files.deleteIfExists(target.toPath());
+    try {
+      java.nio.file.Files.createLink(target.toPath(), source.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(source, target);
+    }
+  }
+
   /**
    * Merge XML resources from different dependencies into a single file that can be passed to AAPT.
    *
@@ -2468,6 +2708,13 @@ public final class Compiler {
     File resDir = createDir(intermediates, "res");
     mergedResDir = createDir(resDir, "merged");
     PngCruncher cruncher = new AaptCruncher(getResource(aaptTool), null, null);
+    if (AarLibraryCache.isEnabled()) {
+      // only the app's resources need merging on top of those shared with other builds
+      File libraryResDir = AarLibraryCache.getMergedResources(explodedAarLibs, cruncher);
+      if (libraryResDir != null) {
+        return explodedAarLibs.mergeResources(mergedResDir, mainResDir, libraryResDir, cruncher);
+      }
+    }
     return explodedAarLibs.mergeResources(mergedResDir, mainResDir, cruncher);
   }
 
@@ -2492,42 +2739,16 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Extracts the given resource to the tool cache, if it is not there already, and returns the
+   * absolute path of the extracted file.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
     try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
-      }
-      return file.getAbsolutePath();
-    } catch (NullPointerException e) {
-      throw new IllegalStateException("Unable to find required library: " + resourcePath, e);
+      return ToolResourceCache.get(resourcePath).getAbsolutePath();
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      throw new IllegalStateException("Unable to find required library: " + resourcePath, e);
     }
   }
 
@@ -2569,28 +2790,21 @@ public final class Compiler {
         return;
       }
 
-      JSONArray buildInfo = new JSONArray(
-          "[" + simpleCompsBuildInfo.join(",") + "," +
-          extCompsBuildInfo.join(",") + "]");
-
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject compJson = buildInfo.getJSONObject(i);
-        JSONArray infoArray = null;
-        String type = compJson.getString("type");
-        try {
-          infoArray = compJson.getJSONArray(targetInfo);
-        } catch (JSONException e) {
+      for (ComponentRegistry.BuildInfo compInfo : compsBuildInfo) {
+        String type = compInfo.getType();
+        Set<String> infoSet = compInfo.getInfo(targetInfo);
+        if (infoSet == null) {
           // Older compiled extensions will not have a broadcastReceiver
           // defined. Rather then require them all to be recompiled, we
           // treat the missing attribute as empty.
-          if (e.getMessage().contains("broadcastReceiver")) {
+          if (targetInfo.contains("broadcastReceiver")) {
             LOG.log(Level.INFO, "Component \"" + type + "\" does not have a broadcast receiver.");
             continue;
-          } else if (e.getMessage().contains(ComponentDescriptorConstants.ANDROIDMINSDK_TARGET)) {
+          } else if (targetInfo.equals(ComponentDescriptorConstants.ANDROIDMINSDK_TARGET)) {
             LOG.log(Level.INFO, "Component \"" + type + "\" does not specify a minimum SDK.");
             continue;
           } else {
-            throw e;
+            throw new JSONException("JSONObject[\"" + targetInfo + "\"] not found.");
           }
         }
 
@@ -2598,19 +2812,12 @@ public final class Compiler {
           continue;
         }
 
-        Set<String> infoSet = Sets.newHashSet();
-        for (int j = 0; j < infoArray.length(); ++j) {
-          String info = infoArray.getString(j);
-          if (!info.isEmpty()) {
-            infoSet.add(info);
-          }
-        }
-
         if (!infoSet.isEmpty()) {
-          infoMap.put(type, infoSet);
+          // The registry's sets are shared by all builds, and some stages modify their copy
+          infoMap.put(type, new HashSet<>(infoSet));
         }
 
-        processConditionalInfo(compJson, type, targetInfo);
+        processConditionalInfo(compInfo, type, targetInfo);
       }
     }
   }
@@ -2620,35 +2827,25 @@ public final class Compiler {
    * a structure mapping annotation types to component names to block names to
    * values.
    *
-   * @param compJson Parsed component data from JSON
+   * @param compInfo Build information of the component
    * @param type The name of the type being processed
    * @param targetInfo Name of the annotation target being processed (e.g.,
    *                   permissions). Any of: PERMISSIONS_TARGET,
    *                   BROADCAST_RECEIVERS_TARGET, SERVICES_TARGET,
    *                   CONTENT_PROVIDERS_TARGET
    */
-  private void processConditionalInfo(JSONObject compJson, String type, String targetInfo) {
+  private void processConditionalInfo(ComponentRegistry.BuildInfo compInfo, String type,
+      String targetInfo) {
     // Strip off the package name since SCM and BKY use unqualified names
     type = type.substring(type.lastIndexOf('.') + 1);
 
-    JSONObject conditionals = compJson.optJSONObject(ComponentDescriptorConstants.CONDITIONALS_TARGET);
-    if (conditionals != null) {
-      JSONObject jsonBlockMap = conditionals.optJSONObject(targetInfo);
-      if (jsonBlockMap != null) {
-        if (!this.conditionals.containsKey(targetInfo)) {
-          this.conditionals.put(targetInfo, new HashMap<String, Map<String, Set<String>>>());
-        }
-        Map<String, Set<String>> blockMap = new HashMap<>();
-        this.conditionals.get(targetInfo).put(type, blockMap);
-        for (String key : (List<String>) Lists.newArrayList(jsonBlockMap.keys())) {
-          JSONArray data = jsonBlockMap.optJSONArray(key);
-          HashSet<String> result = new HashSet<>();
-          for (int i = 0; i < data.length(); i++) {
-            result.add(data.optString(i));
-          }
-          blockMap.put(key, result);
-        }
+    // The block maps are never modified, so they are shared with the registry
+    Map<String, Set<String>> blockMap = compInfo.getConditionals(targetInfo);
+    if (blockMap != null) {
+      if (!this.conditionals.containsKey(targetInfo)) {
+        this.conditionals.put(targetInfo, new HashMap<String, Map<String, Set<String>>>());
       }
+      this.conditionals.get(targetInfo).put(type, blockMap);
     }
   }
 
@@ -2707,6 +2904,14 @@ public final class Compiler {
   }
 
   private void setProgress(int increments) {
+    // Stages running in parallel may finish out of order, so progress is only ever increased.
+    int current;
+    do {
+      current = progress.get();
+      if (increments <= current) {
+        return;
+      }
+    } while (!progress.compareAndSet(current, increments));
     LOG.info("The current progress is "
               + increments + "%");
     if (reporter != null) {
@@ -2716,10 +2921,7 @@ public final class Compiler {
 
   private void readBuildInfo() {
     try {
-      simpleCompsBuildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      extCompsBuildInfo = new JSONArray();
+      List<ComponentRegistry.BuildInfo> extCompsBuildInfo = new ArrayList<>();
       Set<String> readComponentInfos = new HashSet<String>();
       for (String type : extCompTypes) {
         // .../assets/external_comps/com.package.MyExtComp/files/component_build_info.json
@@ -2747,16 +2949,17 @@ public final class Compiler {
         JSONTokener tokener = new JSONTokener(buildInfo);
         Object value = tokener.nextValue();
         if (value instanceof JSONObject) {
-          extCompsBuildInfo.put((JSONObject) value);
+          extCompsBuildInfo.add(ComponentRegistry.parseBuildInfo((JSONObject) value));
           readComponentInfos.add(jsonFile.getAbsolutePath());
         } else if (value instanceof JSONArray) {
           JSONArray infos = (JSONArray) value;
           for (int i = 0; i < infos.length(); i++) {
-            extCompsBuildInfo.put(infos.getJSONObject(i));
+            extCompsBuildInfo.add(ComponentRegistry.parseBuildInfo(infos.getJSONObject(i)));
           }
           readComponentInfos.add(jsonFile.getAbsolutePath());
         }
       }
+      compsBuildInfo = ComponentRegistry.getSimpleComponents().withExtensions(extCompsBuildInfo);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -2764,14 +2967,7 @@ public final class Compiler {
 
   private void prepareCompTypes(Set<String> neededTypes) {
     try {
-      JSONArray buildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      Set<String> allSimpleTypes = Sets.newHashSet();
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject comp = buildInfo.getJSONObject(i);
-        allSimpleTypes.add(comp.getString("type"));
-      }
+      Set<String> allSimpleTypes = ComponentRegistry.getSimpleComponents().getTypes();
 
       simpleCompTypes = Sets.newHashSet(neededTypes);
       simpleCompTypes.retainAll(allSimpleTypes);
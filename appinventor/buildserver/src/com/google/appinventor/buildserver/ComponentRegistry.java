@@ -0,0 +1,232 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.components.common.ComponentDescriptorConstants;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Descriptions and build information of the components built into the build server.
+ *
+ * <p>simple_components.json and simple_components_build_info.json only change when the build
+ * server is rebuilt, so they are parsed once per process into immutable maps that every build
+ * queries directly. The build information of extensions comes with each project; it is parsed
+ * per build with {@link #parseBuildInfo(JSONObject)} and consulted after that of the built-in
+ * components.
+ */
+final class ComponentRegistry {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ComponentRegistry.class.getName());
+
+  private static final String SIMPLE_COMPONENTS =
+      Compiler.RUNTIME_FILES_DIR + "simple_components.json";
+  private static final String SIMPLE_COMPONENTS_BUILD_INFO =
+      Compiler.RUNTIME_FILES_DIR + "simple_components_build_info.json";
+
+  private static ComponentRegistry simpleComponents = null;
+
+  // Component name (e.g., "Button") to type (e.g., "com.google...runtime.Button")
+  private final Map<String, String> nameToType;
+
+  // Component type to build information, in the order of the build information file
+  private final Map<String, BuildInfo> buildInfos;
+
+  /**
+   * The build information of a single component: for each annotation target (permissions,
+   * libraries, assets, ...), the values it declares, and the values it only needs when some
+   * of its blocks are used.
+   */
+  static final class BuildInfo {
+    private final String type;
+    private final Map<String, Set<String>> infos;
+    private final Map<String, Map<String, Set<String>>> conditionals;
+
+    private BuildInfo(String type, Map<String, Set<String>> infos,
+        Map<String, Map<String, Set<String>>> conditionals) {
+      this.type = type;
+      this.infos = infos;
+      this.conditionals = conditionals;
+    }
+
+    String getType() {
+      return type;
+    }
+
+    /**
+     * Returns the non-empty values that the component declares for an annotation target.
+     *
+     * @param target  the annotation target, e.g., {@code permissions}
+     * @return  an unmodifiable set, or null if the component does not declare the target at all
+     */
+    Set<String> getInfo(String target) {
+      return infos.get(target);
+    }
+
+    /**
+     * Returns the values of an annotation target that depend on the blocks used.
+     *
+     * @param target  the annotation target, e.g., {@code permissions}
+     * @return  an unmodifiable map from block name to values, or null if there are none
+     */
+    Map<String, Set<String>> getConditionals(String target) {
+      return conditionals.get(target);
+    }
+  }
+
+  private ComponentRegistry(Map<String, String> nameToType, Map<String, BuildInfo> buildInfos) {
+    this.nameToType = Collections.unmodifiableMap(nameToType);
+    this.buildInfos = Collections.unmodifiableMap(buildInfos);
+  }
+
+  /**
+   * Returns the registry of the built-in components, loading it on first use.
+   *
+   * @throws IOException  if the component descriptions cannot be read
+   * @throws JSONException  if the component descriptions are malformed
+   */
+  static synchronized ComponentRegistry getSimpleComponents() throws IOException, JSONException {
+    if (simpleComponents == null) {
+      long start = System.currentTimeMillis();
+      simpleComponents = load(ComponentRegistry.class.getResource(SIMPLE_COMPONENTS),
+          ComponentRegistry.class.getResource(SIMPLE_COMPONENTS_BUILD_INFO));
+      LOG.info("Loaded " + simpleComponents.buildInfos.size() + " component descriptions in "
+          + (System.currentTimeMillis() - start) + " ms");
+    }
+    return simpleComponents;
+  }
+
+  static ComponentRegistry load(URL components, URL buildInfo)
+      throws IOException, JSONException {
+    Map<String, String> nameToType = new HashMap<String, String>();
+    JSONArray componentsJson = new JSONArray(Resources.toString(components, Charsets.UTF_8));
+    for (int i = 0; i < componentsJson.length(); ++i) {
+      JSONObject componentJson = componentsJson.getJSONObject(i);
+      nameToType.put(componentJson.getString("name"), componentJson.getString("type"));
+    }
+
+    Map<String, BuildInfo> buildInfos = new LinkedHashMap<String, BuildInfo>();
+    JSONArray buildInfoJson = new JSONArray(Resources.toString(buildInfo, Charsets.UTF_8));
+    for (int i = 0; i < buildInfoJson.length(); ++i) {
+      BuildInfo info = parseBuildInfo(buildInfoJson.getJSONObject(i));
+      buildInfos.put(info.getType(), info);
+    }
+    return new ComponentRegistry(nameToType, buildInfos);
+  }
+
+  /**
+   * Parses the build information of a single component, as found in
+   * simple_components_build_info.json and in the component_build_info(s).json of extensions.
+   *
+   * @param compJson  the build information of the component
+   * @return  the parsed build information
+   * @throws JSONException  if the build information is malformed
+   */
+  @SuppressWarnings("unchecked")
+  static BuildInfo parseBuildInfo(JSONObject compJson) throws JSONException {
+    String type = compJson.getString("type");
+    Map<String, Set<String>> infos = new HashMap<String, Set<String>>();
+    Map<String, Map<String, Set<String>>> conditionals =
+        new HashMap<String, Map<String, Set<String>>>();
+    Iterator<String> keys = compJson.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      if (key.equals(ComponentDescriptorConstants.CONDITIONALS_TARGET)) {
+        JSONObject conditionalsJson = compJson.getJSONObject(key);
+        Iterator<String> targets = conditionalsJson.keys();
+        while (targets.hasNext()) {
+          String target = targets.next();
+          JSONObject jsonBlockMap = conditionalsJson.optJSONObject(target);
+          if (jsonBlockMap != null) {
+            conditionals.put(target, parseBlockMap(jsonBlockMap));
+          }
+        }
+        continue;
+      }
+      JSONArray infoArray = compJson.optJSONArray(key);
+      if (infoArray == null) {
+        continue;
+      }
+      Set<String> infoSet = new HashSet<String>();
+      for (int j = 0; j < infoArray.length(); ++j) {
+        String info = infoArray.getString(j);
+        if (!info.isEmpty()) {
+          infoSet.add(info);
+        }
+      }
+      infos.put(key, Collections.unmodifiableSet(infoSet));
+    }
+    return new BuildInfo(type, Collections.unmodifiableMap(infos),
+        Collections.unmodifiableMap(conditionals));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Set<String>> parseBlockMap(JSONObject jsonBlockMap) {
+    Map<String, Set<String>> blockMap = new HashMap<String, Set<String>>();
+    Iterator<String> blocks = jsonBlockMap.keys();
+    while (blocks.hasNext()) {
+      String block = blocks.next();
+      JSONArray data = jsonBlockMap.optJSONArray(block);
+      Set<String> result = new HashSet<String>();
+      for (int i = 0; i < data.length(); i++) {
+        result.add(data.optString(i));
+      }
+      blockMap.put(block, Collections.unmodifiableSet(result));
+    }
+    return Collections.unmodifiableMap(blockMap);
+  }
+
+  /**
+   * Returns the types of all components.
+   */
+  Set<String> getTypes() {
+    return buildInfos.keySet();
+  }
+
+  /**
+   * Returns the map from component name to component type.
+   */
+  Map<String, String> getNameTypeMap() {
+    return nameToType;
+  }
+
+  /**
+   * Returns the build information of all components, in a stable order.
+   */
+  Collection<BuildInfo> getBuildInfos() {
+    return buildInfos.values();
+  }
+
+  /**
+   * Returns the build information of the built-in components followed by that of extensions.
+   */
+  List<BuildInfo> withExtensions(List<BuildInfo> extensionBuildInfos) {
+    List<BuildInfo> result = new ArrayList<BuildInfo>(
+        buildInfos.size() + extensionBuildInfos.size());
+    result.addAll(buildInfos.values());
+    result.addAll(extensionBuildInfos);
+    return result;
+  }
+}
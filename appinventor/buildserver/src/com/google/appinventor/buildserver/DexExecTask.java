@@ -16,19 +16,19 @@
 
 package com.google.appinventor.buildserver;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
@@ -43,11 +43,29 @@ public class DexExecTask {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
     private String mainDexFile = null;
     private boolean mPredex = true;
 
-    private static final Object semaphore = new Object(); // Used to protect dex cache creation
+    // One lock per pre-dexed library, so that parallel builds can populate different entries
+    private static final ConcurrentMap<String, Object> dexLocks =
+        new ConcurrentHashMap<String, Object>();
+    private static final AtomicInteger tempCount = new AtomicInteger(0);
+    private static final AtomicInteger predexHits = new AtomicInteger(0);
+    private static final AtomicInteger predexMisses = new AtomicInteger(0);
+
+    // Whether dx runs inside the build server's JVM instead of in a child process
+    private static volatile boolean sInProcess = false;
+    private static final ConcurrentMap<String, ClassLoader> dxLoaders =
+        new ConcurrentHashMap<String, ClassLoader>();
+
+    /**
+     * Sets whether dx runs inside this JVM rather than in a child process.
+     *
+     * @param inProcess the value.
+     */
+    public static void setInProcess(boolean inProcess) {
+        sInProcess = inProcess;
+    }
 
 
     /**
@@ -109,6 +127,14 @@ public class DexExecTask {
         mDisableDexMerger = disable;
     }
 
+    public static int getPredexHitCount() {
+        return predexHits.get();
+    }
+
+    public static int getPredexMissCount() {
+        return predexMisses.get();
+    }
+
     private boolean preDexLibraries(List<File> inputs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
@@ -116,62 +142,61 @@ public class DexExecTask {
             return true;
         }
 
-        synchronized (semaphore) {
-
-            final int count = inputs.size();
-            for (int i = 0; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
+        final int count = inputs.size();
+        for (int i = 0; i < count; i++) {
+            File input = inputs.get(i);
+            if (input.isFile()) {
+                // check if this libs needs to be pre-dexed
+                String fileName = getDexFileName(input);
+                if (fileName == null) {
+                    return false;
+                }
+                File dexedLib = new File(mDexedLibs, fileName);
 
-                    if (!dexedLib.isFile()/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
+                Object lock = dexLocks.putIfAbsent(fileName, new Object());
+                if (lock == null) {
+                    lock = dexLocks.get(fileName);
+                }
+                synchronized (lock) {
+                    if (!dexedLib.isFile()) {
+                        predexMisses.incrementAndGet();
 
                         System.out.println(
                             String.format("Pre-Dexing %1$s -> %2$s",
                               input.getAbsolutePath(), fileName));
 
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
+                        // dx into a temporary file so that other builds never see a partial entry
+                        File tempLib = new File(mDexedLibs,
+                            "tmp-" + tempCount.incrementAndGet() + "-" + fileName);
+                        boolean dexSuccess = runDx(input, tempLib.getAbsolutePath(),
+                            /*showInputs=*/ false);
+                        if (!dexSuccess || !tempLib.renameTo(dexedLib)) {
+                            tempLib.delete();
+                            return false;
                         }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, /*showInputs=*/ false);
-                        if (!dexSuccess) return false;
                     } else {
+                        predexHits.incrementAndGet();
                         System.out.println(
                             String.format("Using Pre-Dexed %1$s <- %2$s",
                               fileName, input.getAbsolutePath()));
                     }
-
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
                 }
+
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
             }
-            return true;
         }
+        return true;
     }
 
     private String getDexFileName(File inputFile) {
-        String hashed = getHashFor(inputFile);
-        return "dex-cached-" + hashed + ".jar";
-    }
-
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
-        if (retval != null) return retval;
-        // add a hash of the original file path
+        // The digest is remembered by path, size and modification time, so the libraries shared
+        // by all builds are only read the first time they are seen.
         try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
-            return retval;
+            return "dex-cached-" + FileDigests.digest(inputFile) + ".jar";
         } catch (IOException e) {
             e.printStackTrace();
-            return "ERROR";
+            return null;
         }
     }
 
@@ -193,41 +218,54 @@ public class DexExecTask {
     }
 
     private boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
-        int mx = mChildProcessRamMb - 200;
-
-        List<String> commandLineList = new ArrayList<String>();
-        commandLineList.add(System.getProperty("java.home") + "/bin/java");
-        commandLineList.add("-mx" + mx + "M");
-        commandLineList.add("-jar");
-        commandLineList.add(mExecutable);
-
-        commandLineList.add("--dex");
-        commandLineList.add("--positions=lines");
+        List<String> flags = new ArrayList<String>();
+        flags.add("--positions=lines");
 
         if (mainDexFile != null) {
-            commandLineList.add("--multi-dex");
-            commandLineList.add("--main-dex-list=" + mainDexFile);
-            commandLineList.add("--minimal-main-dex");
+            flags.add("--multi-dex");
+            flags.add("--main-dex-list=" + mainDexFile);
+            flags.add("--minimal-main-dex");
         }
 
         if (mNoLocals) {
-            commandLineList.add("--no-locals");
+            flags.add("--no-locals");
         }
 
         if (mVerbose) {
-            commandLineList.add("--verbose");
+            flags.add("--verbose");
         }
 
-        commandLineList.add("--output=" + output);
+        flags.add("--output=" + output);
 
+        List<String> fileNames = new ArrayList<String>();
         for (File input : inputs) {
             String absPath = input.getAbsolutePath();
             if (showInputs) {
                 System.out.println("Input: " + absPath);
             }
-            commandLineList.add(absPath);
+            fileNames.add(absPath);
         }
 
+        if (sInProcess) {
+            try {
+                return runDxInProcess(flags, fileNames);
+            } catch (ReflectiveOperationException|IOException e) {
+                System.err.println("Unable to run dx in process, starting a dx process: " + e);
+            }
+        }
+
+        int mx = mChildProcessRamMb - 200;
+
+        List<String> commandLineList = new ArrayList<String>();
+        commandLineList.add(System.getProperty("java.home") + "/bin/java");
+        commandLineList.add("-mx" + mx + "M");
+        commandLineList.add("-jar");
+        commandLineList.add(mExecutable);
+
+        commandLineList.add("--dex");
+        commandLineList.addAll(flags);
+        commandLineList.addAll(fileNames);
+
         // Convert command line to an array
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
@@ -237,6 +275,50 @@ public class DexExecTask {
 
     }
 
+    /**
+     * Runs dx inside the build server's JVM. Each run gets its own DxContext, so concurrent
+     * builds do not share dexer state. The dx classes are loaded once per dx.jar, in a class
+     * loader of their own since dx.jar is a build resource rather than a build server library.
+     */
+    private boolean runDxInProcess(List<String> flags, List<String> fileNames)
+            throws ReflectiveOperationException, IOException {
+        ClassLoader loader = getDxClassLoader(mExecutable);
+        Class<?> contextClass = loader.loadClass("com.android.dx.command.dexer.DxContext");
+        Class<?> argumentsClass = loader.loadClass("com.android.dx.command.dexer.Main$Arguments");
+        Class<?> mainClass = loader.loadClass("com.android.dx.command.dexer.Main");
+
+        Object context = contextClass.getConstructor(OutputStream.class, OutputStream.class)
+            .newInstance(System.out, System.err);
+        Object arguments = argumentsClass.getConstructor(contextClass).newInstance(context);
+        argumentsClass.getMethod("parseFlags", String[].class)
+            .invoke(arguments, (Object) flags.toArray(new String[flags.size()]));
+        argumentsClass.getField("fileNames")
+            .set(arguments, fileNames.toArray(new String[fileNames.size()]));
+        argumentsClass.getMethod("makeOptionsObjects").invoke(arguments);
+
+        Object main = mainClass.getConstructor(contextClass).newInstance(context);
+        try {
+            Object result = mainClass.getMethod("runDx", argumentsClass).invoke(main, arguments);
+            return ((Integer) result) == 0;
+        } catch (InvocationTargetException e) {
+            // dx reports bad input by throwing, just like the command line tool exits
+            e.getCause().printStackTrace();
+            return false;
+        }
+    }
+
+    private static ClassLoader getDxClassLoader(String dxJar) throws IOException {
+        ClassLoader loader = dxLoaders.get(dxJar);
+        if (loader == null) {
+            loader = new URLClassLoader(new URL[] { new File(dxJar).toURI().toURL() }, null);
+            ClassLoader previous = dxLoaders.putIfAbsent(dxJar, loader);
+            if (previous != null) {
+                loader = previous;
+            }
+        }
+        return loader;
+    }
+
     protected String getExecTaskName() {
         return "dx";
     }
@@ -0,0 +1,232 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A directory of cache entries shared by the builds of a build server, on which the caches of
+ * the build server are built.
+ *
+ * <p>Each entry is a directory named after its key. Entries are written to a temporary
+ * directory and renamed into place, so concurrent builds never observe a partial entry; the
+ * first build to store a key wins. The least recently used entries are removed once there are
+ * more than {@code maxEntries} of them, or once they hold more than {@code maxBytes}. What goes
+ * into an entry, and how its key is computed, is up to the cache using it.
+ */
+final class DiskCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(DiskCache.class.getName());
+
+  private static final String TEMPORARY_PREFIX = "tmp-";
+
+  /**
+   * Writes the files of a new entry.
+   */
+  interface EntryWriter {
+    /**
+     * Writes the files of the entry into a directory, which exists and is empty.
+     */
+    void write(File dir) throws IOException;
+  }
+
+  private final String description;
+
+  // The cache directory, or null if the cache is disabled.
+  private File dir = null;  // guarded by this
+
+  private int maxEntries = Integer.MAX_VALUE;  // guarded by this
+  private long maxBytes = Long.MAX_VALUE;  // guarded by this
+
+  private final AtomicInteger hits = new AtomicInteger(0);
+  private final AtomicInteger misses = new AtomicInteger(0);
+  private final AtomicInteger temporaryCount = new AtomicInteger(0);
+
+  /**
+   * Creates a disabled cache.
+   *
+   * @param description  what the cache holds, for log messages
+   */
+  DiskCache(String description) {
+    this.description = description;
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param path  the cache directory, which is created if needed, or null to disable the cache
+   * @param maxEntries  the maximum number of entries
+   * @param maxBytes  the maximum size of the entries
+   */
+  synchronized void configure(String path, int maxEntries, long maxBytes) {
+    dir = null;
+    this.maxEntries = Math.max(1, maxEntries);
+    this.maxBytes = Math.max(1, maxBytes);
+    if (path != null) {
+      File file = new File(path);
+      if (file.isDirectory() || file.mkdirs()) {
+        dir = file;
+      } else {
+        LOG.warning("Unable to create " + description + " cache directory " + path);
+      }
+    }
+  }
+
+  synchronized boolean isEnabled() {
+    return dir != null;
+  }
+
+  /**
+   * Returns the cache directory, or null if the cache is disabled.
+   */
+  synchronized File getDirectory() {
+    return dir;
+  }
+
+  int getHitCount() {
+    return hits.get();
+  }
+
+  int getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the directory of the entry of a key, or null if there is no such entry.
+   */
+  File get(String key) {
+    File entry = getEntry(key);
+    return entry != null && entry.isDirectory() ? entry : null;
+  }
+
+  /**
+   * Records that an entry was used, which makes it the most recently used one.
+   */
+  void hit(File entry) {
+    entry.setLastModified(System.currentTimeMillis());
+    hits.incrementAndGet();
+  }
+
+  /**
+   * Records that an entry was not found or could not be used.
+   */
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  /**
+   * Stores an entry, unless the key already has one, and removes the least recently used
+   * entries if the cache is full.
+   *
+   * @param key  the key of the entry
+   * @param writer  writes the files of the entry
+   * @return  the directory of the entry, or null if the cache is disabled
+   * @throws IOException  if the entry cannot be written, in which case nothing is stored
+   */
+  File store(String key, EntryWriter writer) throws IOException {
+    File entry = getEntry(key);
+    if (entry == null || entry.exists()) {
+      return entry;
+    }
+    File tmp = new File(entry.getParentFile(),
+        TEMPORARY_PREFIX + key + "-" + temporaryCount.incrementAndGet());
+    try {
+      if (!tmp.mkdir()) {
+        throw new IOException("Unable to create " + tmp);
+      }
+      writer.write(tmp);
+      if (!tmp.renameTo(entry)) {
+        // Another build stored the same key first.
+        delete(tmp);
+      }
+    } catch (IOException|RuntimeException e) {
+      delete(tmp);
+      throw e;
+    }
+    trim();
+    return entry;
+  }
+
+  /**
+   * Deletes a file, or a directory and everything in it.
+   */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private synchronized File getEntry(String key) {
+    return dir == null ? null : new File(dir, key);
+  }
+
+  /*
+   * Removes the least recently used entries until at most maxEntries remain, holding at most
+   * maxBytes.
+   */
+  private synchronized void trim() {
+    if (dir == null) {
+      return;
+    }
+    File[] entries = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return !name.startsWith(TEMPORARY_PREFIX);
+      }
+    });
+    if (entries == null) {
+      return;
+    }
+    long total = 0;
+    if (maxBytes != Long.MAX_VALUE) {
+      for (File entry : entries) {
+        total += size(entry);
+      }
+    }
+    if (entries.length <= maxEntries && total <= maxBytes) {
+      return;
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    int remaining = entries.length;
+    for (int i = 0; i < entries.length && (remaining > maxEntries || total > maxBytes); i++) {
+      if (maxBytes != Long.MAX_VALUE) {
+        total -= size(entries[i]);
+      }
+      delete(entries[i]);
+      remaining--;
+    }
+  }
+
+  private static long size(File file) {
+    if (!file.isDirectory()) {
+      return file.length();
+    }
+    long size = 0;
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        size += size(child);
+      }
+    }
+    return size;
+  }
+}
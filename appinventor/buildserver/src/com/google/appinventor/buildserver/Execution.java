@@ -109,6 +109,7 @@ public final class Execution {
     }
     try {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
+      BuildMetrics.watchChildProcess(process);
       new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
       new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
       return process.waitFor() == 0;
@@ -132,6 +133,7 @@ public final class Execution {
       StringBuffer err) throws IOException {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
     Process process = Runtime.getRuntime().exec(command, null, workingDir);
+    BuildMetrics.watchChildProcess(process);
     Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
     Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
     try {
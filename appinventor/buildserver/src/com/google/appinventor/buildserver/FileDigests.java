@@ -0,0 +1,97 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Content digests of build inputs, remembered by path, size and modification time so that the
+ * libraries shared by all builds are only read once per build server process.
+ */
+final class FileDigests {
+
+  private static final int MAX_ENTRIES = 10000;
+
+  // Maps an absolute path to the identity and digest of the file last seen there.
+  private static final ConcurrentMap<String, Entry> digests =
+      new ConcurrentHashMap<String, Entry>();
+
+  private FileDigests() {
+  }
+
+  private static class Entry {
+    private final long length;
+    private final long lastModified;
+    private final String digest;
+
+    private Entry(long length, long lastModified, String digest) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * Returns the SHA-1 digest of the contents of the given file, as a hexadecimal string. The
+   * contents of a directory are digested recursively, including file names. A missing file has
+   * the digest of its absence.
+   *
+   * @param file  the file or directory
+   * @return  the digest
+   * @throws IOException  if the file cannot be read
+   */
+  static String digest(File file) throws IOException {
+    if (file.isDirectory()) {
+      Hasher hasher = Hashing.sha1().newHasher();
+      digestDirectory(hasher, file, "");
+      return hasher.hash().toString();
+    }
+    if (!file.exists()) {
+      return "missing";
+    }
+    String path = file.getAbsolutePath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+    Entry entry = digests.get(path);
+    if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+      return entry.digest;
+    }
+    HashCode hash = Files.hash(file, Hashing.sha1());
+    if (digests.size() >= MAX_ENTRIES) {
+      digests.clear();
+    }
+    digests.put(path, new Entry(length, lastModified, hash.toString()));
+    return hash.toString();
+  }
+
+  private static void digestDirectory(Hasher hasher, File dir, String prefix) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      String name = prefix + child.getName();
+      if (child.isDirectory()) {
+        digestDirectory(hasher, child, name + "/");
+      } else {
+        hasher.putString(name, Charsets.UTF_8);
+        hasher.putByte((byte) 0);
+        hasher.putBytes(Files.toByteArray(child));
+      }
+    }
+  }
+}
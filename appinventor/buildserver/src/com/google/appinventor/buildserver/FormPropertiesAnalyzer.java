@@ -84,8 +84,15 @@ public class FormPropertiesAnalyzer {
    * Returns the Set of component types used in the given form file source.
    */
   public static Set<String> getComponentTypesFromFormFile(String source) {
+    return getComponentTypesFromForm(parseSourceFile(source));
+  }
+
+  /**
+   * Returns the Set of component types used in the given form properties, as returned by
+   * {@link #parseSourceFile(String)}.
+   */
+  public static Set<String> getComponentTypesFromForm(JSONObject propertiesObject) {
     Set<String> componentTypes = new HashSet<String>();
-    JSONObject propertiesObject = parseSourceFile(source);
     try {
       collectComponentTypes(propertiesObject.getJSONObject("Properties"), componentTypes);
     } catch (JSONException e) {
@@ -118,8 +125,18 @@ public class FormPropertiesAnalyzer {
    * @return A mapping of component type names to sets of blocks used
    */
   public static Map<String, Set<String>> getComponentBlocksFromSchemeFile(String source) {
+    return getComponentBlocksFromForm(parseSourceFile(source));
+  }
+
+  /**
+   * Extracts a mapping from component to set of blocks used from the form properties, as
+   * returned by {@link #parseSourceFile(String)}.
+   *
+   * @param propertiesObject the parsed $JSON section of the Scheme file
+   * @return A mapping of component type names to sets of blocks used
+   */
+  public static Map<String, Set<String>> getComponentBlocksFromForm(JSONObject propertiesObject) {
     Map<String, Set<String>> result = new HashMap<>();
-    JSONObject propertiesObject = parseSourceFile(source);
     try {
       Queue<JSONObject> toProcess = new LinkedList<JSONObject>();
       toProcess.add(propertiesObject.getJSONObject("Properties"));
@@ -0,0 +1,133 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of the launcher icons generated for an application icon.
+ *
+ * <p>An entry is keyed by the SHA-1 of the version of the icon rendering, the icon image and the
+ * sizes of the generated mipmaps, and holds every file generated from the icon (the drawable and
+ * the round, rounded corner and foreground variants for each density), each under a name chosen
+ * by the compiler. Most projects keep their icon from one build to the next, and many use the
+ * default icon, so the images are rarely rendered twice. Entries are kept in a
+ * {@link DiskCache}.
+ */
+final class IconCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(IconCache.class.getName());
+
+  // The version of the rendering of icons in Compiler.prepareApplicationIcon. Increase it when
+  // the rendered images change, so that images cached by an older build server are not used.
+  private static final int RENDERER_VERSION = 1;
+
+  private static final DiskCache cache = new DiskCache("icon");
+
+  private IconCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, or null to disable the cache
+   * @param max  the maximum number of icons kept in the cache
+   */
+  static void configure(String dir, int max) {
+    cache.configure(dir, max, Long.MAX_VALUE);
+  }
+
+  static boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  static int getHitCount() {
+    return cache.getHitCount();
+  }
+
+  static int getMissCount() {
+    return cache.getMissCount();
+  }
+
+  /**
+   * Computes the cache key of an icon.
+   *
+   * @param icon  the contents of the icon image
+   * @param standardSizes  the sizes of the launcher icons, one per density
+   * @param foregroundSizes  the sizes of the adaptive icon foregrounds, one per density
+   * @return  the key of the icon
+   */
+  static String getKey(byte[] icon, List<Integer> standardSizes, List<Integer> foregroundSizes) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(RENDERER_VERSION);
+    hasher.putString(standardSizes + "/" + foregroundSizes, Charsets.UTF_8);
+    hasher.putBytes(icon);
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Copies the cached images of an icon into place.
+   *
+   * @param key  the key of the icon
+   * @param files  the files to restore, by name
+   * @return  {@code true} if all the files were found and copied, {@code false} otherwise
+   */
+  static boolean restore(String key, Map<String, File> files) {
+    File entry = cache.get(key);
+    if (entry == null) {
+      cache.miss();
+      return false;
+    }
+    try {
+      for (Map.Entry<String, File> file : files.entrySet()) {
+        File cached = new File(entry, file.getKey());
+        if (!cached.isFile()) {
+          cache.miss();
+          return false;
+        }
+        Files.copy(cached, file.getValue());
+      }
+      cache.hit(entry);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to restore cached icon " + key, e);
+      cache.miss();
+      return false;
+    }
+  }
+
+  /**
+   * Stores the images generated for an icon.
+   *
+   * @param key  the key of the icon
+   * @param files  the generated files, by name
+   */
+  static void store(String key, final Map<String, File> files) {
+    try {
+      cache.store(key, new DiskCache.EntryWriter() {
+        @Override
+        public void write(File dir) throws IOException {
+          for (Map.Entry<String, File> file : files.entrySet()) {
+            Files.copy(file.getValue(), new File(dir, file.getKey()));
+          }
+        }
+      });
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache icon " + key, e);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Aligns and signs an APK in a single pass, inside the build server's JVM.
+ *
+ * <p>The apksig library in apksigner.jar reads the unsigned APK straight from its file and
+ * signs it into the output file, aligning the uncompressed entries as it copies them. This
+ * produces the same result as running zipalign followed by apksigner, but starts no processes,
+ * writes no intermediate APK and never holds the APK in memory.
+ *
+ * <p>apksigner.jar is a build resource rather than a build server library, so it is loaded in a
+ * class loader of its own and called through reflection.
+ */
+final class InProcessApkSigner {
+
+  private static final ConcurrentMap<String, ClassLoader> loaders =
+      new ConcurrentHashMap<String, ClassLoader>();
+
+  private InProcessApkSigner() {
+  }
+
+  /**
+   * Thrown when apksigner.jar cannot be used in process. The caller may fall back to the
+   * apksigner command line tool.
+   */
+  static class UnavailableException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnavailableException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Aligns and signs an APK.
+   *
+   * @param apksignerJar  path to apksigner.jar
+   * @param keystoreFile  the keystore holding the signing key
+   * @param alias  the alias of the signing key
+   * @param password  the password of the keystore and of the key
+   * @param inputApk  the unsigned, unaligned APK
+   * @param outputApk  the aligned, signed APK to write
+   * @throws UnavailableException  if apksigner.jar cannot be loaded
+   * @throws IOException  if the APK or the keystore cannot be read or written
+   * @throws GeneralSecurityException  if the APK cannot be signed with the key
+   */
+  static void alignAndSign(String apksignerJar, File keystoreFile, String alias,
+      String password, File inputApk, File outputApk)
+      throws UnavailableException, IOException, GeneralSecurityException {
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    try (InputStream in = new FileInputStream(keystoreFile)) {
+      keyStore.load(in, password.toCharArray());
+    }
+    PrivateKey privateKey = (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+    Certificate[] chain = keyStore.getCertificateChain(alias);
+    if (privateKey == null || chain == null) {
+      throw new GeneralSecurityException("No key " + alias + " in " + keystoreFile);
+    }
+    List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+    for (Certificate certificate : chain) {
+      certificates.add((X509Certificate) certificate);
+    }
+
+    try (RandomAccessFile input = new RandomAccessFile(inputApk, "r")) {
+      sign(apksignerJar, alias, privateKey, certificates, input, inputApk, outputApk);
+    }
+  }
+
+  private static void sign(String apksignerJar, String alias, PrivateKey privateKey,
+      List<X509Certificate> certificates, RandomAccessFile input, File inputApk,
+      File outputApk) throws UnavailableException, IOException, GeneralSecurityException {
+    Object signer;
+    Class<?> signerClass;
+    try {
+      ClassLoader loader = getClassLoader(apksignerJar);
+      Class<?> dataSourceClass = loader.loadClass("com.android.apksig.util.DataSource");
+      Object dataSource = loader.loadClass("com.android.apksig.util.DataSources")
+          .getMethod("asDataSource", RandomAccessFile.class)
+          .invoke(null, input);
+      signerClass = loader.loadClass("com.android.apksig.ApkSigner");
+      Class<?> builderClass = loader.loadClass("com.android.apksig.ApkSigner$Builder");
+      Class<?> configBuilderClass =
+          loader.loadClass("com.android.apksig.ApkSigner$SignerConfig$Builder");
+      // apksigner names the v1 signature files after the key alias; apksig shortens the name.
+      Object config = configBuilderClass
+          .getConstructor(String.class, PrivateKey.class, List.class)
+          .newInstance(alias, privateKey, certificates);
+      config = configBuilderClass.getMethod("build").invoke(config);
+      Object builder = builderClass.getConstructor(List.class)
+          .newInstance(Collections.singletonList(config));
+      builderClass.getMethod("setInputApk", dataSourceClass).invoke(builder, dataSource);
+      builderClass.getMethod("setOutputApk", File.class).invoke(builder, outputApk);
+      signer = builderClass.getMethod("build").invoke(builder);
+    } catch (ReflectiveOperationException|IOException e) {
+      throw new UnavailableException(e);
+    }
+
+    long startSign = System.currentTimeMillis();
+    try {
+      signerClass.getMethod("sign").invoke(signer);
+      BuildMetrics.recordStage(BuildMetrics.SIGN, System.currentTimeMillis() - startSign);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      throw new IOException("Unable to sign " + inputApk, cause);
+    } catch (ReflectiveOperationException e) {
+      throw new UnavailableException(e);
+    }
+  }
+
+  private static ClassLoader getClassLoader(String jar) throws IOException {
+    ClassLoader loader = loaders.get(jar);
+    if (loader == null) {
+      loader = new URLClassLoader(new URL[] { new File(jar).toURI().toURL() }, null);
+      ClassLoader previous = loaders.putIfAbsent(jar, loader);
+      if (previous != null) {
+        loader = previous;
+      }
+    }
+    return loader;
+  }
+}
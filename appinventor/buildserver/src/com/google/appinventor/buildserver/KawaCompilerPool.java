@@ -0,0 +1,321 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of warm Kawa compiler processes shared by all builds of a build server.
+ *
+ * <p>Starting a JVM and loading runtime.scm is the largest fixed cost of compiling YAIL. The
+ * pool keeps up to {@code maxIdleWorkers} {@link KawaCompilerWorker} processes alive between
+ * builds and hands each one a single job at a time. Workers are keyed by their heap size and
+ * the class path that is the same for every project (Kawa, the runtime and the Android
+ * libraries). The libraries of a project (extensions, component and AAR libraries, and the R
+ * classes) are sent with each job, and the worker loads them for that job only. A worker is
+ * discarded after {@code maxJobsPerWorker} jobs, or as soon as a job fails, so that state
+ * accumulated inside Kawa cannot leak from one build into many others.
+ *
+ * <p>When the pool is disabled (the default, used by the command line compiler) or a worker
+ * cannot be started, compilation falls back to a one-shot {@code kawa.repl} process.
+ */
+final class KawaCompilerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  // Maximum number of idle workers kept alive. 0 disables the pool.
+  private static int maxIdleWorkers = 0;
+
+  // Number of jobs after which a worker is recycled.
+  private static int maxJobsPerWorker = 1;
+
+  // Idle workers, most recently used first.
+  private static final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+
+  private static final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private static final AtomicInteger reusedWorkers = new AtomicInteger(0);
+
+  private KawaCompilerPool() {
+  }
+
+  /*
+   * A running KawaCompilerWorker process.
+   */
+  private static class Worker {
+    private final String key;
+    private final Process process;
+    private final BufferedReader output;
+    private final Writer input;
+    private int jobs = 0;
+    private boolean alive = true;
+
+    private Worker(String key, Process process) {
+      this.key = key;
+      this.process = process;
+      this.output = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+      this.input = new BufferedWriter(
+          new OutputStreamWriter(process.getOutputStream(), Charsets.UTF_8));
+      drain(process.getErrorStream());
+    }
+
+    /*
+     * Reads the worker's output until the given terminator (or end of stream), forwarding the
+     * job's standard output and error. Returns the terminating line, or null if the worker died.
+     */
+    private String readUntil(String terminator, PrintStream out, PrintStream err)
+        throws IOException {
+      String line;
+      while ((line = output.readLine()) != null) {
+        if (line.startsWith(KawaCompilerWorker.ERR)) {
+          err.println(line.substring(KawaCompilerWorker.ERR.length()));
+        } else if (line.startsWith(KawaCompilerWorker.OUT)) {
+          out.println(line.substring(KawaCompilerWorker.OUT.length()));
+        } else if (line.startsWith(terminator)) {
+          return line;
+        }
+      }
+      alive = false;
+      return null;
+    }
+
+    boolean awaitReady() throws IOException {
+      return readUntil(KawaCompilerWorker.READY, System.out, System.err) != null;
+    }
+
+    boolean compile(String jobClasspath, List<String> args, PrintStream out, PrintStream err) {
+      try {
+        input.write(jobClasspath + "\n");
+        input.write(args.size() + "\n");
+        for (String arg : args) {
+          input.write(arg);
+          input.write("\n");
+        }
+        input.flush();
+        String done = readUntil(KawaCompilerWorker.DONE, out, err);
+        jobs++;
+        if (done == null) {
+          return false;
+        }
+        String status = done.substring(KawaCompilerWorker.DONE.length()).trim();
+        if (!"0".equals(status)) {
+          alive = false;
+        }
+        return "0".equals(status) || String.valueOf(KawaCompilerWorker.RETIRED).equals(status);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Kawa worker failed", e);
+        alive = false;
+        return false;
+      }
+    }
+
+    void destroy() {
+      alive = false;
+      process.destroy();
+    }
+  }
+
+  /**
+   * Configures the pool.
+   *
+   * @param maxIdle  maximum number of idle workers to keep alive, 0 disables the pool
+   * @param maxJobs  number of jobs after which a worker is replaced by a fresh one
+   */
+  static synchronized void configure(int maxIdle, int maxJobs) {
+    maxIdleWorkers = Math.max(0, maxIdle);
+    maxJobsPerWorker = Math.max(1, maxJobs);
+    trimIdleWorkers();
+  }
+
+  static synchronized boolean isEnabled() {
+    return maxIdleWorkers > 0;
+  }
+
+  static synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  static int getStartedWorkerCount() {
+    return startedWorkers.get();
+  }
+
+  static int getReusedWorkerCount() {
+    return reusedWorkers.get();
+  }
+
+  /**
+   * Compiles YAIL sources with Kawa.
+   *
+   * @param classpath  class path for the Kawa compiler that is the same for every project
+   * @param jobClasspath  class path of the libraries of the project being compiled
+   * @param heapMb  maximum heap of the Kawa process, in MB
+   * @param yailRuntime  path to runtime.scm
+   * @param jobArgs  {@code kawa.repl} arguments for this compilation, i.e., everything that
+   *                 follows {@code -f runtime.scm}
+   * @param out  stream for the compiler's standard output
+   * @param err  stream for the compiler's standard error
+   * @return  {@code true} if Kawa succeeded, {@code false} otherwise
+   */
+  static boolean compile(String classpath, String jobClasspath, int heapMb, String yailRuntime,
+      List<String> jobArgs, PrintStream out, PrintStream err) {
+    if (!isEnabled()) {
+      return compileOnce(classpath, jobClasspath, heapMb, yailRuntime, jobArgs, out, err);
+    }
+    String key = heapMb + "|" + classpath + "|" + yailRuntime;
+    Worker worker = checkOut(key);
+    if (worker == null) {
+      try {
+        worker = startWorker(key, classpath, heapMb, yailRuntime);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to start Kawa worker, falling back to kawa.repl", e);
+        return compileOnce(classpath, jobClasspath, heapMb, yailRuntime, jobArgs, out, err);
+      }
+    } else {
+      reusedWorkers.incrementAndGet();
+    }
+    boolean success = worker.compile(jobClasspath, jobArgs, out, err);
+    checkIn(worker);
+    return success;
+  }
+
+  /**
+   * Stops all idle workers.
+   */
+  static synchronized void shutdown() {
+    for (Worker worker : idleWorkers) {
+      worker.destroy();
+    }
+    idleWorkers.clear();
+  }
+
+  private static synchronized Worker checkOut(String key) {
+    Iterator<Worker> it = idleWorkers.iterator();
+    while (it.hasNext()) {
+      Worker worker = it.next();
+      if (worker.key.equals(key)) {
+        it.remove();
+        return worker;
+      }
+    }
+    return null;
+  }
+
+  private static synchronized void checkIn(Worker worker) {
+    if (!worker.alive || worker.jobs >= maxJobsPerWorker || maxIdleWorkers == 0) {
+      worker.destroy();
+      return;
+    }
+    idleWorkers.addFirst(worker);
+    trimIdleWorkers();
+  }
+
+  private static void trimIdleWorkers() {
+    while (idleWorkers.size() > maxIdleWorkers) {
+      idleWorkers.removeLast().destroy();
+    }
+  }
+
+  private static Worker startWorker(String key, String classpath, int heapMb,
+      String yailRuntime) throws IOException {
+    List<String> command = Lists.newArrayList();
+    Collections.addAll(command,
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + heapMb + "M",
+        "-cp", classpath + File.pathSeparator + getWorkerClasspath(),
+        KawaCompilerWorker.class.getName(),
+        yailRuntime);
+    long start = System.currentTimeMillis();
+    Process process = new ProcessBuilder(command).start();
+    BuildMetrics.watchChildProcess(process);
+    Worker worker = new Worker(key, process);
+    if (!worker.awaitReady()) {
+      worker.destroy();
+      throw new IOException("Kawa worker exited before loading the runtime");
+    }
+    startedWorkers.incrementAndGet();
+    LOG.info("Kawa worker started in " + ((System.currentTimeMillis() - start) / 1000.0)
+        + " seconds");
+    return worker;
+  }
+
+  private static boolean compileOnce(String classpath, String jobClasspath, int heapMb,
+      String yailRuntime, List<String> jobArgs, PrintStream out, PrintStream err) {
+    StringBuilder fullClasspath = new StringBuilder(classpath);
+    for (String entry : jobClasspath.split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        fullClasspath.append(File.pathSeparator).append(entry);
+      }
+    }
+    List<String> kawaCommandArgs = Lists.newArrayList();
+    Collections.addAll(kawaCommandArgs,
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + heapMb + "M",
+        "-cp", fullClasspath.toString(),
+        "kawa.repl",
+        "-f", yailRuntime);
+    kawaCommandArgs.addAll(jobArgs);
+    String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+    return Execution.execute(null, kawaCommandLine, out, err);
+  }
+
+  /*
+   * Returns the location of the build server classes, so that the worker can find
+   * KawaCompilerWorker without pulling in the rest of the build server's class path.
+   */
+  private static String getWorkerClasspath() throws IOException {
+    try {
+      return new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (URISyntaxException|NullPointerException e) {
+      throw new IOException("Unable to locate KawaCompilerWorker", e);
+    }
+  }
+
+  /*
+   * Copies the worker's standard error (JVM diagnostics only; the job's error stream is sent
+   * over the channel) to our own.
+   */
+  private static void drain(final InputStream stream) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            System.err.println(line);
+          }
+        } catch (IOException e) {
+          // The worker exited.
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -0,0 +1,237 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry point of a long-lived Kawa compiler child process.
+ *
+ * <p>The worker loads the YAIL runtime once at startup and then accepts
+ * compilation jobs from {@link KawaCompilerPool} on its standard input. Each
+ * job is the list of arguments that would otherwise follow {@code -f
+ * runtime.scm} on a {@code kawa.repl} command line, together with the class
+ * path of the project's libraries. Kawa looks classes up through the thread
+ * context class loader when its own class loader cannot find them, so the
+ * libraries are loaded for the job only, and the types Kawa resolved from them
+ * are forgotten afterwards.
+ *
+ * <p>This class runs on the Kawa class path rather than the build server's,
+ * so it must only depend on the JDK. Kawa is reached through reflection.
+ *
+ * <p>Protocol (UTF-8, one item per line):
+ * <ul>
+ *   <li>parent to worker: the class path of the job's libraries, the number of
+ *       arguments, and one argument per line</li>
+ *   <li>worker to parent: {@code O <text>} and {@code E <text>} for the job's standard
+ *       output and error, {@link #READY} once the runtime is loaded, and {@code D <status>}
+ *       when a job finishes (0 on success, {@link #RETIRED} on success if the worker
+ *       must not be given another job)</li>
+ * </ul>
+ * Kawa calls {@code System.exit} on compilation errors, so the parent treats a
+ * closed channel as a failed job and does not reuse the worker.
+ */
+final class KawaCompilerWorker {
+  static final String READY = "R";
+  static final String DONE = "D ";
+  static final String OUT = "O ";
+  static final String ERR = "E ";
+  static final int RETIRED = 2;
+
+  private KawaCompilerWorker() {
+  }
+
+  /*
+   * Output stream that forwards complete lines to the parent, tagged with a prefix so that the
+   * job's standard output and error can share the single channel.
+   */
+  private static class ChannelOutputStream extends OutputStream {
+    private final PrintStream channel;
+    private final String prefix;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    ChannelOutputStream(PrintStream channel, String prefix) {
+      this.channel = channel;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      if (b == '\n') {
+        emit();
+      } else if (b != '\r') {
+        line.write(b);
+      }
+    }
+
+    @Override
+    public void flush() {
+      channel.flush();
+    }
+
+    /*
+     * Sends any partial line that has not been terminated yet.
+     */
+    synchronized void finish() {
+      if (line.size() > 0) {
+        emit();
+      }
+      channel.flush();
+    }
+
+    private void emit() {
+      String text;
+      try {
+        text = line.toString("UTF-8");
+      } catch (IOException e) {
+        text = line.toString();
+      }
+      line.reset();
+      synchronized (channel) {
+        channel.print(prefix);
+        channel.print(text);
+        channel.print('\n');
+        channel.flush();
+      }
+    }
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path to the YAIL runtime (runtime.scm)
+   */
+  public static void main(String[] args) throws Exception {
+    final PrintStream channel =
+        new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8");
+    final ChannelOutputStream jobOut = new ChannelOutputStream(channel, OUT);
+    final ChannelOutputStream jobErr = new ChannelOutputStream(channel, ERR);
+    System.setOut(new PrintStream(jobOut, true, "UTF-8"));
+    System.setErr(new PrintStream(jobErr, true, "UTF-8"));
+
+    // Kawa exits the JVM when a screen fails to compile. Make sure the parent still receives
+    // everything that was printed up to that point.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        System.out.flush();
+        System.err.flush();
+        jobOut.finish();
+        jobErr.finish();
+      }
+    });
+
+    Method processArgs = Class.forName("kawa.repl")
+        .getMethod("processArgs", String[].class, int.class, int.class);
+
+    // Load the runtime once; its definitions stay in the interaction environment for every job.
+    String[] init = { "-f", args[0] };
+    processArgs.invoke(null, init, 0, init.length);
+    System.out.flush();
+    System.err.flush();
+    jobOut.finish();
+    jobErr.finish();
+    synchronized (channel) {
+      channel.print(READY);
+      channel.print('\n');
+      channel.flush();
+    }
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    ClassLoader defaultLoader = Thread.currentThread().getContextClassLoader();
+    String jobClasspath;
+    while ((jobClasspath = in.readLine()) != null) {
+      int count = Integer.parseInt(in.readLine().trim());
+      String[] job = new String[count];
+      for (int i = 0; i < count; i++) {
+        job[i] = in.readLine();
+      }
+      int status = 0;
+      URLClassLoader jobLoader = createClassLoader(jobClasspath, defaultLoader);
+      Thread.currentThread().setContextClassLoader(jobLoader);
+      try {
+        processArgs.invoke(null, job, 0, job.length);
+      } catch (InvocationTargetException e) {
+        e.getCause().printStackTrace();
+        status = 1;
+      } finally {
+        Thread.currentThread().setContextClassLoader(defaultLoader);
+      }
+      try {
+        forgetTypes(jobLoader);
+      } catch (ReflectiveOperationException e) {
+        // The next job could see this job's libraries.
+        e.printStackTrace();
+        if (status == 0) {
+          status = RETIRED;
+        }
+      }
+      jobLoader.close();
+      System.out.flush();
+      System.err.flush();
+      jobOut.finish();
+      jobErr.finish();
+      synchronized (channel) {
+        channel.print(DONE + status);
+        channel.print('\n');
+        channel.flush();
+      }
+    }
+  }
+
+  /*
+   * Returns a class loader for the libraries of a job, given as a class path.
+   */
+  private static URLClassLoader createClassLoader(String classpath, ClassLoader parent)
+      throws IOException {
+    List<URL> urls = new ArrayList<URL>();
+    for (String entry : classpath.split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        urls.add(new File(entry).toURI().toURL());
+      }
+    }
+    return new URLClassLoader(urls.toArray(new URL[urls.size()]), parent);
+  }
+
+  /*
+   * Removes the types that Kawa resolved through a job's class loader from its table of types
+   * by name, so that the next job resolves them through its own libraries.
+   */
+  private static void forgetTypes(ClassLoader loader) throws ReflectiveOperationException {
+    Class<?> typeClass = Class.forName("gnu.bytecode.Type");
+    Field typesField = typeClass.getDeclaredField("mapNameToType");
+    Field reflectClassField = typeClass.getDeclaredField("reflectClass");
+    typesField.setAccessible(true);
+    reflectClassField.setAccessible(true);
+    Map<?, ?> types = (Map<?, ?>) typesField.get(null);
+    synchronized (types) {
+      Iterator<?> it = types.values().iterator();
+      while (it.hasNext()) {
+        Class<?> reflectClass = (Class<?>) reflectClassField.get(it.next());
+        if (reflectClass != null && reflectClass.getClassLoader() == loader) {
+          it.remove();
+        }
+      }
+    }
+  }
+}
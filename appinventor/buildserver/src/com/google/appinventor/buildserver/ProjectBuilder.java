@@ -10,9 +10,9 @@ import com.google.appinventor.common.utils.StringUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
@@ -27,13 +27,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -75,6 +73,8 @@ public final class ProjectBuilder {
 
   private static final String CODEBLOCKS_SOURCE_EXTENSION =
       YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION;
+  private static final String BLOCKLY_SOURCE_EXTENSION =
+      YoungAndroidConstants.BLOCKLY_SOURCE_EXTENSION;
 
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
@@ -122,14 +122,17 @@ public final class ProjectBuilder {
   Result build(String userName, ZipFile inputZip, File outputDir, String outputFileName,
     boolean isForCompanion, boolean isForEmulator, boolean includeDangerousPermissions, String[] extraExtensions,
     int childProcessRam, String dexCachePath, BuildServer.ProgressReporter reporter) {
+    long startBuild = System.currentTimeMillis();
     try {
       // Download project files into a temporary directory
       File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
-        List<String> sourceFiles;
+        FormSources formSources;
         try {
-          sourceFiles = extractProjectFiles(inputZip, projectRoot);
+          long startUnzip = System.currentTimeMillis();
+          formSources = extractProjectFiles(inputZip, projectRoot);
+          BuildMetrics.recordStage(BuildMetrics.UNZIP, System.currentTimeMillis() - startUnzip);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
@@ -154,7 +157,8 @@ public final class ProjectBuilder {
         ByteArrayOutputStream errors = new ByteArrayOutputStream();
         PrintStream userErrors = new PrintStream(errors);
 
-        Set<String> componentTypes = getComponentTypes(sourceFiles, project.getAssetsDirectory());
+        long startAnalysis = System.currentTimeMillis();
+        Set<String> componentTypes = getComponentTypes(formSources, project.getAssetsDirectory());
         if (isForCompanion) {
           componentTypes.addAll(getAllComponentTypes());
         }
@@ -162,7 +166,9 @@ public final class ProjectBuilder {
           System.err.println("Including extension: " + Arrays.toString(extraExtensions));
           Collections.addAll(componentTypes, extraExtensions);
         }
-        Map<String, Set<String>> componentBlocks = getComponentBlocks(sourceFiles);
+        Map<String, Set<String>> componentBlocks = getComponentBlocks(formSources);
+        BuildMetrics.recordStage(BuildMetrics.COMPONENT_ANALYSIS,
+            System.currentTimeMillis() - startAnalysis);
 
         // Invoke YoungAndroid compiler
         boolean success =
@@ -204,6 +210,7 @@ public final class ProjectBuilder {
         // Note (ralph):  deleteRecursively has been removed from the guava-11.0.1 lib
         // Replacing with deleteDirectory, which is supposed to delete the entire directory.
         FileUtils.deleteQuietly(new File(projectRoot.getCanonicalPath()));
+        BuildMetrics.recordStage(BuildMetrics.BUILD, System.currentTimeMillis() - startBuild);
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -221,14 +228,42 @@ public final class ProjectBuilder {
     return compSet;
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
+  /**
+   * The form sources of a project, read straight from the project zip. Only the build tools
+   * read files from disk, so the designer (.scm) and blocks (.bky) files are never extracted;
+   * each of them is read and parsed exactly once, and the parsed view is shared by every
+   * analysis of the project.
+   */
+  @VisibleForTesting
+  static final class FormSources {
+    // Zip entry name to the properties of the form, as parsed by FormPropertiesAnalyzer
+    final Map<String, JSONObject> forms = new HashMap<String, JSONObject>();
+    // Zip entry name to the contents of the blocks file
+    final Map<String, String> blocks = new HashMap<String, String>();
+  }
+
+  @VisibleForTesting
+  static FormSources extractProjectFiles(ZipFile inputZip, File projectRoot)
       throws IOException {
-    ArrayList<String> projectFileNames = Lists.newArrayList();
+    FormSources formSources = new FormSources();
     Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
     while (inputZipEnumeration.hasMoreElements()) {
       ZipEntry zipEntry = inputZipEnumeration.nextElement();
+      String name = zipEntry.getName();
+      if (name.endsWith(FORM_PROPERTIES_EXTENSION) || name.endsWith(BLOCKLY_SOURCE_EXTENSION)) {
+        String content;
+        try (InputStream in = inputZip.getInputStream(zipEntry)) {
+          content = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+        if (name.endsWith(FORM_PROPERTIES_EXTENSION)) {
+          formSources.forms.put(name, FormPropertiesAnalyzer.parseSourceFile(content));
+        } else {
+          formSources.blocks.put(name, content);
+        }
+        continue;
+      }
       final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
-      File extractedFile = new File(projectRoot, zipEntry.getName());
+      File extractedFile = new File(projectRoot, name);
       LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
       Files.createParentDirs(extractedFile); // Do I need this?
       Files.copy(
@@ -238,24 +273,18 @@ public final class ProjectBuilder {
             }
           },
           extractedFile);
-      projectFileNames.add(extractedFile.getPath());
     }
-    return projectFileNames;
+    return formSources;
   }
 
-  private static Set<String> getComponentTypes(List<String> files, File assetsDir)
+  private static Set<String> getComponentTypes(FormSources formSources, File assetsDir)
       throws IOException, JSONException {
     Map<String, String> nameTypeMap = createNameTypeMap(assetsDir);
 
     Set<String> componentTypes = Sets.newHashSet();
-    for (String f : files) {
-      if (f.endsWith(".scm")) {
-        File scmFile = new File(f);
-        String scmContent = new String(Files.toByteArray(scmFile),
-            PathUtil.DEFAULT_CHARSET);
-        for (String compName : getTypesFromScm(scmContent)) {
-          componentTypes.add(nameTypeMap.get(compName));
-        }
+    for (JSONObject form : formSources.forms.values()) {
+      for (String compName : FormPropertiesAnalyzer.getComponentTypesFromForm(form)) {
+        componentTypes.add(nameTypeMap.get(compName));
       }
     }
     return componentTypes;
@@ -266,43 +295,33 @@ public final class ProjectBuilder {
    * the project files. Properties specified in the designer are considered
    * blocks for the purposes of this operation.
    *
-   * @param files A list of files contained in the project.
+   * @param formSources The form sources of the project.
    * @return A mapping of component type names to sets of block names used in
    * the project
-   * @throws IOException if any of the files named in {@code files} cannot be
-   * read
    */
-  private static Map<String, Set<String>> getComponentBlocks(List<String> files)
-      throws IOException {
+  private static Map<String, Set<String>> getComponentBlocks(FormSources formSources) {
     Map<String, Set<String>> result = new HashMap<>();
-    for (String f : files) {
-      if (f.endsWith(".bky")) {
-        File bkyFile = new File(f);
-        String bkyContent = Files.toString(bkyFile, StandardCharsets.UTF_8);
-        for (Map.Entry<String, Set<String>> entry :
-            FormPropertiesAnalyzer.getComponentBlocksFromBlocksFile(bkyContent).entrySet()) {
-          if (result.containsKey(entry.getKey())) {
-            result.get(entry.getKey()).addAll(entry.getValue());
-          } else {
-            result.put(entry.getKey(), entry.getValue());
-          }
-        }
-      } else if (f.endsWith(".scm")) {
-        File scmFile = new File(f);
-        String scmContent = Files.toString(scmFile, StandardCharsets.UTF_8);
-        for (Map.Entry<String, Set<String>> entry :
-            FormPropertiesAnalyzer.getComponentBlocksFromSchemeFile(scmContent).entrySet()) {
-          if (result.containsKey(entry.getKey())) {
-            result.get(entry.getKey()).addAll(entry.getValue());
-          } else {
-            result.put(entry.getKey(), entry.getValue());
-          }
-        }
-      }
+    for (String bkyContent : formSources.blocks.values()) {
+      mergeComponentBlocks(result,
+          FormPropertiesAnalyzer.getComponentBlocksFromBlocksFile(bkyContent));
+    }
+    for (JSONObject form : formSources.forms.values()) {
+      mergeComponentBlocks(result, FormPropertiesAnalyzer.getComponentBlocksFromForm(form));
     }
     return result;
   }
 
+  private static void mergeComponentBlocks(Map<String, Set<String>> result,
+      Map<String, Set<String>> blocks) {
+    for (Map.Entry<String, Set<String>> entry : blocks.entrySet()) {
+      if (result.containsKey(entry.getKey())) {
+        result.get(entry.getKey()).addAll(entry.getValue());
+      } else {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
   /**
    * In ode code, component names are used to identify a component though the
    * variables storing component names appear to be "type". While there's no
@@ -313,21 +332,14 @@ public final class ProjectBuilder {
    */
   private static Map<String, String> createNameTypeMap(File assetsDir)
       throws IOException, JSONException {
-    Map<String, String> nameTypeMap = Maps.newHashMap();
-
-    JSONArray simpleCompsJson = new JSONArray(Resources.toString(ProjectBuilder.
-        class.getResource("/files/simple_components.json"), Charsets.UTF_8));
-    for (int i = 0; i < simpleCompsJson.length(); ++i) {
-      JSONObject simpleCompJson = simpleCompsJson.getJSONObject(i);
-      nameTypeMap.put(simpleCompJson.getString("name"),
-          simpleCompJson.getString("type"));
-    }
-
     File extCompsDir = new File(assetsDir, "external_comps");
     if (!extCompsDir.exists()) {
-      return nameTypeMap;
+      return ComponentRegistry.getSimpleComponents().getNameTypeMap();
     }
 
+    Map<String, String> nameTypeMap =
+        Maps.newHashMap(ComponentRegistry.getSimpleComponents().getNameTypeMap());
+
     for (File extCompDir : extCompsDir.listFiles()) {
       if (!extCompDir.isDirectory()) {
         continue;
@@ -386,11 +398,6 @@ public final class ProjectBuilder {
     return null;
   }
 
-  @VisibleForTesting
-  static Set<String> getTypesFromScm(String scm) {
-    return FormPropertiesAnalyzer.getComponentTypesFromFormFile(scm);
-  }
-
   @VisibleForTesting
   static String processCompilerOutput(String output, String srcPath) {
     // First, remove references to the temp source directory from the messages.
@@ -0,0 +1,239 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} that runs a limited number of build tasks at a time and queues a limited
+ * number of others.
+ *
+ * <p>Unlike {@link NonQueuingExecutor}, a task that arrives while the executor is at capacity
+ * waits in a bounded queue and is only rejected when the queue is full as well. When a task
+ * finishes, the next one is chosen so that users with fewer running builds go first, then
+ * smaller projects, then the oldest task. Tasks that have waited longer than
+ * {@code MAX_PRIORITIZED_WAIT_MS} are run in arrival order so that large projects are not
+ * starved.</p>
+ *
+ * <p>There is no separate priority for companion builds: the build server only builds apps,
+ * the companion is built with {@link Main} instead.</p>
+ */
+final class QueuingBuildExecutor implements Executor {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(QueuingBuildExecutor.class.getName());
+
+  // After this long in the queue, a task is no longer overtaken by smaller or fairer ones.
+  private static final long MAX_PRIORITIZED_WAIT_MS = 2 * 60 * 1000;
+
+  // Weight of the most recent build when updating the average build time.
+  private static final double AVERAGE_WEIGHT = 0.2;
+
+  // The maximum number of active tasks. 0 means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of queued tasks.
+  private final int maxQueuedTasks;
+
+  private final LinkedList<QueuedTask> queue = new LinkedList<QueuedTask>();
+  private final Map<String, Integer> activeTasksByUser = new HashMap<String, Integer>();
+  private int activeTaskCount = 0;
+  private long sequence = 0;
+  private double averageTaskMillis = 0;
+
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger queuedTaskCount = new AtomicInteger(0);
+
+  private static class QueuedTask {
+    private final Runnable runnable;
+    private final String user;
+    private final long size;
+    private final long sequence;
+    private final long enqueueTime = System.currentTimeMillis();
+
+    private QueuedTask(Runnable runnable, String user, long size, long sequence) {
+      this.runnable = runnable;
+      this.user = user;
+      this.size = size;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Creates a QueuingBuildExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks, 0 for unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting to run
+   */
+  QueuingBuildExecutor(int maxActiveTasks, int maxQueuedTasks) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = Math.max(0, maxQueuedTasks);
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    execute(runnable, "", 0);
+  }
+
+  /**
+   * Runs a task now if the executor is below capacity, queues it otherwise.
+   *
+   * @param runnable the task
+   * @param user the user the task belongs to
+   * @param size the size of the project, smaller projects are preferred
+   * @throws RejectedExecutionException if the executor and its queue are full
+   */
+  public synchronized void execute(Runnable runnable, String user, long size) {
+    QueuedTask task = new QueuedTask(runnable, user == null ? "" : user, size, sequence++);
+    if (maxActiveTasks == 0 || activeTaskCount < maxActiveTasks) {
+      startThread(task);
+    } else if (queue.size() < maxQueuedTasks) {
+      queue.add(task);
+      queuedTaskCount.incrementAndGet();
+    } else {
+      // If the executor and the queue are at maximum capacity, reject the task.
+      throw new RejectedExecutionException();
+    }
+  }
+
+  private void startThread(final QueuedTask first) {
+    markActive(first);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // Keep running queued tasks on this thread for as long as there are any.
+        QueuedTask task = first;
+        while (task != null) {
+          long start = System.currentTimeMillis();
+          try {
+            task.runnable.run();
+          } catch (Throwable e) {
+            // The next task has to run even if this one died, for instance of an
+            // OutOfMemoryError, or its slot would never be freed.
+            LOG.log(Level.SEVERE, "Build task failed", e);
+          }
+          task = finishAndTakeNext(task, System.currentTimeMillis() - start);
+        }
+      }
+    });
+    thread.start();
+  }
+
+  private void markActive(QueuedTask task) {
+    activeTaskCount++;
+    Integer count = activeTasksByUser.get(task.user);
+    activeTasksByUser.put(task.user, count == null ? 1 : count + 1);
+  }
+
+  private synchronized QueuedTask finishAndTakeNext(QueuedTask task, long millis) {
+    activeTaskCount--;
+    Integer count = activeTasksByUser.get(task.user);
+    if (count == null || count <= 1) {
+      activeTasksByUser.remove(task.user);
+    } else {
+      activeTasksByUser.put(task.user, count - 1);
+    }
+    completedTaskCount.incrementAndGet();
+    averageTaskMillis = averageTaskMillis == 0 ? millis
+        : AVERAGE_WEIGHT * millis + (1 - AVERAGE_WEIGHT) * averageTaskMillis;
+
+    if (maxActiveTasks != 0 && activeTaskCount >= maxActiveTasks) {
+      return null;
+    }
+    QueuedTask next = takeNext();
+    if (next != null) {
+      long waited = System.currentTimeMillis() - next.enqueueTime;
+      BuildMetrics.recordStage(BuildMetrics.BUILD_QUEUE_WAIT, waited);
+      LOG.info("Starting queued build after " + waited + " ms, " + queue.size() + " still queued");
+      markActive(next);
+    }
+    return next;
+  }
+
+  private QueuedTask takeNext() {
+    QueuedTask best = null;
+    long now = System.currentTimeMillis();
+    for (QueuedTask task : queue) {
+      if (now - task.enqueueTime > MAX_PRIORITIZED_WAIT_MS) {
+        // The queue is in arrival order, so this is the oldest task.
+        best = task;
+        break;
+      }
+      if (best == null || compare(task, best) < 0) {
+        best = task;
+      }
+    }
+    if (best != null) {
+      Iterator<QueuedTask> it = queue.iterator();
+      while (it.hasNext()) {
+        if (it.next() == best) {
+          it.remove();
+          break;
+        }
+      }
+      queuedTaskCount.decrementAndGet();
+    }
+    return best;
+  }
+
+  private int compare(QueuedTask a, QueuedTask b) {
+    int result = Integer.compare(getActiveCount(a.user), getActiveCount(b.user));
+    if (result == 0) {
+      result = Long.compare(a.size, b.size);
+    }
+    if (result == 0) {
+      result = Long.compare(a.sequence, b.sequence);
+    }
+    return result;
+  }
+
+  private int getActiveCount(String user) {
+    Integer count = activeTasksByUser.get(user);
+    return count == null ? 0 : count;
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public synchronized int getActiveTaskCount() {
+    return activeTaskCount;
+  }
+
+  public int getQueuedTaskCount() {
+    return queuedTaskCount.get();
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  /**
+   * Estimates how long a task submitted now would wait before it starts, based on the average
+   * duration of recent tasks.
+   *
+   * @return the estimated wait in milliseconds
+   */
+  public synchronized long getEstimatedWaitMillis() {
+    if (maxActiveTasks == 0 || activeTaskCount < maxActiveTasks) {
+      return 0;
+    }
+    // Each round of maxActiveTasks builds moves the queue forward by maxActiveTasks tasks.
+    int rounds = queue.size() / maxActiveTasks + 1;
+    return (long) (rounds * averageTaskMillis);
+  }
+}
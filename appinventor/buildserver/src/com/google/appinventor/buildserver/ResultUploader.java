@@ -0,0 +1,182 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the result of an asynchronous build to its callback URL.
+ *
+ * <p>The result zip is written straight into the request with chunked transfer encoding, so it
+ * is neither assembled on disk nor buffered in memory by {@link HttpURLConnection}. Delivery is
+ * retried with exponential backoff when the connection fails or the callback answers with a
+ * server error; the body is simply written again, since the callback replaces the files it
+ * received before. If the callback insists on a Content-Length (411), the zip is written to a
+ * temporary file once and sent with a fixed length from then on.
+ */
+final class ResultUploader {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResultUploader.class.getName());
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  private static int maxAttempts = 4;
+  private static long initialBackoffMillis = 1000;
+
+  private static final AtomicInteger retries = new AtomicInteger(0);
+  private static final AtomicInteger failures = new AtomicInteger(0);
+
+  /**
+   * Writes the body of the request. It may be called once per attempt.
+   */
+  interface Body {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private ResultUploader() {
+  }
+
+  /**
+   * Configures the retry policy.
+   *
+   * @param attempts  the maximum number of attempts, at least 1
+   * @param backoffMillis  the delay before the first retry, doubled for every further retry
+   */
+  static synchronized void configure(int attempts, long backoffMillis) {
+    maxAttempts = Math.max(1, attempts);
+    initialBackoffMillis = Math.max(0, backoffMillis);
+  }
+
+  private static synchronized int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  private static synchronized long getInitialBackoffMillis() {
+    return initialBackoffMillis;
+  }
+
+  static int getRetryCount() {
+    return retries.get();
+  }
+
+  static int getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Posts a zip to the callback URL, retrying on failure.
+   *
+   * @param callbackUrl  the URL to post to
+   * @param body  writes the zip
+   * @return  {@code true} if the callback accepted the zip
+   */
+  static boolean upload(String callbackUrl, Body body) {
+    long start = System.currentTimeMillis();
+    long backoff = getInitialBackoffMillis();
+    int attempts = getMaxAttempts();
+    File buffered = null;
+    try {
+      for (int attempt = 1; ; attempt++) {
+        int responseCode;
+        try {
+          responseCode = post(new URL(callbackUrl), body, buffered);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Upload attempt " + attempt + " failed", e);
+          responseCode = -1;
+        }
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          long millis = System.currentTimeMillis() - start;
+          BuildMetrics.recordStage(BuildMetrics.UPLOAD, millis);
+          LOG.info("Build result delivered in " + millis + " ms after " + attempt + " attempt(s)");
+          return true;
+        }
+        if (responseCode == HttpURLConnection.HTTP_LENGTH_REQUIRED && buffered == null) {
+          LOG.info("Callback requires a Content-Length, buffering the build result");
+          buffered = File.createTempFile("result", ".zip");
+          try (OutputStream out = new BufferedOutputStream(new FileOutputStream(buffered))) {
+            body.writeTo(out);
+          }
+          attempt--;
+          continue;
+        }
+        if (responseCode != -1) {
+          LOG.severe("Bad Response Code!: " + responseCode);
+        }
+        if (!isRetryable(responseCode) || attempt >= attempts) {
+          break;
+        }
+        retries.incrementAndGet();
+        Thread.sleep(backoff);
+        backoff *= 2;
+      }
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Unable to buffer the build result", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (buffered != null) {
+        buffered.delete();
+      }
+    }
+    failures.incrementAndGet();
+    LOG.severe("Unable to deliver the build result to " + callbackUrl);
+    return false;
+  }
+
+  private static boolean isRetryable(int responseCode) {
+    return responseCode == -1 || responseCode >= 500 || responseCode == 408 || responseCode == 429;
+  }
+
+  private static int post(URL callbackUrl, Body body, File buffered) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    try {
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      // Make sure we aren't misinterpreted as
+      // form-url-encoded
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      if (buffered == null) {
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        try (OutputStream out = new BufferedOutputStream(connection.getOutputStream(), CHUNK_SIZE)) {
+          body.writeTo(out);
+        } catch (IOException e) {
+          // The callback may have rejected the request before reading its body
+          if (connection.getResponseCode() == HttpURLConnection.HTTP_LENGTH_REQUIRED) {
+            return HttpURLConnection.HTTP_LENGTH_REQUIRED;
+          }
+          throw e;
+        }
+      } else {
+        connection.setFixedLengthStreamingMode(buffered.length());
+        try (OutputStream out = connection.getOutputStream();
+            InputStream in = new BufferedInputStream(new FileInputStream(buffered))) {
+          ByteStreams.copy(in, out);
+        }
+      }
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
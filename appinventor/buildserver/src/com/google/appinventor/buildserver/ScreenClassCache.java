@@ -0,0 +1,171 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of the class files that Kawa produces for a single screen.
+ *
+ * <p>An entry is keyed by the SHA-1 of the screen's YAIL together with the compilation
+ * environment: the package prefix, the YAIL runtime and the contents of every class path
+ * entry. A screen whose key is found is copied from the cache instead of being compiled, so an
+ * iterative rebuild only sends the changed screens to Kawa.
+ *
+ * <p>Each entry of the {@link DiskCache} is a directory holding {@code Screen.class} and its
+ * {@code Screen$*.class} inner classes.
+ */
+final class ScreenClassCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ScreenClassCache.class.getName());
+
+  private static final String CLASS_EXTENSION = ".class";
+
+  private static final DiskCache cache = new DiskCache("screen class");
+
+  private ScreenClassCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, or null to disable the cache
+   * @param max  the maximum number of screens kept in the cache
+   */
+  static void configure(String dir, int max) {
+    cache.configure(dir, max, Long.MAX_VALUE);
+  }
+
+  static boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  static int getHitCount() {
+    return cache.getHitCount();
+  }
+
+  static int getMissCount() {
+    return cache.getMissCount();
+  }
+
+  /**
+   * Computes the part of the key that is shared by all screens of a build.
+   *
+   * @param packagePrefix  the package prefix passed to Kawa
+   * @param classpath  the Kawa class path, separated by {@link File#pathSeparator}
+   * @param yailRuntime  the path to runtime.scm
+   * @return  the environment key
+   * @throws IOException  if a class path entry cannot be read
+   */
+  static String getEnvironmentKey(String packagePrefix, String classpath, String yailRuntime)
+      throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(packagePrefix, Charsets.UTF_8);
+    hasher.putString(FileDigests.digest(new File(yailRuntime)), Charsets.UTF_8);
+    for (String entry : classpath.split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        hasher.putString(FileDigests.digest(new File(entry)), Charsets.UTF_8);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Computes the cache key of a screen.
+   *
+   * @param environmentKey  the result of {@link #getEnvironmentKey}
+   * @param yailFile  the screen's YAIL source
+   * @return  the key of the screen
+   * @throws IOException  if the source cannot be read
+   */
+  static String getKey(String environmentKey, File yailFile) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(environmentKey, Charsets.UTF_8);
+    hasher.putBytes(Files.toByteArray(yailFile));
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Copies the cached classes of a screen into place.
+   *
+   * @param key  the key of the screen
+   * @param classFile  the main class file that Kawa would have produced for the screen
+   * @return  {@code true} if the classes were found and copied, {@code false} otherwise
+   */
+  static boolean restore(String key, File classFile) {
+    File entry = cache.get(key);
+    if (entry == null) {
+      cache.miss();
+      return false;
+    }
+    try {
+      File[] classes = entry.listFiles();
+      if (classes == null || classes.length == 0) {
+        cache.miss();
+        return false;
+      }
+      File outputDir = classFile.getParentFile();
+      if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+        throw new IOException("Unable to create " + outputDir);
+      }
+      for (File cached : classes) {
+        Files.copy(cached, new File(outputDir, cached.getName()));
+      }
+      cache.hit(entry);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to restore cached classes for " + classFile, e);
+      cache.miss();
+      return false;
+    }
+  }
+
+  /**
+   * Stores the classes that Kawa produced for a screen.
+   *
+   * @param key  the key of the screen
+   * @param classFile  the main class file of the screen
+   */
+  static void store(String key, File classFile) {
+    if (cache.get(key) != null) {
+      return;
+    }
+    String className = classFile.getName();
+    final String screenName = className.substring(0, className.length() - CLASS_EXTENSION.length());
+    final File[] classes = classFile.getParentFile().listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(CLASS_EXTENSION)
+            && (name.equals(screenName + CLASS_EXTENSION) || name.startsWith(screenName + "$"));
+      }
+    });
+    if (classes == null || classes.length == 0) {
+      return;
+    }
+    try {
+      cache.store(key, new DiskCache.EntryWriter() {
+        @Override
+        public void write(File dir) throws IOException {
+          for (File classToCache : classes) {
+            Files.copy(classToCache, new File(dir, classToCache.getName()));
+          }
+        }
+      });
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache classes for " + classFile, e);
+    }
+  }
+}
@@ -0,0 +1,283 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The stages of a single build, run as a dependency graph.
+ *
+ * <p>Each stage names the stages whose output it needs. A stage is started on a pool of threads
+ * owned by the build as soon as all of its dependencies have succeeded, so independent stages
+ * overlap and the build takes as long as its critical path. A stage reports failure by returning
+ * {@code false} (after printing its own error); no further stages are started then, and the
+ * stages already running are allowed to finish. The time taken by every stage is recorded in
+ * {@link BuildMetrics} as {@code stage-<name>}.
+ *
+ * <p>With a single thread the stages run one at a time, in an order compatible with their
+ * dependencies.
+ *
+ * <p>Messages written through a stream returned by {@link #perStage(PrintStream)} are held back
+ * while a stage runs and written out when it finishes, so the build log shows the messages of
+ * each stage together even when stages overlap.
+ */
+final class StageGraph {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageGraph.class.getName());
+
+  // Maximum number of stages of a build that run at the same time.
+  private static int maxThreads = 4;
+
+  private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+  // The messages of the stage running on the current thread, by the stream they are meant for.
+  private static final ThreadLocal<Map<PrintStream, ByteArrayOutputStream>> stageOutput =
+      new ThreadLocal<Map<PrintStream, ByteArrayOutputStream>>();
+
+  private final List<Stage> stages = new ArrayList<Stage>();
+
+  // Set once a stage fails, so that stages already queued on the pool do not start.
+  private volatile boolean stopped = false;
+
+  /**
+   * A stage of the build.
+   */
+  static final class Stage {
+    private final String name;
+    private final Callable<Boolean> task;
+    private final List<Stage> dependencies;
+    private long millis = -1;
+
+    private Stage(String name, Callable<Boolean> task, List<Stage> dependencies) {
+      this.name = name;
+      this.task = task;
+      this.dependencies = dependencies;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the time taken by the stage in milliseconds, or -1 if it did not run.
+     */
+    long getMillis() {
+      return millis;
+    }
+  }
+
+  /**
+   * Configures the number of stages of a build that may run at the same time.
+   *
+   * @param threads  the maximum number of concurrent stages, 1 runs the stages sequentially
+   */
+  static synchronized void configure(int threads) {
+    maxThreads = Math.max(1, threads);
+  }
+
+  static synchronized int getMaxThreads() {
+    return maxThreads;
+  }
+
+  /**
+   * Returns a stream writing to {@code target}. Outside of a stage it writes straight through;
+   * within a stage what is written is kept until the stage finishes.
+   *
+   * @param target  the stream to write to
+   * @return  the stream for the build to use in place of {@code target}
+   */
+  static PrintStream perStage(final PrintStream target) {
+    return new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        Map<PrintStream, ByteArrayOutputStream> buffers = stageOutput.get();
+        if (buffers == null) {
+          target.write(b, off, len);
+          return;
+        }
+        ByteArrayOutputStream buffer = buffers.get(target);
+        if (buffer == null) {
+          buffer = new ByteArrayOutputStream();
+          buffers.put(target, buffer);
+        }
+        buffer.write(b, off, len);
+      }
+
+      @Override
+      public void flush() {
+        if (stageOutput.get() == null) {
+          target.flush();
+        }
+      }
+    }, true);
+  }
+
+  /*
+   * Writes out the messages held back for the stage that ran on the current thread.
+   */
+  private static void flushStageOutput() {
+    Map<PrintStream, ByteArrayOutputStream> buffers = stageOutput.get();
+    stageOutput.remove();
+    for (Map.Entry<PrintStream, ByteArrayOutputStream> entry : buffers.entrySet()) {
+      PrintStream target = entry.getKey();
+      byte[] bytes = entry.getValue().toByteArray();
+      // A single write, so that the messages of another stage cannot end up in between.
+      target.write(bytes, 0, bytes.length);
+      target.flush();
+    }
+  }
+
+  /**
+   * Adds a stage to the graph. The dependencies must have been added before.
+   *
+   * @param name  the name of the stage, used for logging and metrics
+   * @param task  the work of the stage, returning {@code true} on success
+   * @param dependencies  the stages that must succeed before this one starts
+   * @return  the stage, to be named as a dependency of later stages
+   */
+  Stage add(String name, Callable<Boolean> task, Stage... dependencies) {
+    for (Stage dependency : dependencies) {
+      if (!stages.contains(dependency)) {
+        throw new IllegalArgumentException(name + " depends on a stage of another graph");
+      }
+    }
+    Stage stage = new Stage(name, task, Collections.unmodifiableList(Arrays.asList(dependencies)));
+    stages.add(stage);
+    return stage;
+  }
+
+  /**
+   * Runs the stages.
+   *
+   * @return  {@code true} if every stage succeeded, {@code false} otherwise
+   * @throws IOException  if a stage threw an IOException
+   * @throws JSONException  if a stage threw a JSONException
+   */
+  boolean run() throws IOException, JSONException {
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.min(getMaxThreads(), Math.max(1, stages.size())), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "build-stage-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    CompletionService<Stage> completion = new ExecutorCompletionService<Stage>(pool);
+    List<Stage> pending = new ArrayList<Stage>(stages);
+    Set<Stage> succeeded = new HashSet<Stage>();
+    Throwable error = null;
+    boolean failed = false;
+    int running = 0;
+    try {
+      while (true) {
+        if (!failed) {
+          Iterator<Stage> it = pending.iterator();
+          while (it.hasNext()) {
+            final Stage stage = it.next();
+            if (succeeded.containsAll(stage.dependencies)) {
+              it.remove();
+              completion.submit(new Callable<Stage>() {
+                @Override
+                public Stage call() throws Exception {
+                  if (stopped) {
+                    return null;
+                  }
+                  long start = System.currentTimeMillis();
+                  boolean success;
+                  stageOutput.set(new LinkedHashMap<PrintStream, ByteArrayOutputStream>());
+                  try {
+                    success = stage.task.call();
+                  } catch (Exception e) {
+                    stopped = true;
+                    throw e;
+                  } finally {
+                    flushStageOutput();
+                  }
+                  stage.millis = System.currentTimeMillis() - start;
+                  BuildMetrics.recordStage("stage-" + stage.name, stage.millis);
+                  LOG.info("Build stage " + stage.name + " took " + stage.millis + " ms");
+                  if (!success) {
+                    stopped = true;
+                    return null;
+                  }
+                  return stage;
+                }
+              });
+              running++;
+            }
+          }
+        }
+        if (running == 0) {
+          break;
+        }
+        Future<Stage> result = completion.take();
+        running--;
+        try {
+          Stage stage = result.get();
+          if (stage == null) {
+            failed = true;
+          } else {
+            succeeded.add(stage);
+          }
+        } catch (ExecutionException e) {
+          failed = true;
+          if (error == null) {
+            error = e.getCause();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.warning("Build interrupted");
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      pool.shutdownNow();
+    }
+    if (error instanceof IOException) {
+      throw (IOException) error;
+    } else if (error instanceof JSONException) {
+      throw (JSONException) error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    } else if (error != null) {
+      throw new IOException("Build stage failed", error);
+    }
+    return !failed && pending.isEmpty();
+  }
+}
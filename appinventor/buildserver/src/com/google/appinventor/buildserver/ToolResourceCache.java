@@ -0,0 +1,153 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the tools and libraries bundled with the build server (Kawa, the component runtime,
+ * aapt, zipalign, android.jar, ...) to a directory that survives restarts.
+ *
+ * <p>Each resource is stored under a key derived from its path and the identity of its
+ * contents: the CRC and size recorded in the build server jar, or the size and modification
+ * time when running from a directory of classes. A restarted build server with the same jar
+ * reuses the files extracted by the previous one, and a new jar gets new files. Extraction
+ * writes to a temporary file that is renamed into place, so a file that exists is complete.
+ *
+ * <p>Each resource is extracted by the first build that needs it. Other builds that need the
+ * same resource wait for it, but builds that need different resources do not wait for each
+ * other.
+ */
+final class ToolResourceCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ToolResourceCache.class.getName());
+
+  private static volatile File cacheDir =
+      new File(System.getProperty("java.io.tmpdir"), "appinventor-buildserver-tools");
+
+  private static final ConcurrentMap<String, FutureTask<File>> files =
+      new ConcurrentHashMap<String, FutureTask<File>>();
+
+  private static final AtomicInteger tempCount = new AtomicInteger(0);
+
+  private ToolResourceCache() {
+  }
+
+  /**
+   * Sets the directory that resources are extracted to. This should only be called at
+   * startup, before any build runs.
+   *
+   * @param dir  the cache directory
+   */
+  static void configure(String dir) {
+    cacheDir = new File(dir);
+    files.clear();
+  }
+
+  /**
+   * Returns a file with the contents of a resource of the build server, extracting it if
+   * necessary.
+   *
+   * @param resourcePath  the path of the resource
+   * @return  the extracted file
+   * @throws IOException  if the resource does not exist or cannot be extracted
+   */
+  static File get(final String resourcePath) throws IOException {
+    FutureTask<File> task = files.get(resourcePath);
+    if (task == null) {
+      FutureTask<File> newTask = new FutureTask<File>(new Callable<File>() {
+        @Override
+        public File call() throws IOException {
+          return extract(resourcePath);
+        }
+      });
+      task = files.putIfAbsent(resourcePath, newTask);
+      if (task == null) {
+        task = newTask;
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting " + resourcePath, e);
+    } catch (ExecutionException e) {
+      // Let the next build try again.
+      files.remove(resourcePath, task);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Unable to extract " + resourcePath, e.getCause());
+    }
+  }
+
+  private static File extract(String resourcePath) throws IOException {
+    URL url = Compiler.class.getResource(resourcePath);
+    if (url == null) {
+      throw new IOException("Unable to find required library: " + resourcePath);
+    }
+    URLConnection connection = url.openConnection();
+    connection.setUseCaches(false);
+    long size;
+    String identity;
+    if (connection instanceof JarURLConnection) {
+      JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+      size = entry.getSize();
+      identity = entry.getCrc() + ":" + size;
+    } else {
+      size = connection.getContentLength();
+      identity = connection.getLastModified() + ":" + size;
+    }
+
+    String key = Hashing.sha1().hashString(resourcePath + "|" + identity, Charsets.UTF_8)
+        .toString();
+    File file = new File(new File(cacheDir, key), PathUtil.basename(resourcePath));
+    if (file.isFile() && (size < 0 || file.length() == size)) {
+      return file;
+    }
+
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    File tmp = new File(dir, file.getName() + ".tmp" + tempCount.incrementAndGet());
+    try (InputStream in = connection.getInputStream();
+         OutputStream out = new FileOutputStream(tmp)) {
+      ByteStreams.copy(in, out);
+    }
+    tmp.setExecutable(true);
+    if (!tmp.renameTo(file)) {
+      // Another build server process sharing the directory may have won the race.
+      tmp.delete();
+      if (!file.isFile()) {
+        throw new IOException("Unable to create " + file);
+      }
+    }
+    LOG.info("Extracted " + resourcePath + " to " + file);
+    return file;
+  }
+}
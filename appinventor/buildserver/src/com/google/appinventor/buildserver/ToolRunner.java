@@ -0,0 +1,147 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the native Android tools, such as aapt, on behalf of builds. Zip alignment does not need
+ * a tool, as it is done in process by {@link ZipAligner}.
+ *
+ * <p>Every invocation has a deadline after which the tool is killed, so that a hung tool cannot
+ * hold a build slot forever. The standard output and error of each invocation are captured
+ * together and written out as a single block once the tool exits, rather than line by line
+ * interleaved with the tools of concurrent builds.
+ */
+final class ToolRunner {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ToolRunner.class.getName());
+  private static final Joiner joiner = Joiner.on(" ");
+
+  // Time after which a tool is killed. 0 disables the timeout.
+  private static long timeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+  private static final AtomicInteger invocations = new AtomicInteger(0);
+  private static final AtomicInteger timeouts = new AtomicInteger(0);
+
+  private static final ScheduledExecutorService watchdog =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "tool-watchdog");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private ToolRunner() {
+  }
+
+  /**
+   * Configures the deadline of tool invocations.
+   *
+   * @param timeoutSeconds  the time after which a tool is killed, 0 for no limit
+   */
+  static synchronized void configure(int timeoutSeconds) {
+    timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, timeoutSeconds));
+  }
+
+  private static synchronized long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  static int getInvocationCount() {
+    return invocations.get();
+  }
+
+  static int getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  /**
+   * Runs a tool and waits for it to exit.
+   *
+   * @param name  the name of the tool, used for logging
+   * @param command  the tool and its arguments
+   * @param out  stream receiving the output of the tool, once it exits
+   * @return  {@code true} if the tool exited with status 0 before its deadline
+   */
+  static boolean run(String name, String[] command, PrintStream out) {
+    LOG.log(Level.INFO, "____Executing " + joiner.join(command));
+    if (System.getProperty("os.name").startsWith("Windows")) {
+      for (int i = 0; i < command.length; i++) {
+        command[i] = command[i].replace("\"", "\\\"");
+      }
+    }
+    invocations.incrementAndGet();
+    StringBuilder output = new StringBuilder();
+    final AtomicBoolean timedOut = new AtomicBoolean(false);
+    ScheduledFuture<?> deadline = null;
+    Process started = null;
+    try {
+      final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      started = process;
+      BuildMetrics.watchChildProcess(process);
+      long timeout = getTimeoutMillis();
+      if (timeout > 0) {
+        deadline = watchdog.schedule(new Runnable() {
+          @Override
+          public void run() {
+            timedOut.set(true);
+            process.destroy();
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+      }
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          output.append(line).append('\n');
+        }
+      }
+      int exitCode = process.waitFor();
+      if (timedOut.get()) {
+        timeouts.incrementAndGet();
+        LOG.warning(name + " killed after " + timeout + " ms:\n" + output);
+        return false;
+      }
+      if (exitCode != 0) {
+        LOG.warning(name + " exited with status " + exitCode + ":\n" + output);
+        return false;
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      started.destroy();
+      LOG.log(Level.WARNING, "____Execution failure: ", e);
+      return false;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "____Execution failure: ", e);
+      return false;
+    } finally {
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      out.print(output);
+      out.flush();
+    }
+  }
+}
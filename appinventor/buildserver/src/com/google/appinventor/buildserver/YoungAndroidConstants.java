@@ -33,6 +33,12 @@ public class YoungAndroidConstants {
    */
   public static final String CODEBLOCKS_SOURCE_EXTENSION = ".blk";
 
+  /**
+   * The filename extension for the file which contains the blocks of a
+   * form, as saved by Blockly.
+   */
+  public static final String BLOCKLY_SOURCE_EXTENSION = ".bky";
+
   /**
    * The filename for a project's keystore, relative to the directory that contains the
    * project.properties file.
@@ -0,0 +1,227 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites a zip archive so that the data of every uncompressed entry starts at a multiple of
+ * the alignment, like {@code zipalign -f 4}.
+ *
+ * <p>Entries are copied without being decompressed. Each stored entry gets an alignment extra
+ * field (id 0xd935) in its local header, padded so that its data is aligned. apksig recognizes
+ * that field and keeps the alignment when it signs the archive. Sizes and CRCs are written into
+ * the local headers, so data descriptors are dropped.
+ */
+final class ZipAligner {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+  private static final int ALIGNMENT_EXTRA_SIZE = 6;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+  private static final int STORED = 0;
+
+  private ZipAligner() {
+  }
+
+  /*
+   * The fields of a central directory record that are needed to copy an entry.
+   */
+  private static class Entry {
+    private ByteBuffer record;
+    private int flags;
+    private int method;
+    private long compressedSize;
+    private long localHeaderOffset;
+    private byte[] name;
+  }
+
+  /**
+   * Writes an aligned copy of a zip archive.
+   *
+   * @param input  the archive to align
+   * @param output  the stream to write the aligned archive to
+   * @param alignment  the alignment of uncompressed entries, in bytes
+   * @throws IOException  if the archive cannot be read or is not a valid zip archive
+   */
+  static void align(File input, OutputStream output, int alignment) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+      List<Entry> entries = readCentralDirectory(file);
+      CountingOutputStream out = new CountingOutputStream(output);
+      byte[] buffer = new byte[64 * 1024];
+      ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+      for (Entry entry : entries) {
+        ByteBuffer localHeader = read(file, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+          throw new IOException("Bad local header for " + new String(entry.name, "UTF-8"));
+        }
+        long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+            + (localHeader.getShort(26) & 0xffff) + (localHeader.getShort(28) & 0xffff);
+
+        byte[] extra = new byte[0];
+        if (entry.method == STORED) {
+          long dataStart = out.count + LOCAL_HEADER_SIZE + entry.name.length;
+          int padding = (int) ((alignment - (dataStart % alignment)) % alignment);
+          while (padding < ALIGNMENT_EXTRA_SIZE) {
+            padding += alignment;
+          }
+          extra = new byte[padding];
+          ByteBuffer field = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+          field.putShort((short) ALIGNMENT_EXTRA_ID);
+          field.putShort((short) (padding - 4));
+          field.putShort((short) alignment);
+        }
+
+        // Rewrite the local header from the central directory, which always has the sizes.
+        long newOffset = out.count;
+        ByteBuffer record = entry.record;
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort(record.getShort(6));             // version needed to extract
+        header.putShort((short) (entry.flags & ~DATA_DESCRIPTOR_FLAG));
+        header.putShort(record.getShort(10));            // compression method
+        header.putShort(record.getShort(12));            // last modified time
+        header.putShort(record.getShort(14));            // last modified date
+        header.putInt(record.getInt(16));                // crc-32
+        header.putInt(record.getInt(20));                // compressed size
+        header.putInt(record.getInt(24));                // uncompressed size
+        header.putShort((short) entry.name.length);
+        header.putShort((short) extra.length);
+        out.write(header.array());
+        out.write(entry.name);
+        out.write(extra);
+
+        long remaining = entry.compressedSize;
+        file.seek(dataOffset);
+        while (remaining > 0) {
+          int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (read < 0) {
+            throw new IOException("Truncated data for " + new String(entry.name, "UTF-8"));
+          }
+          out.write(buffer, 0, read);
+          remaining -= read;
+        }
+
+        record.putShort(8, (short) (entry.flags & ~DATA_DESCRIPTOR_FLAG));
+        record.putInt(42, (int) newOffset);
+        centralDirectory.write(record.array());
+      }
+
+      long centralDirectoryOffset = out.count;
+      centralDirectory.writeTo(out);
+      ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+      end.putShort((short) 0);                           // number of this disk
+      end.putShort((short) 0);                           // disk with the central directory
+      end.putShort((short) entries.size());
+      end.putShort((short) entries.size());
+      end.putInt(centralDirectory.size());
+      end.putInt((int) centralDirectoryOffset);
+      end.putShort((short) 0);                           // comment length
+      out.write(end.array());
+      out.flush();
+    }
+  }
+
+  private static List<Entry> readCentralDirectory(RandomAccessFile file) throws IOException {
+    long length = file.length();
+    int tailSize = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = read(file, length - tailSize, tailSize);
+    int endOffset = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        endOffset = i;
+        break;
+      }
+    }
+    if (endOffset < 0) {
+      throw new IOException("Not a zip archive");
+    }
+    int count = tail.getShort(endOffset + 10) & 0xffff;
+    long size = tail.getInt(endOffset + 12) & 0xffffffffL;
+    long offset = tail.getInt(endOffset + 16) & 0xffffffffL;
+    if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+      throw new IOException("Zip64 archives are not supported");
+    }
+
+    ByteBuffer directory = read(file, offset, (int) size);
+    List<Entry> entries = new ArrayList<Entry>(count);
+    int position = 0;
+    for (int i = 0; i < count; i++) {
+      if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("Bad central directory");
+      }
+      int nameLength = directory.getShort(position + 28) & 0xffff;
+      int extraLength = directory.getShort(position + 30) & 0xffff;
+      int commentLength = directory.getShort(position + 32) & 0xffff;
+      int recordLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+      Entry entry = new Entry();
+      byte[] record = new byte[recordLength];
+      directory.position(position);
+      directory.get(record);
+      entry.record = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+      entry.flags = entry.record.getShort(8) & 0xffff;
+      entry.method = entry.record.getShort(10) & 0xffff;
+      entry.compressedSize = entry.record.getInt(20) & 0xffffffffL;
+      entry.localHeaderOffset = entry.record.getInt(42) & 0xffffffffL;
+      entry.name = new byte[nameLength];
+      System.arraycopy(record, CENTRAL_HEADER_SIZE, entry.name, 0, nameLength);
+      entries.add(entry);
+      position += recordLength;
+    }
+    return entries;
+  }
+
+  private static ByteBuffer read(RandomAccessFile file, long offset, int length)
+      throws IOException {
+    byte[] bytes = new byte[length];
+    file.seek(offset);
+    file.readFully(bytes);
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /*
+   * Output stream that keeps track of the number of bytes written, i.e., the current offset in
+   * the archive.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
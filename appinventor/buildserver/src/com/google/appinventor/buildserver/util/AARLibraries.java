@@ -174,6 +174,47 @@ public class AARLibraries extends HashSet<AARLibrary> {
     ResourceSet mainResSet = new ResourceSet("main");
     mainResSet.addSource(mainResDir);
     resourceSets.add(mainResSet);
+    return merge(outputDir, resourceSets, cruncher);
+  }
+
+  /**
+   * Merges the resources of the AAR libraries alone, without those of any app. The result only
+   * depends on the set of libraries, so it can be reused by every app that uses the same
+   * libraries through {@link #mergeResources(File, File, File, PngCruncher)}.
+   *
+   * @param outputDir the output directory to write the merged resources to.
+   * @param cruncher configured PNG cruncher utility for reducing the size of PNG assets.
+   * @return true if the merge was successful, otherwise false.
+   */
+  public boolean mergeLibraryResources(File outputDir, PngCruncher cruncher) {
+    return merge(outputDir, getResourceSets(), cruncher);
+  }
+
+  /**
+   * Merges the resources of the app on top of resources previously merged from the AAR libraries
+   * by {@link #mergeLibraryResources(File, PngCruncher)}.
+   *
+   * @param outputDir the output directory to write the merged resources to.
+   * @param mainResDir the resource directory where the resource descriptors for the app reside.
+   * @param libraryResDir the directory holding the merged resources of the AAR libraries.
+   * @param cruncher configured PNG cruncher utility for reducing the size of PNG assets.
+   * @return true if the merge was successful, otherwise false.
+   */
+  public boolean mergeResources(File outputDir, File mainResDir, File libraryResDir,
+      PngCruncher cruncher) {
+    List<ResourceSet> resourceSets = new ArrayList<>();
+    if (libraryResDir.isDirectory()) {
+      ResourceSet libraryResSet = new ResourceSet("libraries");
+      libraryResSet.addSource(libraryResDir);
+      resourceSets.add(libraryResSet);
+    }
+    ResourceSet mainResSet = new ResourceSet("main");
+    mainResSet.addSource(mainResDir);
+    resourceSets.add(mainResSet);
+    return merge(outputDir, resourceSets, cruncher);
+  }
+
+  private boolean merge(File outputDir, List<ResourceSet> resourceSets, PngCruncher cruncher) {
     ResourceMerger merger = new ResourceMerger();
 
     try {
@@ -228,12 +228,31 @@ public class AARLibrary {
    *                     the file system.
    */
   public void unpackToDirectory(final File path) throws IOException {
+    unpack(path, true);
+  }
+
+  /**
+   * Catalogs an Android Archive that was previously unpacked to a directory by
+   * {@link #unpackToDirectory(File)}, without extracting it again. Only the archive's central
+   * directory is read.
+   * @param path the path to where the archive was unpacked.
+   * @throws IOException if the archive cannot be read or has not been unpacked to the path.
+   */
+  public void attachToDirectory(final File path) throws IOException {
+    unpack(path, false);
+  }
+
+  private void unpack(final File path, final boolean extract) throws IOException {
     ZipFile zip = null;
     try {
       zip = new ZipFile(aarPath);
       packageName = extractPackageName(zip);
       basedir = new File(path, packageName);
-      if (!basedir.exists() && !basedir.mkdirs()) {
+      if (!extract) {
+        if (!basedir.isDirectory()) {
+          throw new IOException("AAR package has not been unpacked: " + basedir);
+        }
+      } else if (!basedir.exists() && !basedir.mkdirs()) {
         throw new IOException("Unable to create directory for AAR package: " + basedir);
       }
       InputStream input = null;
@@ -242,7 +261,11 @@ public class AARLibrary {
       while (i.hasMoreElements()) {
         ZipEntry entry = i.nextElement();
         File target = new File(basedir, entry.getName());
-        if (entry.isDirectory() && !target.exists() && !target.mkdirs()) {
+        if (!extract) {
+          if (!entry.isDirectory()) {
+            catalog(target);
+          }
+        } else if (entry.isDirectory() && !target.exists() && !target.mkdirs()) {
           throw new IOException("Unable to create directory " + path.getAbsolutePath());
         } else if (!entry.isDirectory()) {
           try {
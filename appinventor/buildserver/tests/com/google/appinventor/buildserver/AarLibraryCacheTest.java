@@ -0,0 +1,149 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.util.AARLibraries;
+import com.google.appinventor.buildserver.util.AARLibrary;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import com.android.ide.common.internal.PngCruncher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests AarLibraryCache class.
+ */
+public class AarLibraryCacheTest extends TestCase {
+  // The tests have no PNGs, and the build server does not crunch them when merging anyway
+  private static final PngCruncher NO_CRUNCHER = new PngCruncher() {
+    @Override
+    public int start() {
+      return 0;
+    }
+
+    @Override
+    public void crunchPng(int key, File from, File to) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void end(int key) {
+    }
+  };
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    AarLibraryCache.configure(new File(tmpDir, "cache").getAbsolutePath(), 10);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    AarLibraryCache.configure(null, 50);
+  }
+
+  public void testUnpackReusesExplodedLibrary() throws Exception {
+    File aar = createAar("first.aar", "com.example.first", "first_string");
+    int misses = AarLibraryCache.getExplodedMissCount();
+    int hits = AarLibraryCache.getExplodedHitCount();
+
+    AARLibrary first = new AARLibrary(aar);
+    AarLibraryCache.unpack(first);
+    assertEquals(misses + 1, AarLibraryCache.getExplodedMissCount());
+    assertEquals("com.example.first", first.getPackageName());
+    assertTrue(new File(first.getResDirectory(), "values/values.xml").isFile());
+    assertTrue(first.getClassesJar().isFile());
+
+    AARLibrary second = new AARLibrary(aar);
+    AarLibraryCache.unpack(second);
+    assertEquals(hits + 1, AarLibraryCache.getExplodedHitCount());
+    assertEquals(first.getDirectory(), second.getDirectory());
+    assertEquals(first.getClassesJar(), second.getClassesJar());
+    assertEquals(first.getRTxt(), second.getRTxt());
+  }
+
+  public void testKeyDoesNotDependOnOrder() throws Exception {
+    File first = createAar("first.aar", "com.example.first", "first_string");
+    File second = createAar("second.aar", "com.example.second", "second_string");
+    AARLibraries libraries = new AARLibraries(new File(tmpDir, "gen1"));
+    libraries.add(unpack(first));
+    libraries.add(unpack(second));
+    AARLibraries reversed = new AARLibraries(new File(tmpDir, "gen2"));
+    reversed.add(unpack(second));
+    reversed.add(unpack(first));
+    AARLibraries single = new AARLibraries(new File(tmpDir, "gen3"));
+    single.add(unpack(first));
+
+    assertEquals(AarLibraryCache.getKey(libraries), AarLibraryCache.getKey(reversed));
+    assertFalse(AarLibraryCache.getKey(libraries).equals(AarLibraryCache.getKey(single)));
+  }
+
+  public void testMergedResourcesAreReused() throws Exception {
+    AARLibraries libraries = new AARLibraries(new File(tmpDir, "gen"));
+    libraries.add(unpack(createAar("first.aar", "com.example.first", "first_string")));
+    libraries.add(unpack(createAar("second.aar", "com.example.second", "second_string")));
+    int misses = AarLibraryCache.getMergedMissCount();
+    int hits = AarLibraryCache.getMergedHitCount();
+
+    File merged = AarLibraryCache.getMergedResources(libraries, NO_CRUNCHER);
+    assertNotNull(merged);
+    assertEquals(misses + 1, AarLibraryCache.getMergedMissCount());
+    String values = Files.toString(new File(merged, "values/values.xml"), Charsets.UTF_8);
+    assertTrue(values.contains("first_string"));
+    assertTrue(values.contains("second_string"));
+
+    assertEquals(merged, AarLibraryCache.getMergedResources(libraries, NO_CRUNCHER));
+    assertEquals(hits + 1, AarLibraryCache.getMergedHitCount());
+
+    // The app's resources are merged on top of the cached ones
+    File mainRes = new File(tmpDir, "res");
+    writeValues(new File(mainRes, "values/strings.xml"), "app_string");
+    File output = new File(tmpDir, "merged");
+    assertTrue(libraries.mergeResources(output, mainRes, merged, NO_CRUNCHER));
+    values = Files.toString(new File(output, "values/values.xml"), Charsets.UTF_8);
+    assertTrue(values.contains("first_string"));
+    assertTrue(values.contains("app_string"));
+  }
+
+  private AARLibrary unpack(File aar) throws Exception {
+    AARLibrary library = new AARLibrary(aar);
+    AarLibraryCache.unpack(library);
+    return library;
+  }
+
+  private File createAar(String name, String packageName, String stringName) throws Exception {
+    File aar = new File(tmpDir, name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(aar))) {
+      out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+      out.write(("<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\" "
+          + "package=\"" + packageName + "\"/>").getBytes(Charsets.UTF_8));
+      out.putNextEntry(new ZipEntry("classes.jar"));
+      out.write(new byte[] { 0 });
+      out.putNextEntry(new ZipEntry("R.txt"));
+      out.write(("int string " + stringName + " 0x7f010001\n").getBytes(Charsets.UTF_8));
+      out.putNextEntry(new ZipEntry("res/values/values.xml"));
+      out.write(valuesXml(stringName).getBytes(Charsets.UTF_8));
+      out.closeEntry();
+    }
+    return aar;
+  }
+
+  private static void writeValues(File file, String stringName) throws Exception {
+    assertTrue(file.getParentFile().mkdirs());
+    Files.write(valuesXml(stringName), file, Charsets.UTF_8);
+  }
+
+  private static String valuesXml(String stringName) {
+    return "<resources><string name=\"" + stringName + "\">text</string></resources>";
+  }
+}
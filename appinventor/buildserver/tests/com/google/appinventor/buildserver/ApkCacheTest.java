@@ -0,0 +1,111 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkCache class.
+ */
+public class ApkCacheTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    ApkCache.configure(new File(tmpDir, "cache").getAbsolutePath(), 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ApkCache.configure(null, 1024);
+  }
+
+  public void testKey() throws Exception {
+    String key = key("v1", "user", "a.zip", "src/Screen1.scm", "one", "assets/kitty.png", "meow");
+    assertEquals(key,
+        key("v1", "user", "b.zip", "assets/kitty.png", "meow", "src/Screen1.scm", "one"));
+    assertFalse(key.equals(
+        key("v1", "user", "c.zip", "src/Screen1.scm", "two", "assets/kitty.png", "meow")));
+    assertFalse(key.equals(
+        key("v1", "other", "d.zip", "src/Screen1.scm", "one", "assets/kitty.png", "meow")));
+    assertFalse(key.equals(
+        key("v2", "user", "e.zip", "src/Screen1.scm", "one", "assets/kitty.png", "meow")));
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    int misses = ApkCache.getMissCount();
+    int hits = ApkCache.getHitCount();
+    assertNull(ApkCache.restore("key", tmpDir));
+    assertEquals(misses + 1, ApkCache.getMissCount());
+
+    File apk = write("build/MyApp.apk", "apk");
+    ApkCache.store("key", new Result(true, "output", "error"), apk);
+
+    File outputDir = new File(tmpDir, "output");
+    assertTrue(outputDir.mkdir());
+    ApkCache.CachedBuild cached = ApkCache.restore("key", outputDir);
+    assertNotNull(cached);
+    assertEquals(hits + 1, ApkCache.getHitCount());
+    assertTrue(cached.getResult().succeeded());
+    assertEquals("output", cached.getResult().getOutput());
+    assertEquals(new File(outputDir, "MyApp.apk"), cached.getApk());
+    assertEquals("apk", Files.toString(cached.getApk(), Charsets.UTF_8));
+    assertEquals(1, outputDir.list().length);
+  }
+
+  public void testFailedBuildsAreNotStored() throws Exception {
+    File apk = write("build/MyApp.apk", "apk");
+    ApkCache.store("failed", new Result(false, "", "error"), apk);
+    assertNull(ApkCache.restore("failed", tmpDir));
+  }
+
+  public void testLeastRecentlyUsedIsRemoved() throws Exception {
+    // Each APK takes 60% of the 1 MB cache
+    byte[] contents = new byte[600 * 1024];
+    File first = new File(tmpDir, "First.apk");
+    Files.write(contents, first);
+    File second = new File(tmpDir, "Second.apk");
+    Files.write(contents, second);
+    ApkCache.store("first", new Result(true, "", ""), first);
+    assertTrue(new File(tmpDir, "cache/first").setLastModified(1000));
+    ApkCache.store("second", new Result(true, "", ""), second);
+
+    File outputDir = new File(tmpDir, "output");
+    assertTrue(outputDir.mkdir());
+    assertNull(ApkCache.restore("first", outputDir));
+    assertNotNull(ApkCache.restore("second", outputDir));
+  }
+
+  private String key(String version, String user, String zipName, String... entries)
+      throws Exception {
+    File zip = new File(tmpDir, zipName);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      for (int i = 0; i < entries.length; i += 2) {
+        out.putNextEntry(new ZipEntry(entries[i]));
+        out.write(entries[i + 1].getBytes(Charsets.UTF_8));
+      }
+    }
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      return ApkCache.getKey(version, user, zipFile);
+    }
+  }
+
+  private File write(String path, String contents) throws Exception {
+    File file = new File(tmpDir, path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,40 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildMetrics class.
+ */
+public class BuildMetricsTest extends TestCase {
+  public void testHistogramBuckets() throws Exception {
+    BuildMetrics.Histogram histogram = new BuildMetrics.Histogram(new long[] { 10, 100 });
+    histogram.record(5);
+    histogram.record(10);
+    histogram.record(50);
+    histogram.record(1000);
+
+    assertEquals(4, histogram.getCount());
+    assertEquals(1065, histogram.getSum());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(2, histogram.getBucket(0));
+    assertEquals(1, histogram.getBucket(1));
+    assertEquals(1, histogram.getBucket(2));
+
+    JSONObject buckets = histogram.toJson().getJSONObject("buckets");
+    assertEquals(2, buckets.getLong("le-10"));
+    assertEquals(1, buckets.getLong("le-inf"));
+  }
+
+  public void testRecordStage() throws Exception {
+    BuildMetrics.recordStage("test-stage", 42);
+    assertEquals(42, BuildMetrics.getStage("test-stage").getMax());
+    JSONObject stages = BuildMetrics.toJson().getJSONObject("stages-ms");
+    assertEquals(1, stages.getJSONObject("test-stage").getLong("count"));
+  }
+}
@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ChildProcessScheduler class.
+ */
+public class ChildProcessSchedulerTest extends TestCase {
+  public void testPermitsAreBounded() throws Exception {
+    final ChildProcessScheduler scheduler = new ChildProcessScheduler(2);
+    scheduler.acquire();
+    scheduler.acquire();
+    assertEquals(2, scheduler.getActiveCount());
+
+    // A third caller has to wait until a permit is released.
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        scheduler.acquire();
+        acquired.countDown();
+        scheduler.release();
+      }
+    });
+    waiter.start();
+    assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, scheduler.getWaitingCount());
+
+    scheduler.release();
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    waiter.join();
+    scheduler.release();
+
+    assertEquals(0, scheduler.getActiveCount());
+    assertEquals(0, scheduler.getWaitingCount());
+    assertEquals(3, scheduler.getAcquisitionCount());
+    assertTrue(scheduler.getMaxWaitMillis() >= 150);
+    assertTrue(scheduler.getTotalWaitMillis() >= scheduler.getMaxWaitMillis());
+  }
+
+  public void testDefaultPermitsIsAtLeastOne() {
+    assertTrue(ChildProcessScheduler.computeDefaultPermits(Integer.MAX_VALUE) >= 1);
+    assertEquals(1, new ChildProcessScheduler(0).getPermits());
+  }
+}
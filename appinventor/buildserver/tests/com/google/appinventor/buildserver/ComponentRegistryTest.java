@@ -0,0 +1,74 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ComponentRegistry class.
+ */
+public class ComponentRegistryTest extends TestCase {
+  private static final String BUTTON = "com.google.appinventor.components.runtime.Button";
+  private static final String TEXTING = "com.google.appinventor.components.runtime.Texting";
+
+  public void testParseBuildInfo() throws Exception {
+    ComponentRegistry.BuildInfo info = ComponentRegistry.parseBuildInfo(new JSONObject(
+        "{\"type\": \"" + TEXTING + "\","
+        + " \"permissions\": [\"android.permission.READ_SMS\", \"\"],"
+        + " \"libraries\": [],"
+        + " \"conditionals\": {\"permissions\": {\"SendMessage\": [\"android.permission.SEND_SMS\"]}}}"));
+
+    assertEquals(TEXTING, info.getType());
+    assertEquals(Collections.singleton("android.permission.READ_SMS"), info.getInfo("permissions"));
+    assertTrue(info.getInfo("libraries").isEmpty());
+    assertNull(info.getInfo("assets"));
+    Map<String, Set<String>> conditionals = info.getConditionals("permissions");
+    assertEquals(Collections.singleton("android.permission.SEND_SMS"),
+        conditionals.get("SendMessage"));
+    assertNull(info.getConditionals("services"));
+    try {
+      info.getInfo("permissions").add("android.permission.CAMERA");
+      fail("build information should be immutable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  public void testLoad() throws Exception {
+    File tmpDir = Files.createTempDir();
+    File components = new File(tmpDir, "simple_components.json");
+    Files.write("[{\"name\": \"Button\", \"type\": \"" + BUTTON + "\"},"
+        + " {\"name\": \"Texting\", \"type\": \"" + TEXTING + "\"}]", components, Charsets.UTF_8);
+    File buildInfo = new File(tmpDir, "simple_components_build_info.json");
+    Files.write("[{\"type\": \"" + BUTTON + "\", \"permissions\": []},"
+        + " {\"type\": \"" + TEXTING + "\", \"permissions\": [\"android.permission.READ_SMS\"]}]",
+        buildInfo, Charsets.UTF_8);
+
+    ComponentRegistry registry = ComponentRegistry.load(components.toURI().toURL(),
+        buildInfo.toURI().toURL());
+    assertEquals(TEXTING, registry.getNameTypeMap().get("Texting"));
+    assertTrue(registry.getTypes().contains(BUTTON));
+
+    ComponentRegistry.BuildInfo extension = ComponentRegistry.parseBuildInfo(
+        new JSONObject("{\"type\": \"com.example.Extension\", \"permissions\": []}"));
+    List<ComponentRegistry.BuildInfo> infos = registry.withExtensions(Lists.newArrayList(extension));
+    assertEquals(3, infos.size());
+    assertEquals(BUTTON, infos.get(0).getType());
+    assertEquals("com.example.Extension", infos.get(2).getType());
+    assertEquals(2, registry.getBuildInfos().size());
+  }
+}
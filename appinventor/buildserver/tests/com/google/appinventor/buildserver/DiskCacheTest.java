@@ -0,0 +1,96 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests DiskCache class.
+ */
+public class DiskCacheTest extends TestCase {
+  private File tmpDir;
+  private DiskCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    cache = new DiskCache("test");
+  }
+
+  public void testDisabled() throws Exception {
+    assertFalse(cache.isEnabled());
+    assertNull(cache.get("key"));
+    assertNull(cache.store("key", writer("contents")));
+  }
+
+  public void testStoreAndGet() throws Exception {
+    cache.configure(tmpDir.getPath(), 10, Long.MAX_VALUE);
+    assertNull(cache.get("key"));
+    File entry = cache.store("key", writer("first"));
+    assertEquals(entry, cache.get("key"));
+    assertEquals("first", Files.toString(new File(entry, "file"), Charsets.UTF_8));
+
+    // The first entry stored for a key is kept
+    cache.store("key", writer("second"));
+    assertEquals("first", Files.toString(new File(entry, "file"), Charsets.UTF_8));
+  }
+
+  public void testFailedWriteStoresNothing() throws Exception {
+    cache.configure(tmpDir.getPath(), 10, Long.MAX_VALUE);
+    try {
+      cache.store("key", new DiskCache.EntryWriter() {
+        @Override
+        public void write(File dir) throws IOException {
+          Files.write("partial", new File(dir, "file"), Charsets.UTF_8);
+          throw new IOException("disk full");
+        }
+      });
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+    assertNull(cache.get("key"));
+    assertEquals(0, tmpDir.list().length);
+  }
+
+  public void testLeastRecentlyUsedIsRemoved() throws Exception {
+    cache.configure(tmpDir.getPath(), 2, Long.MAX_VALUE);
+    File first = cache.store("first", writer("1"));
+    assertTrue(first.setLastModified(1000));
+    File second = cache.store("second", writer("2"));
+    assertTrue(second.setLastModified(2000));
+    cache.hit(first);
+    cache.store("third", writer("3"));
+
+    assertNotNull(cache.get("first"));
+    assertNull(cache.get("second"));
+    assertNotNull(cache.get("third"));
+  }
+
+  public void testSizeLimit() throws Exception {
+    cache.configure(tmpDir.getPath(), Integer.MAX_VALUE, 10);
+    File first = cache.store("first", writer("123456"));
+    assertTrue(first.setLastModified(1000));
+    cache.store("second", writer("123456"));
+
+    assertNull(cache.get("first"));
+    assertNotNull(cache.get("second"));
+  }
+
+  private DiskCache.EntryWriter writer(final String contents) {
+    return new DiskCache.EntryWriter() {
+      @Override
+      public void write(File dir) throws IOException {
+        Files.write(contents, new File(dir, "file"), Charsets.UTF_8);
+      }
+    };
+  }
+}
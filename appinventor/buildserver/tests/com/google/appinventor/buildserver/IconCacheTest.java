@@ -0,0 +1,79 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests IconCache class.
+ */
+public class IconCacheTest extends TestCase {
+  private static final List<Integer> STANDARD_SIZES = Arrays.asList(48, 72);
+  private static final List<Integer> FOREGROUND_SIZES = Arrays.asList(108, 162);
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    IconCache.configure(new File(tmpDir, "cache").getAbsolutePath(), 10);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    IconCache.configure(null, 1000);
+  }
+
+  public void testKey() throws Exception {
+    byte[] icon = "icon".getBytes(Charsets.UTF_8);
+    String key = IconCache.getKey(icon, STANDARD_SIZES, FOREGROUND_SIZES);
+    assertEquals(key, IconCache.getKey(icon.clone(), STANDARD_SIZES, FOREGROUND_SIZES));
+    assertFalse(key.equals(
+        IconCache.getKey("other".getBytes(Charsets.UTF_8), STANDARD_SIZES, FOREGROUND_SIZES)));
+    assertFalse(key.equals(IconCache.getKey(icon, Arrays.asList(48), FOREGROUND_SIZES)));
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    File generated = new File(tmpDir, "generated");
+    File drawable = write(new File(generated, "ya.png"), "drawable");
+    File mipmap = write(new File(generated, "mipmap-mdpi/ic_launcher.png"), "mipmap");
+    int misses = IconCache.getMissCount();
+    int hits = IconCache.getHitCount();
+
+    assertFalse(IconCache.restore("key",
+        ImmutableMap.of("ya.png", new File(tmpDir, "ya.png"))));
+    assertEquals(misses + 1, IconCache.getMissCount());
+    IconCache.store("key", ImmutableMap.of("ya.png", drawable,
+        "mipmap-mdpi-ic_launcher.png", mipmap));
+
+    File restored = new File(tmpDir, "restored");
+    assertTrue(restored.mkdir());
+    Map<String, File> files = ImmutableMap.of("ya.png", new File(restored, "ya.png"),
+        "mipmap-mdpi-ic_launcher.png", new File(restored, "ic_launcher.png"));
+    assertTrue(IconCache.restore("key", files));
+    assertEquals(hits + 1, IconCache.getHitCount());
+    assertEquals("drawable", Files.toString(new File(restored, "ya.png"), Charsets.UTF_8));
+    assertEquals("mipmap", Files.toString(new File(restored, "ic_launcher.png"), Charsets.UTF_8));
+
+    // An entry missing one of the requested files is not used
+    assertFalse(IconCache.restore("key", ImmutableMap.of("mipmap-hdpi-ic_launcher.png",
+        new File(restored, "hdpi.png"))));
+  }
+
+  private static File write(File file, String contents) throws Exception {
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,162 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildServer.ProgressReporter class.
+ */
+public class ProgressReporterTest extends TestCase {
+  private final List<String> received = new CopyOnWriteArrayList<String>();
+  private final CountDownLatch firstReport = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  // The number of requests still to be dropped without an answer
+  private final AtomicInteger drop = new AtomicInteger(0);
+  // The reports received at the context that answers at once
+  private final List<String> receivedFast = new CopyOnWriteArrayList<String>();
+  private HttpServer server;
+  private String url;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/receivebuild", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        // Reading the whole request lets the server keep the connection alive
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        if (drop.getAndDecrement() > 0) {
+          // Stands for a broken connection
+          exchange.getResponseBody().close();
+          return;
+        }
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body));
+        zip.getNextEntry();
+        received.add(new String(ByteStreams.toByteArray(zip), Charsets.UTF_8).trim());
+        firstReport.countDown();
+        try {
+          // Stands for a slow App Inventor server
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.createContext("/receivefast", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ZipInputStream zip = new ZipInputStream(exchange.getRequestBody());
+        zip.getNextEntry();
+        receivedFast.add(new String(ByteStreams.toByteArray(zip), Charsets.UTF_8).trim());
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/receivebuild";
+    BuildServer.ProgressReporter.configure(0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    server.stop(0);
+    BuildServer.ProgressReporter.configure(1000);
+  }
+
+  public void testReportsAreCoalesced() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(url);
+    reporter.report(10);
+    assertTrue(firstReport.await(10, TimeUnit.SECONDS));
+    // The first report is still being sent: these neither block nor queue up
+    long start = System.currentTimeMillis();
+    for (int progress = 11; progress <= 50; progress++) {
+      reporter.report(progress);
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    release.countDown();
+    for (int i = 0; i < 100 && received.size() < 2; i++) {
+      Thread.sleep(50);
+    }
+    reporter.close();
+    assertEquals(2, received.size());
+    assertEquals("10", received.get(0));
+    assertEquals("50", received.get(1));
+  }
+
+  public void testFailedReportIsSentAgain() throws Exception {
+    release.countDown();
+    // Both the report and its immediate retry fail, the next attempt succeeds
+    drop.set(2);
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(url);
+    reporter.report(10);
+    assertTrue(firstReport.await(10, TimeUnit.SECONDS));
+    reporter.close();
+    assertEquals(1, received.size());
+    assertEquals("10", received.get(0));
+  }
+
+  public void testCloseDoesNotWaitForSlowServer() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(url);
+    reporter.report(10);
+    assertTrue(firstReport.await(10, TimeUnit.SECONDS));
+    // The server holds on to the report for 10 seconds
+    long start = System.currentTimeMillis();
+    reporter.close();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  public void testSlowBuildDoesNotHoldUpOthers() throws Exception {
+    BuildServer.ProgressReporter slow = new BuildServer.ProgressReporter(url);
+    slow.report(10);
+    assertTrue(firstReport.await(10, TimeUnit.SECONDS));
+    // These reports wait for the one the server holds on to
+    for (int progress = 11; progress <= 20; progress++) {
+      slow.report(progress);
+      Thread.sleep(10);
+    }
+    BuildServer.ProgressReporter fast = new BuildServer.ProgressReporter(
+        url.replace("/receivebuild", "/receivefast"));
+    fast.report(30);
+    for (int i = 0; i < 100 && receivedFast.isEmpty(); i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, received.size());
+    assertEquals(1, receivedFast.size());
+    assertEquals("30", receivedFast.get(0));
+    fast.close();
+    slow.close();
+  }
+
+  public void testNoReportAfterClose() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(url);
+    reporter.close();
+    reporter.report(10);
+    Thread.sleep(200);
+    assertTrue(received.isEmpty());
+  }
+}
@@ -0,0 +1,77 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ProjectBuilder class.
+ */
+public class ProjectBuilderTest extends TestCase {
+  private static final String SCM_FILE_NAME = "src/appinventor/ai_test/Test/Screen1.scm";
+  private static final String BKY_FILE_NAME = "src/appinventor/ai_test/Test/Screen1.bky";
+  private static final String ASSET_FILE_NAME = "assets/kitty.png";
+  private static final String SCM = "#|\n$JSON\n{\"Properties\":{\"$Name\":\"Screen1\","
+      + "\"$Type\":\"Form\",\"$Components\":[{\"$Name\":\"Button1\",\"$Type\":\"Button\"}]}}\n|#\n";
+  private static final String BKY = "<xml></xml>";
+  private static final String ASSET = "kitty";
+
+  private File tmpDir;
+  private File projectRoot;
+  private ZipFile zip;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    projectRoot = new File(tmpDir, "project");
+    File zipFile = new File(tmpDir, "project.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile))) {
+      for (String[] entry : new String[][] {
+          { SCM_FILE_NAME, SCM }, { BKY_FILE_NAME, BKY }, { ASSET_FILE_NAME, ASSET } }) {
+        out.putNextEntry(new ZipEntry(entry[0]));
+        out.write(entry[1].getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    zip = new ZipFile(zipFile);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    zip.close();
+  }
+
+  public void testFormSourcesAreReadFromZip() throws Exception {
+    ProjectBuilder.FormSources sources = ProjectBuilder.extractProjectFiles(zip, projectRoot);
+    assertEquals("Screen1",
+        sources.forms.get(SCM_FILE_NAME).getJSONObject("Properties").getString("$Name"));
+    assertEquals(BKY, sources.blocks.get(BKY_FILE_NAME));
+    assertFalse(new File(projectRoot, SCM_FILE_NAME).exists());
+    assertFalse(new File(projectRoot, BKY_FILE_NAME).exists());
+    assertEquals(ASSET, Files.toString(new File(projectRoot, ASSET_FILE_NAME), Charsets.UTF_8));
+  }
+
+  public void testAssetsAreLinked() throws Exception {
+    ProjectBuilder.extractProjectFiles(zip, projectRoot);
+    File asset = new File(projectRoot, ASSET_FILE_NAME);
+    File buildAsset = new File(tmpDir, "build/kitty.png");
+    assertTrue(buildAsset.getParentFile().mkdirs());
+    Files.write("stale", buildAsset, Charsets.UTF_8);
+
+    Compiler.linkOrCopy(asset, buildAsset);
+    assertEquals(ASSET, Files.toString(buildAsset, Charsets.UTF_8));
+    // A link rather than a copy
+    assertTrue(java.nio.file.Files.isSameFile(asset.toPath(), buildAsset.toPath()));
+  }
+}
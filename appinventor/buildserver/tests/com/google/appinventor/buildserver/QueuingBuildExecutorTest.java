@@ -0,0 +1,134 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingBuildExecutor class.
+ */
+public class QueuingBuildExecutorTest extends TestCase {
+  public void testTasksAreQueuedThenRejected() throws Exception {
+    QueuingBuildExecutor executor = new QueuingBuildExecutor(1, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+
+    executor.execute(new BlockingTask(release, done, null, null), "a", 10);
+    executor.execute(new BlockingTask(release, done, null, null), "b", 10);
+    executor.execute(new BlockingTask(release, done, null, null), "c", 10);
+    assertEquals(1, executor.getActiveTaskCount());
+    assertEquals(2, executor.getQueuedTaskCount());
+
+    try {
+      executor.execute(new BlockingTask(release, done, null, null), "d", 10);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testSmallerTasksGoFirst() throws Exception {
+    QueuingBuildExecutor executor = new QueuingBuildExecutor(1, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    executor.execute(new BlockingTask(release, done, order, "first"), "a", 1);
+    executor.execute(new BlockingTask(release, done, order, "large"), "b", 1000);
+    executor.execute(new BlockingTask(release, done, order, "small"), "c", 10);
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("first", order.get(0));
+    assertEquals("small", order.get(1));
+    assertEquals("large", order.get(2));
+  }
+
+  public void testUsersWithoutRunningBuildsGoFirst() throws Exception {
+    QueuingBuildExecutor executor = new QueuingBuildExecutor(2, 10);
+    CountDownLatch releaseA = new CountDownLatch(1);
+    CountDownLatch releaseB = new CountDownLatch(1);
+    CountDownLatch doneB = new CountDownLatch(2);
+    CountDownLatch doneA = new CountDownLatch(2);
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    // User a keeps one build running while user b's build finishes.
+    executor.execute(new BlockingTask(releaseA, doneA, order, "a1"), "a", 1);
+    executor.execute(new BlockingTask(releaseB, doneB, order, "b1"), "b", 1);
+    executor.execute(new BlockingTask(releaseA, doneA, order, "a2"), "a", 1);
+    executor.execute(new BlockingTask(releaseB, doneB, order, "c1"), "c", 1000);
+
+    releaseB.countDown();
+    assertTrue(doneB.await(5, TimeUnit.SECONDS));
+    // c1 overtook the smaller a2 because user a already has a build running.
+    assertEquals("b1", order.get(0));
+    assertEquals("c1", order.get(1));
+    releaseA.countDown();
+    assertTrue(doneA.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testQueuedTaskRunsAfterTaskError() throws Exception {
+    QueuingBuildExecutor executor = new QueuingBuildExecutor(1, 10);
+    final CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+        throw new OutOfMemoryError("test");
+      }
+    }, "a", 1);
+    executor.execute(new BlockingTask(release, done, null, null), "b", 1);
+    assertEquals(1, executor.getQueuedTaskCount());
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  private static class BlockingTask implements Runnable {
+    private final CountDownLatch release;
+    private final CountDownLatch done;
+    private final List<String> order;
+    private final String name;
+
+    private BlockingTask(CountDownLatch release, CountDownLatch done, List<String> order,
+        String name) {
+      this.release = release;
+      this.done = done;
+      this.order = order;
+      this.name = name;
+    }
+
+    @Override
+    public void run() {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+      if (order != null) {
+        order.add(name);
+      }
+      done.countDown();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ResultUploader class.
+ */
+public class ResultUploaderTest extends TestCase {
+  private static final ResultUploader.Body BODY = new ResultUploader.Body() {
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      out.write("result".getBytes(Charsets.UTF_8));
+    }
+  };
+
+  private final List<String> received = new CopyOnWriteArrayList<String>();
+  private HttpServer server;
+  private String url;
+
+  @Override
+  protected void setUp() throws Exception {
+    ResultUploader.configure(3, 10);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/receivebuild";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+    ResultUploader.configure(4, 1000);
+  }
+
+  public void testRetriesServerErrors() throws Exception {
+    respond(500, 200);
+    int retries = ResultUploader.getRetryCount();
+    assertTrue(ResultUploader.upload(url, BODY));
+    assertEquals(2, received.size());
+    assertEquals("chunked result", received.get(1));
+    assertEquals(retries + 1, ResultUploader.getRetryCount());
+  }
+
+  public void testGivesUp() throws Exception {
+    respond(503, 503, 503, 200);
+    int failures = ResultUploader.getFailureCount();
+    assertFalse(ResultUploader.upload(url, BODY));
+    assertEquals(3, received.size());
+    assertEquals(failures + 1, ResultUploader.getFailureCount());
+  }
+
+  public void testClientErrorsAreNotRetried() throws Exception {
+    respond(403, 200);
+    assertFalse(ResultUploader.upload(url, BODY));
+    assertEquals(1, received.size());
+  }
+
+  public void testFallsBackToContentLength() throws Exception {
+    respond(411, 200);
+    assertTrue(ResultUploader.upload(url, BODY));
+    assertEquals(2, received.size());
+    assertEquals("6 result", received.get(1));
+  }
+
+  /*
+   * Answers successive requests with the given status codes, recording each request as its
+   * transfer encoding or length followed by its body.
+   */
+  private void respond(final int... codes) {
+    server.createContext("/receivebuild", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()),
+            Charsets.UTF_8);
+        received.add((length == null ? "chunked" : length) + " " + body);
+        exchange.sendResponseHeaders(codes[Math.min(received.size(), codes.length) - 1], -1);
+        exchange.close();
+      }
+    });
+  }
+}
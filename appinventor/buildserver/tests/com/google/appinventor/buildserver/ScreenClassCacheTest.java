@@ -0,0 +1,62 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ScreenClassCache class.
+ */
+public class ScreenClassCacheTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    ScreenClassCache.configure(new File(tmpDir, "cache").getAbsolutePath(), 10);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ScreenClassCache.configure(null, 1000);
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    File yail = new File(tmpDir, "Screen1.yail");
+    Files.write("(define-form Screen1)", yail, Charsets.UTF_8);
+    String key = ScreenClassCache.getKey("env", yail);
+
+    File compiled = new File(tmpDir, "compiled/appinventor/ai_test/Test");
+    assertTrue(compiled.mkdirs());
+    Files.write("main", new File(compiled, "Screen1.class"), Charsets.UTF_8);
+    Files.write("frame", new File(compiled, "Screen1$frame.class"), Charsets.UTF_8);
+    Files.write("other", new File(compiled, "Screen10.class"), Charsets.UTF_8);
+
+    File restored = new File(tmpDir, "restored/appinventor/ai_test/Test/Screen1.class");
+    assertFalse(ScreenClassCache.restore(key, restored));
+    ScreenClassCache.store(key, new File(compiled, "Screen1.class"));
+    assertTrue(ScreenClassCache.restore(key, restored));
+
+    File restoredDir = restored.getParentFile();
+    assertEquals("main", Files.toString(restored, Charsets.UTF_8));
+    assertEquals("frame", Files.toString(new File(restoredDir, "Screen1$frame.class"),
+        Charsets.UTF_8));
+    assertFalse(new File(restoredDir, "Screen10.class").exists());
+  }
+
+  public void testKeyDependsOnSourceAndEnvironment() throws Exception {
+    File yail = new File(tmpDir, "Screen1.yail");
+    Files.write("(define-form Screen1)", yail, Charsets.UTF_8);
+    String key = ScreenClassCache.getKey("env", yail);
+    assertFalse(key.equals(ScreenClassCache.getKey("other-env", yail)));
+    Files.write("(define-form Screen1) (def x 1)", yail, Charsets.UTF_8);
+    assertFalse(key.equals(ScreenClassCache.getKey("env", yail)));
+  }
+}
@@ -0,0 +1,134 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests StageGraph class.
+ */
+public class StageGraphTest extends TestCase {
+  private final List<String> log = new CopyOnWriteArrayList<String>();
+
+  @Override
+  protected void tearDown() throws Exception {
+    StageGraph.configure(4);
+  }
+
+  public void testDependenciesRunFirst() throws Exception {
+    StageGraph graph = new StageGraph();
+    StageGraph.Stage a = graph.add("a", record("a", true));
+    StageGraph.Stage b = graph.add("b", record("b", true), a);
+    StageGraph.Stage c = graph.add("c", record("c", true), a);
+    graph.add("d", record("d", true), b, c);
+    assertTrue(graph.run());
+
+    assertEquals(4, log.size());
+    assertEquals("a", log.get(0));
+    assertEquals("d", log.get(3));
+    assertTrue(b.getMillis() >= 0);
+  }
+
+  public void testIndependentStagesOverlap() throws Exception {
+    // Each stage waits for the other one to start, which only finishes if they run in parallel.
+    final CountDownLatch started = new CountDownLatch(2);
+    Callable<Boolean> task = new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        started.countDown();
+        return started.await(10, TimeUnit.SECONDS);
+      }
+    };
+    StageGraph graph = new StageGraph();
+    graph.add("first", task);
+    graph.add("second", task);
+    assertTrue(graph.run());
+  }
+
+  public void testFailureStopsDependentStages() throws Exception {
+    StageGraph.configure(1);
+    StageGraph graph = new StageGraph();
+    StageGraph.Stage a = graph.add("a", record("a", false));
+    graph.add("b", record("b", true));
+    StageGraph.Stage c = graph.add("c", record("c", true), a);
+    assertFalse(graph.run());
+
+    assertEquals("a", log.get(0));
+    assertFalse(log.contains("b"));
+    assertFalse(log.contains("c"));
+    assertEquals(-1, c.getMillis());
+  }
+
+  public void testExceptionIsRethrown() throws Exception {
+    StageGraph graph = new StageGraph();
+    graph.add("a", new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        throw new IOException("disk full");
+      }
+    });
+    try {
+      graph.run();
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+  }
+
+  public void testStageOutputIsNotInterleaved() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintStream out = StageGraph.perStage(new PrintStream(bytes, true));
+    // The second stage prints while the first one is between its two messages.
+    final CountDownLatch firstPrinted = new CountDownLatch(1);
+    final CountDownLatch secondPrinted = new CountDownLatch(1);
+    StageGraph graph = new StageGraph();
+    graph.add("first", new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        out.println("first 1");
+        firstPrinted.countDown();
+        secondPrinted.await(10, TimeUnit.SECONDS);
+        out.println("first 2");
+        return true;
+      }
+    });
+    graph.add("second", new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        firstPrinted.await(10, TimeUnit.SECONDS);
+        out.println("second");
+        secondPrinted.countDown();
+        return true;
+      }
+    });
+    out.println("before");
+    assertTrue(graph.run());
+
+    String sep = System.getProperty("line.separator");
+    String output = bytes.toString();
+    assertTrue(output, output.startsWith("before" + sep));
+    assertTrue(output, output.contains("first 1" + sep + "first 2" + sep));
+    assertTrue(output, output.contains("second" + sep));
+  }
+
+  private Callable<Boolean> record(final String name, final boolean result) {
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        log.add(name);
+        return result;
+      }
+    };
+  }
+}
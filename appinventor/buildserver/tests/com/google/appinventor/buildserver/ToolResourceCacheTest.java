@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ToolResourceCache class.
+ */
+public class ToolResourceCacheTest extends TestCase {
+  private static final String RESOURCE = "/com/google/appinventor/buildserver/PathUtil.class";
+
+  public void testExtractsOnceToStablePath() throws Exception {
+    File dir = Files.createTempDir();
+    ToolResourceCache.configure(dir.getAbsolutePath());
+    File file = ToolResourceCache.get(RESOURCE);
+    assertTrue(file.getAbsolutePath().startsWith(dir.getAbsolutePath()));
+    assertEquals("PathUtil.class", file.getName());
+    assertTrue(Arrays.equals(Resources.toByteArray(Compiler.class.getResource(RESOURCE)),
+        Files.toByteArray(file)));
+
+    // A restarted build server finds the file that is already there.
+    long lastModified = file.lastModified();
+    ToolResourceCache.configure(dir.getAbsolutePath());
+    File again = ToolResourceCache.get(RESOURCE);
+    assertEquals(file, again);
+    assertEquals(lastModified, again.lastModified());
+  }
+
+  public void testMissingResource() throws Exception {
+    ToolResourceCache.configure(Files.createTempDir().getAbsolutePath());
+    try {
+      ToolResourceCache.get("/no/such/resource.jar");
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,44 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ToolRunner class.
+ */
+public class ToolRunnerTest extends TestCase {
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private final PrintStream out = new PrintStream(output, true);
+
+  @Override
+  protected void tearDown() throws Exception {
+    ToolRunner.configure(600);
+  }
+
+  public void testOutputIsCaptured() throws Exception {
+    assertTrue(ToolRunner.run("sh", new String[] { "sh", "-c", "echo out; echo err >&2" }, out));
+    String captured = output.toString();
+    assertTrue(captured.contains("out\n"));
+    assertTrue(captured.contains("err\n"));
+  }
+
+  public void testFailure() throws Exception {
+    assertFalse(ToolRunner.run("sh", new String[] { "sh", "-c", "echo failed; exit 3" }, out));
+    assertEquals("failed\n", output.toString());
+  }
+
+  public void testTimeout() throws Exception {
+    ToolRunner.configure(1);
+    int timeouts = ToolRunner.getTimeoutCount();
+    long start = System.currentTimeMillis();
+    assertFalse(ToolRunner.run("sleep", new String[] { "sleep", "30" }, out));
+    assertTrue(System.currentTimeMillis() - start < 20000);
+    assertEquals(timeouts + 1, ToolRunner.getTimeoutCount());
+  }
+}
@@ -0,0 +1,87 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2020 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ZipAligner class.
+ */
+public class ZipAlignerTest extends TestCase {
+  private static final String[] NAMES = { "a", "assets/bc.txt", "classes.dex", "res/x.png" };
+
+  public void testStoredEntriesAreAligned() throws Exception {
+    File tmpDir = Files.createTempDir();
+    File input = new File(tmpDir, "in.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(input))) {
+      for (int i = 0; i < NAMES.length; i++) {
+        byte[] data = contents(i);
+        ZipEntry entry = new ZipEntry(NAMES[i]);
+        if (i % 2 == 1) {
+          CRC32 crc = new CRC32();
+          crc.update(data);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(data.length);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+      }
+    }
+
+    File output = new File(tmpDir, "out.zip");
+    try (FileOutputStream out = new FileOutputStream(output)) {
+      ZipAligner.align(input, out, 4);
+    }
+
+    try (ZipFile zip = new ZipFile(output);
+         RandomAccessFile file = new RandomAccessFile(output, "r")) {
+      for (int i = 0; i < NAMES.length; i++) {
+        ZipEntry entry = zip.getEntry(NAMES[i]);
+        try (InputStream in = zip.getInputStream(entry)) {
+          assertTrue(Arrays.equals(contents(i), ByteStreams.toByteArray(in)));
+        }
+      }
+      // Walk the local headers and check where the data of each stored entry starts.
+      long offset = 0;
+      for (int i = 0; i < NAMES.length; i++) {
+        file.seek(offset + 8);
+        int method = Short.reverseBytes(file.readShort()) & 0xffff;
+        file.seek(offset + 18);
+        long compressedSize = Integer.reverseBytes(file.readInt()) & 0xffffffffL;
+        file.seek(offset + 26);
+        int nameLength = Short.reverseBytes(file.readShort()) & 0xffff;
+        int extraLength = Short.reverseBytes(file.readShort()) & 0xffff;
+        long dataStart = offset + 30 + nameLength + extraLength;
+        if (method == ZipEntry.STORED) {
+          assertEquals(0, dataStart % 4);
+        }
+        offset = dataStart + compressedSize;
+      }
+    }
+  }
+
+  private static byte[] contents(int i) {
+    byte[] data = new byte[100 * i + 3];
+    for (int j = 0; j < data.length; j++) {
+      data[j] = (byte) (j * (i + 1));
+    }
+    return data;
+  }
+}